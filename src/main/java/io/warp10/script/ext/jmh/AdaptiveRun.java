@@ -0,0 +1,171 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import org.apache.commons.math3.distribution.TDistribution;
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+import org.openjdk.jmh.results.IterationResult;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Adaptive run length of a fork, see JMH.ADAPTIVE_KEY. The fork only runs measurement iterations, whose scores are
+ * received as they are measured. The warmup is over when the coefficient of variation of the last 'window' scores
+ * drops below 'stability', then the fork is stopped as soon as the half-width of the confidence interval of the steady
+ * scores, relative to their mean, is below 'error', or when its budget is spent.
+ */
+public class AdaptiveRun implements StreamingOutputFormat.Sink {
+
+  public static final double DEFAULT_ERROR = 0.01D;
+  public static final double DEFAULT_CONFIDENCE = 0.99D;
+  public static final String DEFAULT_BUDGET = "10 min";
+  public static final long DEFAULT_WINDOW = 5L;
+  public static final double DEFAULT_STABILITY = 0.02D;
+
+  private final double error;
+  private final double confidence;
+  private final int window;
+  private final double stability;
+  private final long deadline;
+
+  // Scores of the iterations received so far
+  private final List<Double> scores = new ArrayList<Double>();
+
+  // Index of the first steady iteration, -1 until the end of the warmup is detected
+  private int warmup = -1;
+
+  // Number of iterations received when the fork was stopped, 0 if it ran all its iterations
+  private int measured = 0;
+
+  // Scores of the steady iterations kept in the result
+  private final List<Double> kept = new ArrayList<Double>();
+
+  /**
+   * @param adaptive The adaptive JMH parameter, whose values are already checked.
+   * @param budgetNs Time the fork may run for, in ns.
+   */
+  public AdaptiveRun(Map<Object, Object> adaptive, long budgetNs) {
+    this.error = ((Number) adaptive.getOrDefault(JMH.ADAPTIVE_ERROR, DEFAULT_ERROR)).doubleValue();
+    this.confidence = ((Number) adaptive.getOrDefault(JMH.ADAPTIVE_CONFIDENCE, DEFAULT_CONFIDENCE)).doubleValue();
+    this.window = ((Number) adaptive.getOrDefault(JMH.ADAPTIVE_WINDOW, DEFAULT_WINDOW)).intValue();
+    this.stability = ((Number) adaptive.getOrDefault(JMH.ADAPTIVE_STABILITY, DEFAULT_STABILITY)).doubleValue();
+    this.deadline = System.nanoTime() + budgetNs;
+  }
+
+  @Override
+  public synchronized boolean emit(Map<Object, Object> event) {
+    if (!StreamingOutputFormat.EVENT_ITERATION.equals(event.get("event"))) {
+      return true;
+    }
+
+    scores.add(JMH.toDouble(event.get("score")));
+
+    if (warmup < 0 && scores.size() >= window) {
+      SummaryStatistics stats = statistics(scores.subList(scores.size() - window, scores.size()));
+      if (stats.getStandardDeviation() <= stability * Math.abs(stats.getMean())) {
+        warmup = scores.size() - window;
+      }
+    }
+
+    if (warmup >= 0 && relativeError(scores.subList(warmup, scores.size()), confidence) <= error) {
+      measured = scores.size();
+      return false;
+    }
+
+    if (System.nanoTime() >= deadline) {
+      measured = scores.size();
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Keep the steady iterations of the fork, the second half of them if the end of the warmup was not detected.
+   * Iterations measured after the fork was asked to stop are dropped.
+   * @param iterations Measurement iterations of the fork, in order.
+   * @return The steady iterations.
+   */
+  public synchronized List<IterationResult> steady(List<IterationResult> iterations) {
+    int end = 0 == measured ? iterations.size() : Math.min(measured, iterations.size());
+    int start = Math.min(warmup >= 0 ? warmup : end / 2, end);
+
+    List<IterationResult> steady = new ArrayList<IterationResult>(iterations.subList(start, end));
+    for (IterationResult iteration: steady) {
+      kept.add(iteration.getPrimaryResult().getScore());
+    }
+    return steady;
+  }
+
+  /**
+   * Summarize the adaptive runs of the forks of a benchmark.
+   * @param forks Adaptive runs of the forks, whose steady iterations were kept.
+   * @param durationMs Time taken by all the forks.
+   * @return The summary added to the result under JMH.KEY_ADAPTIVE.
+   */
+  public static Map<Object, Object> summarize(List<AdaptiveRun> forks, long durationMs) {
+    List<Double> pooled = new ArrayList<Double>();
+    List<Object> warmupIterations = new ArrayList<Object>();
+    List<Object> measurementIterations = new ArrayList<Object>();
+    boolean stable = true;
+
+    for (AdaptiveRun fork: forks) {
+      pooled.addAll(fork.kept);
+      warmupIterations.add((long) Math.max(0, fork.warmup));
+      measurementIterations.add((long) fork.kept.size());
+      stable &= fork.warmup >= 0;
+    }
+
+    AdaptiveRun first = forks.get(0);
+    double relativeError = relativeError(pooled, first.confidence);
+
+    Map<Object, Object> summary = new LinkedHashMap<Object, Object>();
+    summary.put("targetMet", stable && relativeError <= first.error);
+    summary.put("relativeError", relativeError);
+    summary.put("target", first.error);
+    summary.put("confidence", first.confidence);
+    summary.put("stable", stable);
+    summary.put("warmupIterations", warmupIterations);
+    summary.put("measurementIterations", measurementIterations);
+    summary.put("duration", durationMs);
+    return summary;
+  }
+
+  private static SummaryStatistics statistics(List<Double> scores) {
+    SummaryStatistics stats = new SummaryStatistics();
+    for (double score: scores) {
+      stats.addValue(score);
+    }
+    return stats;
+  }
+
+  /**
+   * Half-width of the Student confidence interval of the mean of the scores, relative to the mean.
+   */
+  static double relativeError(List<Double> scores, double confidence) {
+    if (scores.size() < 2) {
+      return Double.NaN;
+    }
+    SummaryStatistics stats = statistics(scores);
+    TDistribution tDist = new TDistribution(stats.getN() - 1);
+    double halfWidth = tDist.inverseCumulativeProbability(1.0D - (1.0D - confidence) / 2.0D) * stats.getStandardDeviation() / Math.sqrt(stats.getN());
+    return halfWidth / Math.abs(stats.getMean());
+  }
+}
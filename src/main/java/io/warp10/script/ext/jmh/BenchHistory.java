@@ -0,0 +1,137 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import io.warp10.Revision;
+import io.warp10.WarpConfig;
+import io.warp10.json.JsonUtils;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.functions.SNAPSHOT;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Local append-only store of benchmark results. Each benchmark name has its own file in which each line is a JSON
+ * object describing a run: its timestamp, the revision of Warp 10 and the list of results as pushed by JMH.
+ */
+public class BenchHistory {
+
+  /**
+   * Directory where the history is stored, must be set to use JMHSAVE, JMHHISTORY or to compare to a named baseline.
+   */
+  public static final String CONF_DIR = "jmh.history.dir";
+
+  public static final String KEY_TIMESTAMP = "timestamp";
+  public static final String KEY_REVISION = "revision";
+  public static final String KEY_RESULTS = "results";
+
+  private static File getFile(String name) throws WarpScriptException {
+    String dir = WarpConfig.getProperty(CONF_DIR);
+
+    if (null == dir) {
+      throw new WarpScriptException("Benchmark history is disabled, set '" + CONF_DIR + "' to enable it.");
+    }
+
+    try {
+      return new File(dir, URLEncoder.encode(name, StandardCharsets.UTF_8.name()) + ".jsonl");
+    } catch (IOException ioe) {
+      throw new WarpScriptException("Invalid benchmark name.", ioe);
+    }
+  }
+
+  /**
+   * Append a run to the history of a benchmark.
+   * @param name Name of the benchmark.
+   * @param results List of results, as pushed by JMH.
+   * @throws WarpScriptException if the run cannot be written.
+   */
+  public static synchronized void append(String name, List results) throws WarpScriptException {
+    List<Object> storedResults = new ArrayList<Object>(results.size());
+
+    for (Object result: results) {
+      if (!(result instanceof Map)) {
+        throw new WarpScriptException("Expected a list of JMH results.");
+      }
+      Map<Object, Object> storedResult = new LinkedHashMap<Object, Object>((Map) result);
+      // Macros cannot be converted to JSON, store their snapshot instead
+      Object benchConfiguration = storedResult.get(JMH.KEY_BENCH_CONFIGURATION);
+      if (null != benchConfiguration) {
+        StringBuilder sb = new StringBuilder();
+        SNAPSHOT.addElement(sb, benchConfiguration);
+        storedResult.put(JMH.KEY_BENCH_CONFIGURATION, sb.toString());
+      }
+      storedResults.add(storedResult);
+    }
+
+    Map<Object, Object> run = new LinkedHashMap<Object, Object>();
+    run.put(KEY_TIMESTAMP, System.currentTimeMillis());
+    run.put(KEY_REVISION, Revision.REVISION);
+    run.put(KEY_RESULTS, storedResults);
+
+    File file = getFile(name);
+    file.getParentFile().mkdirs();
+
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+      writer.write(JsonUtils.objectToJson(run, true));
+      writer.write("\n");
+    } catch (IOException ioe) {
+      throw new WarpScriptException("Could not write benchmark history of " + name + ".", ioe);
+    }
+  }
+
+  /**
+   * Read the history of a benchmark.
+   * @param name Name of the benchmark.
+   * @return The list of runs, oldest first, empty if the benchmark has no history.
+   * @throws WarpScriptException if the history cannot be read.
+   */
+  public static synchronized List<Map<Object, Object>> load(String name) throws WarpScriptException {
+    List<Map<Object, Object>> runs = new ArrayList<Map<Object, Object>>();
+
+    File file = getFile(name);
+
+    if (!file.exists()) {
+      return runs;
+    }
+
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+      String line;
+      while (null != (line = reader.readLine())) {
+        if (!line.isEmpty()) {
+          runs.add((Map) JsonUtils.jsonToObject(line));
+        }
+      }
+    } catch (IOException ioe) {
+      throw new WarpScriptException("Could not read benchmark history of " + name + ".", ioe);
+    }
+
+    return runs;
+  }
+}
@@ -0,0 +1,42 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import io.warp10.continuum.store.DirectoryClient;
+import io.warp10.continuum.store.StoreClient;
+import io.warp10.script.WarpScriptException;
+
+import java.util.Map;
+
+/**
+ * Store and directory used by the stacks of a fork instead of those of the Warp 10 instance, selected by the 'store'
+ * key of the bench configuration. It is either 'memory', for InMemoryBenchStore, or the name of a class implementing
+ * this interface with a public no-arg constructor.
+ */
+public interface BenchStore {
+
+  /**
+   * Initialize the store, once per fork.
+   * @param dataset The 'dataset' map of the bench configuration, empty if not set.
+   * @throws WarpScriptException if the dataset is invalid or cannot be loaded.
+   */
+  void init(Map<Object, Object> dataset) throws WarpScriptException;
+
+  StoreClient getStoreClient();
+
+  DirectoryClient getDirectoryClient();
+}
@@ -0,0 +1,40 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+/**
+ * JMH profiler of calibrated benchmarks, see JMH.CALIBRATE_KEY. As for A/B comparisons, each fork draws a random order
+ * in which every pair of iterations runs both the macro and a macro of as many no-op statements, and each measurement
+ * iteration reports which one it ran as a secondary result, 0 for the macro and 1 for the no-op macro.
+ * <p>
+ * The overhead of the harness is then computed by the JMH function, in the JVM which ran JMH.
+ */
+public class CalibrationProfiler extends ComparisonProfiler {
+
+  // Label of the secondary result telling whether each measurement iteration ran the no-op macro
+  public static final String LABEL_CALIBRATION_SIDE = "calibration.side";
+
+  @Override
+  protected String label() {
+    return LABEL_CALIBRATION_SIDE;
+  }
+
+  @Override
+  public String getDescription() {
+    return "Macro or no-op macro run by each iteration of a calibrated benchmark.";
+  }
+}
@@ -0,0 +1,149 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+import org.openjdk.jmh.runner.IterationType;
+
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMH profiler reporting the phases of a cold start, see JMH.COLDSTART_KEY. The single invocation of each fresh fork
+ * marks the end of each phase, whose duration, number of loaded classes and JIT compilation time are reported. The
+ * first phase is the start of the JVM and of the harness, until the invocation begins.
+ */
+public class ColdStartProfiler implements InternalProfiler {
+
+  // Prefix of the labels of the secondary results, followed by the phase, a dot and the metric
+  public static final String LABEL_PREFIX = "coldstart.";
+
+  public static final String PHASE_JVM = "jvm";
+  public static final String PHASE_CONFIG = "config";
+  public static final String PHASE_EXTENSIONS = "extensions";
+  public static final String PHASE_STACK = "stack";
+  public static final String PHASE_PARSE = "parse";
+  public static final String PHASE_SETUP = "setup";
+  public static final String PHASE_FIRST = "first";
+  public static final String PHASE_SECOND = "second";
+
+  public static final String[] PHASES = {PHASE_JVM, PHASE_CONFIG, PHASE_EXTENSIONS, PHASE_STACK, PHASE_PARSE, PHASE_SETUP, PHASE_FIRST, PHASE_SECOND};
+
+  public static final String METRIC_TIME = "time";
+  public static final String METRIC_CLASSES = "classes";
+  // Time spent by the JIT compilers, the standard management beans not counting their compilations
+  public static final String METRIC_JIT_TIME = "jitTime";
+
+  // Time, loaded classes and compilation time of each phase, in us, classes and ms
+  private static final Map<String, double[]> phases = new LinkedHashMap<String, double[]>();
+
+  // Counters at the end of the last phase
+  private static long lastTime;
+  private static long lastClasses;
+  private static long lastJit;
+
+  /**
+   * Record the start of the JVM as the first phase, the counters of which are all since the JVM started.
+   */
+  static synchronized void start() {
+    phases.clear();
+    lastTime = System.nanoTime();
+    lastClasses = loadedClasses();
+    lastJit = compilationTime();
+    phases.put(PHASE_JVM, new double[] {ManagementFactory.getRuntimeMXBean().getUptime() * 1000.0D, lastClasses, lastJit});
+  }
+
+  /**
+   * Record the end of a phase, which started at the end of the previous one.
+   * @param phase Name of the phase, one of PHASES.
+   */
+  static synchronized void mark(String phase) {
+    long time = System.nanoTime();
+    long classes = loadedClasses();
+    long jit = compilationTime();
+    phases.put(phase, new double[] {(time - lastTime) / 1000.0D, classes - lastClasses, jit - lastJit});
+    skip();
+  }
+
+  /**
+   * Exclude what was done since the end of the last phase from the next one.
+   */
+  static synchronized void skip() {
+    lastTime = System.nanoTime();
+    lastClasses = loadedClasses();
+    lastJit = compilationTime();
+  }
+
+  private static long loadedClasses() {
+    return ManagementFactory.getClassLoadingMXBean().getTotalLoadedClassCount();
+  }
+
+  /**
+   * Accumulated time spent by the JIT compilers, 0 if the JVM does not monitor it.
+   */
+  private static long compilationTime() {
+    CompilationMXBean compilation = ManagementFactory.getCompilationMXBean();
+    if (null == compilation || !compilation.isCompilationTimeMonitoringSupported()) {
+      return 0L;
+    }
+    return compilation.getTotalCompilationTime();
+  }
+
+  static String label(String phase, String metric) {
+    return LABEL_PREFIX + phase + "." + metric;
+  }
+
+  @Override
+  public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+  }
+
+  @Override
+  public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams, IterationResult result) {
+    List<Result> results = new ArrayList<Result>();
+
+    synchronized (ColdStartProfiler.class) {
+      if (IterationType.MEASUREMENT != iterationParams.getType()) {
+        return results;
+      }
+
+      for (Map.Entry<String, double[]> phase: phases.entrySet()) {
+        results.add(new ScalarResult(label(phase.getKey(), METRIC_TIME), phase.getValue()[0], "us", AggregationPolicy.AVG));
+        results.add(new ScalarResult(label(phase.getKey(), METRIC_CLASSES), phase.getValue()[1], "classes", AggregationPolicy.AVG));
+        results.add(new ScalarResult(label(phase.getKey(), METRIC_JIT_TIME), phase.getValue()[2], "ms", AggregationPolicy.AVG));
+      }
+      phases.clear();
+    }
+
+    return results;
+  }
+
+  @Override
+  public String getDescription() {
+    return "Time, loaded classes and JIT compilation time of the phases of a cold start.";
+  }
+}
@@ -0,0 +1,209 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+import org.openjdk.jmh.runner.IterationType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * JMH profiler of the A/B comparisons, see JMH.A_MACRO. Each fork draws a random order of the macros in which every
+ * pair of iterations runs both macros, and each measurement iteration reports which macro it ran as a secondary
+ * result, 0 for A and 1 for B.
+ * <p>
+ * The scores of the iterations of both macros are then compared by the JMH function, in the JVM which ran JMH.
+ */
+public class ComparisonProfiler implements InternalProfiler {
+
+  // Label of the secondary result telling which macro ran in each measurement iteration
+  public static final String LABEL_SIDE = "comparison.side";
+
+  // Number of resamples of the bootstrap and confidence level of the interval of the speedup
+  public static final int RESAMPLES = 10000;
+  public static final double CONFIDENCE = 0.95D;
+
+  // Order of the macros of the current benchmark of this JVM, true for B, null if it is not a comparison
+  private static volatile boolean[] order = null;
+
+  private int iteration = 0;
+
+  /**
+   * Draw the order of the macros of a benchmark, called at the start of each fork.
+   * @param iterations Number of warmup and measurement iterations.
+   * @param random Random generator of this fork.
+   * @return The order, true meaning B.
+   */
+  static boolean[] newOrder(int iterations, Random random) {
+    boolean[] newOrder = new boolean[iterations];
+    for (int i = 0; i < newOrder.length; i += 2) {
+      newOrder[i] = random.nextBoolean();
+      if (i + 1 < newOrder.length) {
+        newOrder[i + 1] = !newOrder[i];
+      }
+    }
+    order = newOrder;
+    return newOrder;
+  }
+
+  static void clearOrder() {
+    order = null;
+  }
+
+  @Override
+  public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+  }
+
+  @Override
+  public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams, IterationResult result) {
+    boolean[] current = order;
+    int index = iteration++;
+
+    if (null == current || IterationType.MEASUREMENT != iterationParams.getType()) {
+      return Collections.emptyList();
+    }
+
+    return Collections.singletonList(new ScalarResult(label(), current[index] ? 1.0D : 0.0D, "B", AggregationPolicy.AVG));
+  }
+
+  /**
+   * @return The label of the secondary result telling which macro ran in each measurement iteration.
+   */
+  protected String label() {
+    return LABEL_SIDE;
+  }
+
+  @Override
+  public String getDescription() {
+    return "Macro run by each iteration of an A/B comparison.";
+  }
+
+  /**
+   * Compare the scores of the measurement iterations of both macros of a result.
+   * @param result A result converted from the JMH JSON, with the side of each iteration as secondary result.
+   * @return The mean score of each macro, the speedup of B over A and its bootstrap confidence interval, or null if the
+   * result is not a comparison.
+   */
+  public static Map<Object, Object> compare(Map<Object, Object> result) {
+    Map secondaryMetrics = (Map) result.get("secondaryMetrics");
+    if (null == secondaryMetrics || !secondaryMetrics.containsKey(LABEL_SIDE)) {
+      return null;
+    }
+
+    Map primaryMetric = (Map) result.get("primaryMetric");
+    List scoresByFork = (List) primaryMetric.get("rawData");
+    List sidesByFork = (List) ((Map) secondaryMetrics.get(LABEL_SIDE)).get("rawData");
+
+    List<Double> a = new ArrayList<Double>();
+    List<Double> b = new ArrayList<Double>();
+    // The forks of the workers of a pool are concatenated in the same order for both metrics, see JMHWorkerPool.merge
+    for (int fork = 0; fork < Math.min(scoresByFork.size(), sidesByFork.size()); fork++) {
+      List scores = (List) scoresByFork.get(fork);
+      List sides = (List) sidesByFork.get(fork);
+      // The side of each iteration is unknown if the fork did not report as many of them as scores
+      if (scores.size() != sides.size()) {
+        continue;
+      }
+      for (int i = 0; i < scores.size(); i++) {
+        double score = JMH.toDouble(scores.get(i));
+        if (JMH.toDouble(sides.get(i)) > 0.5D) {
+          b.add(score);
+        } else {
+          a.add(score);
+        }
+      }
+    }
+
+    Map<Object, Object> comparison = new LinkedHashMap<Object, Object>();
+    comparison.put("A", side(a));
+    comparison.put("B", side(b));
+
+    if (a.isEmpty() || b.isEmpty()) {
+      return comparison;
+    }
+
+    // Throughputs are higher when faster, times are lower
+    boolean thrpt = "thrpt".equals(result.get("mode"));
+    double speedup = speedup(mean(a), mean(b), thrpt);
+
+    // Percentile bootstrap of the ratio of the means, seeded so the interval of a result is reproducible
+    Random random = new Random(0L);
+    double[] speedups = new double[RESAMPLES];
+    for (int r = 0; r < RESAMPLES; r++) {
+      speedups[r] = speedup(resampledMean(a, random), resampledMean(b, random), thrpt);
+    }
+    Arrays.sort(speedups);
+
+    double low = speedups[(int) Math.floor((1.0D - CONFIDENCE) / 2.0D * (RESAMPLES - 1))];
+    double high = speedups[(int) Math.ceil((1.0D + CONFIDENCE) / 2.0D * (RESAMPLES - 1))];
+
+    List<Object> confidence = new ArrayList<Object>(2);
+    confidence.add(low);
+    confidence.add(high);
+
+    comparison.put("speedup", speedup);
+    comparison.put("speedupConfidence", confidence);
+    comparison.put("confidenceLevel", CONFIDENCE);
+    comparison.put("significant", low > 1.0D || high < 1.0D);
+    comparison.put("scoreUnit", primaryMetric.get("scoreUnit"));
+
+    return comparison;
+  }
+
+  private static Map<Object, Object> side(List<Double> scores) {
+    Map<Object, Object> side = new LinkedHashMap<Object, Object>();
+    side.put("score", scores.isEmpty() ? Double.NaN : mean(scores));
+    side.put("iterations", (long) scores.size());
+    return side;
+  }
+
+  /**
+   * Speedup of B over A, above 1 when B is faster.
+   */
+  private static double speedup(double a, double b, boolean thrpt) {
+    return thrpt ? b / a : a / b;
+  }
+
+  private static double mean(List<Double> scores) {
+    double sum = 0.0D;
+    for (double score: scores) {
+      sum += score;
+    }
+    return sum / scores.size();
+  }
+
+  private static double resampledMean(List<Double> scores, Random random) {
+    double sum = 0.0D;
+    for (int i = 0; i < scores.size(); i++) {
+      sum += scores.get(random.nextInt(scores.size()));
+    }
+    return sum / scores.size();
+  }
+}
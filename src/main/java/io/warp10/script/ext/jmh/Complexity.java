@@ -0,0 +1,222 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fit the scores of a macro benchmarked on inputs of increasing sizes, see JMH.GENERATOR_MACRO, against the usual
+ * complexity models. Each model f is fitted as t = c * f(n) by least squares, and the model with the lowest root mean
+ * square of the residuals, normalized by the mean time, is the best fit.
+ */
+public class Complexity {
+
+  // Keys of the complexity map added to the results
+  public static final String KEY_MODEL = "model";
+  public static final String KEY_COEFFICIENT = "coefficient";
+  public static final String KEY_RMS = "rms";
+  public static final String KEY_MODELS = "models";
+  public static final String KEY_SIZES = "sizes";
+  public static final String KEY_TIMES = "times";
+  public static final String KEY_RESIDUALS = "residuals";
+  public static final String KEY_PROJECTION = "projection";
+  public static final String KEY_PROJECTED = "projected";
+  public static final String KEY_UNIT = "unit";
+
+  enum Model {
+    CONSTANT("O(1)") {
+      @Override
+      double f(double n) {
+        return 1.0D;
+      }
+    },
+    LOG("O(log n)") {
+      @Override
+      double f(double n) {
+        return Math.log(n);
+      }
+    },
+    LINEAR("O(n)") {
+      @Override
+      double f(double n) {
+        return n;
+      }
+    },
+    LINEARITHMIC("O(n log n)") {
+      @Override
+      double f(double n) {
+        return n * Math.log(n);
+      }
+    },
+    QUADRATIC("O(n^2)") {
+      @Override
+      double f(double n) {
+        return n * n;
+      }
+    };
+
+    final String label;
+
+    Model(String label) {
+      this.label = label;
+    }
+
+    abstract double f(double n);
+  }
+
+  /**
+   * Group the results of the bench configurations with a generator by configuration, mode and parameters other than
+   * the size, then attach to each result the complexity fitted on the results of its group.
+   */
+  static void fit(List results, List<Map<Object, Object>> benchConfigurations, List<JMH.BenchRun> benchRuns) {
+    Map<List<Object>, List<Map<Object, Object>>> groups = new LinkedHashMap<List<Object>, List<Map<Object, Object>>>();
+
+    for (Object result: results) {
+      JMH.BenchRun benchRun = benchRuns.get(Integer.parseInt(((Map) ((Map) result).get("params")).get(JMH.COMBINATION_PARAM).toString()));
+      if (!benchConfigurations.get(benchRun.configuration).containsKey(JMH.GENERATOR_MACRO)) {
+        continue;
+      }
+
+      Map<String, Object> otherParams = new LinkedHashMap<String, Object>(benchRun.params);
+      otherParams.remove(JMH.SIZE_PARAM);
+
+      List<Object> key = new ArrayList<Object>();
+      key.add(benchRun.configuration);
+      key.add(((Map) result).get("benchmark"));
+      key.add(((Map) result).get("mode"));
+      key.add(otherParams);
+
+      List<Map<Object, Object>> group = groups.get(key);
+      if (null == group) {
+        group = new ArrayList<Map<Object, Object>>();
+        groups.put(key, group);
+      }
+      group.add((Map) result);
+    }
+
+    for (Map.Entry<List<Object>, List<Map<Object, Object>>> group: groups.entrySet()) {
+      Object projection = benchConfigurations.get((Integer) group.getKey().get(0)).get(JMH.PROJECTION_KEY);
+      Map<Object, Object> complexity = fit(group.getValue(), benchRuns, (Long) projection);
+      for (Map<Object, Object> result: group.getValue()) {
+        result.put(JMH.KEY_COMPLEXITY, complexity);
+      }
+    }
+  }
+
+  private static Map<Object, Object> fit(List<Map<Object, Object>> results, List<JMH.BenchRun> benchRuns, Long projection) {
+    List<Object> sizes = new ArrayList<Object>(results.size());
+    List<Object> times = new ArrayList<Object>(results.size());
+    double[] n = new double[results.size()];
+    double[] t = new double[results.size()];
+    String unit = null;
+
+    for (int i = 0; i < results.size(); i++) {
+      Map<Object, Object> result = results.get(i);
+      JMH.BenchRun benchRun = benchRuns.get(Integer.parseInt(((Map) result.get("params")).get(JMH.COMBINATION_PARAM).toString()));
+      Map primaryMetric = (Map) result.get("primaryMetric");
+
+      n[i] = ((Number) benchRun.params.get(JMH.SIZE_PARAM)).doubleValue();
+      t[i] = JMH.toDouble(primaryMetric.get("score"));
+      unit = primaryMetric.get("scoreUnit").toString();
+
+      // Throughputs are operations per time unit, fit the time per operation
+      if ("thrpt".equals(result.get("mode"))) {
+        t[i] = 1.0D / t[i];
+        unit = unit.substring(unit.indexOf('/') + 1) + "/op";
+      }
+
+      sizes.add((long) n[i]);
+      times.add(t[i]);
+    }
+
+    double mean = 0.0D;
+    for (double time: t) {
+      mean += time;
+    }
+    mean /= t.length;
+
+    Map<Object, Object> rmsByModel = new LinkedHashMap<Object, Object>();
+    Model best = null;
+    double bestCoefficient = Double.NaN;
+    double bestRms = Double.POSITIVE_INFINITY;
+
+    for (Model model: Model.values()) {
+      double tf = 0.0D;
+      double ff = 0.0D;
+      for (int i = 0; i < n.length; i++) {
+        double f = model.f(n[i]);
+        tf += t[i] * f;
+        ff += f * f;
+      }
+
+      // log n is null for all sizes of 1
+      if (!(ff > 0.0D)) {
+        continue;
+      }
+
+      double coefficient = tf / ff;
+      double rms = rms(n, t, model, coefficient) / mean;
+      rmsByModel.put(model.label, rms);
+
+      if (rms < bestRms) {
+        best = model;
+        bestCoefficient = coefficient;
+        bestRms = rms;
+      }
+    }
+
+    Map<Object, Object> complexity = new LinkedHashMap<Object, Object>();
+    complexity.put(KEY_SIZES, sizes);
+    complexity.put(KEY_TIMES, times);
+    complexity.put(KEY_UNIT, unit);
+
+    // All the scores are NaN, when the run was stopped for instance
+    if (null == best) {
+      return complexity;
+    }
+
+    List<Object> residuals = new ArrayList<Object>(n.length);
+    for (int i = 0; i < n.length; i++) {
+      residuals.add(t[i] - bestCoefficient * best.f(n[i]));
+    }
+
+    complexity.put(KEY_MODEL, best.label);
+    complexity.put(KEY_COEFFICIENT, bestCoefficient);
+    complexity.put(KEY_RMS, bestRms);
+    complexity.put(KEY_RESIDUALS, residuals);
+    complexity.put(KEY_MODELS, rmsByModel);
+
+    if (null != projection) {
+      complexity.put(KEY_PROJECTION, projection);
+      complexity.put(KEY_PROJECTED, bestCoefficient * best.f(projection.doubleValue()));
+    }
+
+    return complexity;
+  }
+
+  private static double rms(double[] n, double[] t, Model model, double coefficient) {
+    double sum = 0.0D;
+    for (int i = 0; i < n.length; i++) {
+      double residual = t[i] - coefficient * model.f(n[i]);
+      sum += residual * residual;
+    }
+    return Math.sqrt(sum / n.length);
+  }
+}
@@ -0,0 +1,148 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+import org.openjdk.jmh.runner.IterationType;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMH profiler reporting the heap retained by what the macro adds to the stack, see JMH.FOOTPRINT_KEY. At the end of
+ * each iteration, each thread of MacroBenchmark runs one more invocation and measures the used heap after full garbage
+ * collections, with the inputs of the macro and once it has run. The objects and datapoints it left on the stack are
+ * counted to report bytes per object and per datapoint.
+ */
+public class FootprintProfiler implements InternalProfiler {
+
+  // Prefix of the labels of the secondary results, followed by the metric
+  public static final String LABEL_PREFIX = "footprint.";
+
+  public static final String METRIC_BYTES = "bytes";
+  public static final String METRIC_OBJECTS = "objects";
+  public static final String METRIC_DATAPOINTS = "datapoints";
+
+  // Maximum number of garbage collections until the used heap stops decreasing
+  private static final int MAX_GC = 10;
+
+  private static long bytes = 0L;
+  private static long objects = 0L;
+  private static long datapoints = 0L;
+  private static long measures = 0L;
+
+  /**
+   * Add the footprint measured by a thread, called at the end of each iteration.
+   * @param threadBytes Retained bytes.
+   * @param threadObjects Number of objects left on the stack, the elements of lists and maps being counted instead of them.
+   * @param threadDatapoints Number of datapoints of the GTS and encoders left on the stack.
+   */
+  static synchronized void record(long threadBytes, long threadObjects, long threadDatapoints) {
+    bytes += threadBytes;
+    objects += threadObjects;
+    datapoints += threadDatapoints;
+    measures++;
+  }
+
+  private static synchronized void reset() {
+    bytes = 0L;
+    objects = 0L;
+    datapoints = 0L;
+    measures = 0L;
+  }
+
+  /**
+   * Used heap after garbage collections, repeated until it stops decreasing.
+   */
+  static long usedHeap() {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    long used = Long.MAX_VALUE;
+    for (int i = 0; i < MAX_GC; i++) {
+      System.gc();
+      long current = memory.getHeapMemoryUsage().getUsed();
+      if (current >= used) {
+        break;
+      }
+      used = current;
+    }
+    return used;
+  }
+
+  /**
+   * Count the objects and datapoints of an element of the stack.
+   * @param element Element of the stack.
+   * @param counts Number of objects and of datapoints, incremented.
+   */
+  static void count(Object element, long[] counts) {
+    if (element instanceof List) {
+      for (Object o: (List) element) {
+        count(o, counts);
+      }
+    } else if (element instanceof Map) {
+      for (Object o: ((Map) element).values()) {
+        count(o, counts);
+      }
+    } else {
+      counts[0]++;
+      if (element instanceof GeoTimeSerie) {
+        counts[1] += GTSHelper.nvalues((GeoTimeSerie) element);
+      } else if (element instanceof GTSEncoder) {
+        counts[1] += ((GTSEncoder) element).getCount();
+      }
+    }
+  }
+
+  @Override
+  public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+    reset();
+  }
+
+  @Override
+  public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams, IterationResult result) {
+    List<Result> results = new ArrayList<Result>();
+
+    synchronized (FootprintProfiler.class) {
+      if (IterationType.MEASUREMENT != iterationParams.getType() || 0L == measures) {
+        return results;
+      }
+
+      results.add(new ScalarResult(LABEL_PREFIX + METRIC_BYTES, (double) bytes / measures, "B", AggregationPolicy.AVG));
+      results.add(new ScalarResult(LABEL_PREFIX + METRIC_OBJECTS, (double) objects / measures, "objects", AggregationPolicy.AVG));
+      results.add(new ScalarResult(LABEL_PREFIX + METRIC_DATAPOINTS, (double) datapoints / measures, "datapoints", AggregationPolicy.AVG));
+    }
+
+    return results;
+  }
+
+  @Override
+  public String getDescription() {
+    return "Heap retained by what the macro leaves on the stack.";
+  }
+}
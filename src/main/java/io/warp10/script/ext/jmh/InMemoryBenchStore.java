@@ -0,0 +1,436 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.Constants;
+import io.warp10.continuum.store.DirectoryClient;
+import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.MetadataIterator;
+import io.warp10.continuum.store.StoreClient;
+import io.warp10.continuum.store.thrift.data.DirectoryRequest;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.script.WarpScriptException;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Fork-local store and directory keeping the series in memory, seeded with a synthetic dataset so FETCH and FIND can
+ * be benchmarked without the storage of the Warp 10 instance. Series written through the StoreClient are added to it.
+ * <p>
+ * The dataset map accepts:
+ * - classes: number of classes, named prefix.0, prefix.1, ..., defaults to 1,
+ * - prefix: prefix of the class names, defaults to jmh,
+ * - series: number of series per class, identified by a 'series' label, defaults to 10,
+ * - labels: number of additional labels label0, label1, ..., defaults to 1,
+ * - cardinality: number of distinct values of the additional labels, defaults to 10,
+ * - points: number of points per series, defaults to 1000,
+ * - step: time between two points, in platform time units, defaults to 1 minute,
+ * - end: timestamp of the last point, defaults to the current time, aligned on the step,
+ * - seed: seed of the random label and DOUBLE values, defaults to 0.
+ * <p>
+ * StoreClient and DirectoryClient are implemented with proxies dispatching on method names, so the same class works
+ * with the different signatures of fetch across Warp 10 versions. Methods the store does not implement fail with the
+ * IOException they declare, which WarpScript functions report as errors.
+ */
+public class InMemoryBenchStore implements BenchStore {
+
+  public static final String NAME = "memory";
+
+  private static class Series {
+    private final Metadata metadata;
+    private GeoTimeSerie gts;
+    private boolean sorted = false;
+
+    private Series(Metadata metadata, int sizeHint) {
+      this.metadata = metadata;
+      this.gts = new GeoTimeSerie(sizeHint);
+    }
+  }
+
+  private final Map<String, Series> series = new ConcurrentHashMap<String, Series>();
+
+  private StoreClient storeClient;
+  private DirectoryClient directoryClient;
+
+  @Override
+  public void init(Map<Object, Object> dataset) throws WarpScriptException {
+    long classes = getLong(dataset, "classes", 1L);
+    String prefix = dataset.containsKey("prefix") ? dataset.get("prefix").toString() : "jmh";
+    long seriesPerClass = getLong(dataset, "series", 10L);
+    long labels = getLong(dataset, "labels", 1L);
+    long cardinality = getLong(dataset, "cardinality", 10L);
+    long points = getLong(dataset, "points", 1000L);
+    long step = getLong(dataset, "step", 60L * Constants.TIME_UNITS_PER_S);
+    long seed = getLong(dataset, "seed", 0L);
+
+    if (step <= 0L || cardinality <= 0L || points < 0L) {
+      throw new WarpScriptException("The in-memory store expects a positive step and cardinality.");
+    }
+
+    long now = System.currentTimeMillis() * Constants.TIME_UNITS_PER_MS;
+    long end = getLong(dataset, "end", now - now % step);
+
+    Random random = new Random(seed);
+
+    for (long c = 0; c < classes; c++) {
+      for (long s = 0; s < seriesPerClass; s++) {
+        Map<String, String> seriesLabels = new LinkedHashMap<String, String>();
+        seriesLabels.put("series", Long.toString(s));
+        for (long l = 0; l < labels; l++) {
+          seriesLabels.put("label" + l, "value" + random.nextInt((int) Math.min(Integer.MAX_VALUE, cardinality)));
+        }
+
+        Metadata metadata = new Metadata();
+        metadata.setName(prefix + "." + c);
+        metadata.setLabels(seriesLabels);
+        metadata.setAttributes(new HashMap<String, String>());
+
+        Series serie = getSeries(metadata, (int) Math.min(Integer.MAX_VALUE, points));
+        for (long p = points - 1; p >= 0; p--) {
+          GTSHelper.setValue(serie.gts, end - p * step, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, random.nextDouble(), false);
+        }
+        serie.sorted = true;
+      }
+    }
+
+    storeClient = (StoreClient) Proxy.newProxyInstance(StoreClient.class.getClassLoader(), new Class[] {StoreClient.class}, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+          case "fetch":
+            return fetch(args);
+          case "store":
+            store((GTSEncoder) args[0]);
+            return null;
+          case "delete":
+            return delete(args);
+          case "addPlasmaHandler":
+            return null;
+          default:
+            return objectMethod(proxy, method, args, "StoreClient");
+        }
+      }
+    });
+
+    directoryClient = (DirectoryClient) Proxy.newProxyInstance(DirectoryClient.class.getClassLoader(), new Class[] {DirectoryClient.class}, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+          case "find":
+            return find((DirectoryRequest) args[0]);
+          case "iterator":
+            return iterator(find((DirectoryRequest) args[0]));
+          case "stats":
+            return stats(find((DirectoryRequest) args[0]));
+          default:
+            return objectMethod(proxy, method, args, "DirectoryClient");
+        }
+      }
+    });
+  }
+
+  @Override
+  public StoreClient getStoreClient() {
+    return storeClient;
+  }
+
+  @Override
+  public DirectoryClient getDirectoryClient() {
+    return directoryClient;
+  }
+
+  private static long getLong(Map<Object, Object> dataset, String key, long defaultValue) throws WarpScriptException {
+    Object value = dataset.get(key);
+    if (null == value) {
+      return defaultValue;
+    }
+    if (!(value instanceof Long)) {
+      throw new WarpScriptException("The in-memory store expects '" + key + "' to be a Long.");
+    }
+    return (Long) value;
+  }
+
+  private static Object objectMethod(Object proxy, Method method, Object[] args, String name) throws IOException {
+    switch (method.getName()) {
+      case "toString":
+        return "InMemoryBenchStore " + name;
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      case "equals":
+        return proxy == args[0];
+      default:
+        String message = "The in-memory store does not support " + name + "." + method.getName() + ".";
+        // Checked exceptions not declared by the method would be wrapped in UndeclaredThrowableException
+        for (Class<?> exceptionType: method.getExceptionTypes()) {
+          if (exceptionType.isAssignableFrom(IOException.class)) {
+            throw new IOException(message);
+          }
+        }
+        throw new UnsupportedOperationException(message);
+    }
+  }
+
+  private static String key(Metadata metadata) {
+    return metadata.getName() + new TreeMap<String, String>(metadata.getLabels()).toString();
+  }
+
+  private Series getSeries(Metadata metadata, int sizeHint) {
+    String key = key(metadata);
+    Series serie = series.get(key);
+    if (null == serie) {
+      Metadata copy = new Metadata(metadata);
+      copy.setClassId(metadata.getName().hashCode());
+      copy.setLabelsId(key.hashCode());
+      serie = new Series(copy, sizeHint);
+      Series previous = series.putIfAbsent(key, serie);
+      if (null != previous) {
+        serie = previous;
+      }
+    }
+    return serie;
+  }
+
+  private void store(GTSEncoder encoder) throws IOException {
+    if (null == encoder || null == encoder.getMetadata()) {
+      return;
+    }
+    Series serie = getSeries(encoder.getMetadata(), 16);
+    synchronized (serie) {
+      GTSDecoder decoder = encoder.getDecoder(true);
+      while (decoder.next()) {
+        GTSHelper.setValue(serie.gts, decoder.getTimestamp(), decoder.getLocation(), decoder.getElevation(), decoder.getValue(), false);
+      }
+      serie.sorted = false;
+    }
+  }
+
+  /**
+   * Delete the points of a series in [start, end]. Arguments are token, metadata, start and end.
+   * @return The number of deleted points.
+   */
+  private long delete(Object[] args) {
+    int i = 0;
+    while (!(args[i] instanceof Metadata)) {
+      i++;
+    }
+    long start = (Long) args[i + 1];
+    long end = (Long) args[i + 2];
+
+    Series serie = series.get(key((Metadata) args[i]));
+    if (null == serie) {
+      return 0L;
+    }
+
+    synchronized (serie) {
+      GeoTimeSerie kept = serie.gts.cloneEmpty();
+      int n = GTSHelper.nvalues(serie.gts);
+      for (int idx = 0; idx < n; idx++) {
+        long tick = GTSHelper.tickAtIndex(serie.gts, idx);
+        if (tick < start || tick > end) {
+          GTSHelper.setValue(kept, tick, GTSHelper.locationAtIndex(serie.gts, idx), GTSHelper.elevationAtIndex(serie.gts, idx), GTSHelper.valueAtIndex(serie.gts, idx), false);
+        }
+      }
+      serie.gts = kept;
+      return n - GTSHelper.nvalues(kept);
+    }
+  }
+
+  /**
+   * Fetch either the points in [then, now], or the count points before now if count is positive. Arguments are
+   * either a FetchRequest or, for older versions, token, metadatas, now, then, count followed by unused arguments.
+   */
+  private GTSDecoderIterator fetch(Object[] args) throws Exception {
+    List<Metadata> metadatas;
+    long now;
+    long then;
+    long count;
+
+    if (1 == args.length) {
+      Object request = args[0];
+      metadatas = (List<Metadata>) request.getClass().getMethod("getMetadatas").invoke(request);
+      now = (Long) request.getClass().getMethod("getNow").invoke(request);
+      then = (Long) request.getClass().getMethod("getThents").invoke(request);
+      count = (Long) request.getClass().getMethod("getCount").invoke(request);
+    } else {
+      int i = 0;
+      while (!(args[i] instanceof List)) {
+        i++;
+      }
+      metadatas = (List<Metadata>) args[i];
+      now = (Long) args[i + 1];
+      then = (Long) args[i + 2];
+      count = (Long) args[i + 3];
+    }
+
+    return fetch(metadatas, now, then, count);
+  }
+
+  GTSDecoderIterator fetch(List<Metadata> metadatas, long now, long then, long count) throws IOException {
+    final List<GTSDecoder> decoders = new ArrayList<GTSDecoder>(metadatas.size());
+
+    for (Metadata metadata: metadatas) {
+      Series serie = series.get(key(metadata));
+      if (null == serie) {
+        continue;
+      }
+
+      GTSEncoder encoder = new GTSEncoder(0L);
+      encoder.setMetadata(new Metadata(serie.metadata));
+
+      synchronized (serie) {
+        if (!serie.sorted) {
+          GTSHelper.sort(serie.gts);
+          serie.sorted = true;
+        }
+
+        int n = GTSHelper.nvalues(serie.gts);
+        // Index of the last point before now
+        int last = n - 1;
+        while (last >= 0 && GTSHelper.tickAtIndex(serie.gts, last) > now) {
+          last--;
+        }
+        int first = last;
+        while (first >= 0 && (count > 0 ? last - first < count : GTSHelper.tickAtIndex(serie.gts, first) >= then)) {
+          first--;
+        }
+        for (int idx = first + 1; idx <= last; idx++) {
+          encoder.addValue(GTSHelper.tickAtIndex(serie.gts, idx), GTSHelper.locationAtIndex(serie.gts, idx), GTSHelper.elevationAtIndex(serie.gts, idx), GTSHelper.valueAtIndex(serie.gts, idx));
+        }
+      }
+
+      decoders.add(encoder.getDecoder(true));
+    }
+
+    return new GTSDecoderIterator() {
+      private final Iterator<GTSDecoder> iter = decoders.iterator();
+
+      @Override
+      public boolean hasNext() {
+        return iter.hasNext();
+      }
+
+      @Override
+      public GTSDecoder next() {
+        return iter.next();
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+  private List<Metadata> find(DirectoryRequest request) {
+    List<Metadata> metadatas = new ArrayList<Metadata>();
+
+    for (Series serie: series.values()) {
+      for (int i = 0; i < request.getClassSelectorsSize(); i++) {
+        if (!matches(request.getClassSelectors().get(i), serie.metadata.getName())) {
+          continue;
+        }
+        Map<String, String> labelsSelectors = null == request.getLabelsSelectors() ? new HashMap<String, String>() : request.getLabelsSelectors().get(i);
+        boolean match = true;
+        for (Map.Entry<String, String> selector: labelsSelectors.entrySet()) {
+          // The synthetic series are visible with any token, ignore the selectors of producer, owner and application
+          if (selector.getKey().startsWith(".") && !serie.metadata.getLabels().containsKey(selector.getKey())) {
+            continue;
+          }
+          if (!matches(selector.getValue(), serie.metadata.getLabels().get(selector.getKey()))) {
+            match = false;
+            break;
+          }
+        }
+        if (match) {
+          metadatas.add(new Metadata(serie.metadata));
+          break;
+        }
+      }
+    }
+
+    return metadatas;
+  }
+
+  /**
+   * Match a selector of the directory, =exact, ~regex, != or !~ for negations. A missing label is an empty value.
+   */
+  private static boolean matches(String selector, String value) {
+    if (null == value) {
+      value = "";
+    }
+    if (selector.startsWith("!=")) {
+      return !selector.substring(2).equals(value);
+    } else if (selector.startsWith("!~")) {
+      return !Pattern.compile(selector.substring(2)).matcher(value).matches();
+    } else if (selector.startsWith("=")) {
+      return selector.substring(1).equals(value);
+    } else if (selector.startsWith("~")) {
+      return Pattern.compile(selector.substring(1)).matcher(value).matches();
+    }
+    return selector.equals(value);
+  }
+
+  private static MetadataIterator iterator(List<Metadata> metadatas) {
+    final Iterator<Metadata> iter = metadatas.iterator();
+    return new MetadataIterator() {
+      @Override
+      public boolean hasNext() {
+        return iter.hasNext();
+      }
+
+      @Override
+      public Metadata next() {
+        if (!iter.hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return iter.next();
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+  private static Map<String, Object> stats(List<Metadata> metadatas) {
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    Map<String, Boolean> classes = new HashMap<String, Boolean>();
+    for (Metadata metadata: metadatas) {
+      classes.put(metadata.getName(), true);
+    }
+    stats.put("gts.estimate", (long) metadatas.size());
+    stats.put("classes.estimate", (long) classes.size());
+    return stats;
+  }
+}
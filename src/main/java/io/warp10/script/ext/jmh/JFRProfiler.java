@@ -0,0 +1,296 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.profile.ProfilerException;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.runner.IterationType;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMH profiler recording a Java Flight Recorder session during the measurement iterations of each fork. The recording
+ * is dumped after each measurement iteration in the directory given as init line, in a file named after the benchmark, the index of its configuration
+ * and combination of parameters, and the pid of the fork, see recordingPrefix.
+ * <p>
+ * The recordings are then summarized by the JMH function, in the JVM which ran JMH.
+ */
+public class JFRProfiler implements InternalProfiler {
+
+  public static final String NAME = "jfr";
+
+  // JFR settings used for the recording, the profile settings sample the stacks every 10 ms
+  public static final String SETTINGS = "profile";
+
+  // Number of entries of each list of the summary
+  public static final int TOP = 10;
+
+  private static final String EXECUTION_SAMPLE = "jdk.ExecutionSample";
+  private static final String ALLOCATION_SAMPLE = "jdk.ObjectAllocationSample";
+  private static final String ALLOCATION_IN_NEW_TLAB = "jdk.ObjectAllocationInNewTLAB";
+  private static final String ALLOCATION_OUTSIDE_TLAB = "jdk.ObjectAllocationOutsideTLAB";
+  private static final String GARBAGE_COLLECTION = "jdk.GarbageCollection";
+  private static final String MONITOR_ENTER = "jdk.JavaMonitorEnter";
+
+  private final File dir;
+
+  private Recording recording = null;
+  private File file = null;
+  private int measurements = 0;
+
+  public JFRProfiler(String initLine) throws ProfilerException {
+    if (initLine.trim().isEmpty()) {
+      throw new ProfilerException("The " + NAME + " profiler expects the directory of the recordings.");
+    }
+    dir = new File(initLine.trim());
+  }
+
+  /**
+   * Prefix of the recordings of a benchmark.
+   * @param benchmark Name of the benchmark method or group of MacroBenchmark.
+   * @param combination Index of the bench configuration and combination of parameters.
+   */
+  public static String recordingPrefix(String benchmark, String combination) {
+    return benchmark + "-" + combination + "-";
+  }
+
+  @Override
+  public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+    if (IterationType.MEASUREMENT != iterationParams.getType()) {
+      return;
+    }
+
+    File benchmarkFile = recordingFile(benchmarkParams);
+    if (null != recording) {
+      if (benchmarkFile.equals(file)) {
+        return;
+      }
+      // Recording of a benchmark stopped before its last iteration in this JVM, already dumped
+      recording.close();
+      recording = null;
+    }
+
+    try {
+      recording = new Recording(Configuration.getConfiguration(SETTINGS));
+    } catch (IOException | ParseException e) {
+      throw new RuntimeException("Could not load the '" + SETTINGS + "' JFR settings.", e);
+    }
+    recording.setName("jmh");
+    file = benchmarkFile;
+    measurements = 0;
+    recording.start();
+  }
+
+  @Override
+  public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams, IterationResult result) {
+    if (IterationType.MEASUREMENT != iterationParams.getType() || null == recording) {
+      return Collections.emptyList();
+    }
+
+    measurements++;
+    boolean last = measurements == iterationParams.getCount();
+
+    // Dump after each measurement iteration, as the fork may be stopped before the last one, by AdaptiveRun or a stop
+    // file for instance. Each dump replaces the previous one with the recording so far, outside of the measured time.
+    try {
+      if (last) {
+        recording.stop();
+      }
+      dir.mkdirs();
+      recording.dump(file.toPath());
+    } catch (IOException ioe) {
+      recording.close();
+      recording = null;
+      throw new RuntimeException("Could not dump the JFR recording to " + file + ".", ioe);
+    }
+
+    if (last) {
+      recording.close();
+      recording = null;
+    }
+
+    return Collections.emptyList();
+  }
+
+  private File recordingFile(BenchmarkParams benchmarkParams) {
+    String benchmark = benchmarkParams.getBenchmark();
+    benchmark = benchmark.substring(benchmark.lastIndexOf('.') + 1);
+    String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+    return new File(dir, recordingPrefix(benchmark, benchmarkParams.getParam(JMH.COMBINATION_PARAM)) + pid + ".jfr");
+  }
+
+  @Override
+  public String getDescription() {
+    return "Java Flight Recorder session during the measurement iterations.";
+  }
+
+  /**
+   * Summarize the recordings of the forks of a benchmark.
+   * @param files Recordings of the forks.
+   * @return A map of the hot methods, allocations by class, GC pauses and contended monitors.
+   * @throws IOException if a recording cannot be read.
+   */
+  public static Map<Object, Object> summarize(List<File> files) throws IOException {
+    Map<String, Long> samples = new HashMap<String, Long>();
+    Map<String, Long> sampledAllocations = new HashMap<String, Long>();
+    Map<String, Long> tlabAllocations = new HashMap<String, Long>();
+    Map<String, long[]> monitors = new HashMap<String, long[]>();
+    long gcCount = 0L;
+    long gcPause = 0L;
+    long gcMaxPause = 0L;
+
+    List<Object> paths = new ArrayList<Object>();
+
+    for (File file: files) {
+      paths.add(file.getAbsolutePath());
+
+      try (RecordingFile recordingFile = new RecordingFile(file.toPath())) {
+        while (recordingFile.hasMoreEvents()) {
+          RecordedEvent event = recordingFile.readEvent();
+
+          switch (event.getEventType().getName()) {
+            case EXECUTION_SAMPLE:
+              RecordedStackTrace stackTrace = event.getStackTrace();
+              if (null != stackTrace && !stackTrace.getFrames().isEmpty()) {
+                RecordedFrame frame = stackTrace.getFrames().get(0);
+                add(samples, frame.getMethod().getType().getName() + "." + frame.getMethod().getName(), 1L);
+              }
+              break;
+            case ALLOCATION_SAMPLE:
+              add(sampledAllocations, className(event, "objectClass"), event.getLong("weight"));
+              break;
+            case ALLOCATION_IN_NEW_TLAB:
+            case ALLOCATION_OUTSIDE_TLAB:
+              add(tlabAllocations, className(event, "objectClass"), event.getLong("allocationSize"));
+              break;
+            case GARBAGE_COLLECTION:
+              long pause = event.getDuration("sumOfPauses").toNanos();
+              gcCount++;
+              gcPause += pause;
+              gcMaxPause = Math.max(gcMaxPause, pause);
+              break;
+            case MONITOR_ENTER:
+              String monitorClass = className(event, "monitorClass");
+              long[] contention = monitors.get(monitorClass);
+              if (null == contention) {
+                contention = new long[2];
+                monitors.put(monitorClass, contention);
+              }
+              contention[0]++;
+              contention[1] += event.getDuration().toNanos();
+              break;
+            default:
+              break;
+          }
+        }
+      }
+    }
+
+    // Recent JVMs sample allocations instead of recording every new TLAB
+    Map<String, Long> allocations = sampledAllocations.isEmpty() ? tlabAllocations : sampledAllocations;
+
+    Map<Object, Object> summary = new LinkedHashMap<Object, Object>();
+    summary.put("files", paths);
+    summary.put("hotMethods", top(samples, "method", "samples"));
+    summary.put("allocations", top(allocations, "class", "bytes"));
+
+    Map<Object, Object> gc = new LinkedHashMap<Object, Object>();
+    gc.put("count", gcCount);
+    gc.put("totalPause", gcPause);
+    gc.put("maxPause", gcMaxPause);
+    summary.put("gc", gc);
+
+    List<Map.Entry<String, long[]>> contended = new ArrayList<Map.Entry<String, long[]>>(monitors.entrySet());
+    contended.sort(new Comparator<Map.Entry<String, long[]>>() {
+      @Override
+      public int compare(Map.Entry<String, long[]> o1, Map.Entry<String, long[]> o2) {
+        return Long.compare(o2.getValue()[1], o1.getValue()[1]);
+      }
+    });
+    List<Object> locks = new ArrayList<Object>();
+    for (Map.Entry<String, long[]> entry: contended.subList(0, Math.min(TOP, contended.size()))) {
+      Map<Object, Object> lock = new LinkedHashMap<Object, Object>();
+      lock.put("class", entry.getKey());
+      lock.put("count", entry.getValue()[0]);
+      lock.put("time", entry.getValue()[1]);
+      locks.add(lock);
+    }
+    summary.put("locks", locks);
+
+    return summary;
+  }
+
+  private static String className(RecordedEvent event, String field) {
+    RecordedClass recordedClass = event.getClass(field);
+    return null == recordedClass ? "unknown" : recordedClass.getName();
+  }
+
+  private static void add(Map<String, Long> counts, String key, long value) {
+    Long count = counts.get(key);
+    counts.put(key, null == count ? value : count + value);
+  }
+
+  /**
+   * Keep the TOP largest counts, with their ratio to the total.
+   */
+  private static List<Object> top(Map<String, Long> counts, String keyName, String valueName) {
+    long total = 0L;
+    for (long count: counts.values()) {
+      total += count;
+    }
+
+    List<Map.Entry<String, Long>> sorted = new ArrayList<Map.Entry<String, Long>>(counts.entrySet());
+    sorted.sort(new Comparator<Map.Entry<String, Long>>() {
+      @Override
+      public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+        return Long.compare(o2.getValue(), o1.getValue());
+      }
+    });
+
+    List<Object> top = new ArrayList<Object>();
+    for (Map.Entry<String, Long> entry: sorted.subList(0, Math.min(TOP, sorted.size()))) {
+      Map<Object, Object> row = new LinkedHashMap<Object, Object>();
+      row.put(keyName, entry.getKey());
+      row.put(valueName, entry.getValue());
+      row.put("ratio", (double) entry.getValue() / total);
+      top.add(row);
+    }
+    return top;
+  }
+}
@@ -27,10 +27,14 @@ import io.warp10.script.WarpScriptStack;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.functions.CLEAR;
 import io.warp10.script.functions.SNAPSHOT;
+import org.HdrHistogram.Histogram;
 import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.results.BenchmarkResult;
+import org.openjdk.jmh.results.IterationResult;
 import org.openjdk.jmh.results.RunResult;
 import org.openjdk.jmh.results.format.ResultFormatFactory;
 import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Defaults;
 import org.openjdk.jmh.runner.Runner;
 import org.openjdk.jmh.runner.RunnerException;
 import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
@@ -38,21 +42,32 @@ import org.openjdk.jmh.runner.options.OptionsBuilder;
 import org.openjdk.jmh.runner.options.TimeValue;
 import org.openjdk.jmh.runner.options.VerboseMode;
 import org.openjdk.jmh.runner.options.WarmupMode;
+import org.openjdk.jmh.util.MultisetStatistics;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 public class JMH extends NamedWarpScriptFunction implements WarpScriptStackFunction {
@@ -61,7 +76,102 @@ public class JMH extends NamedWarpScriptFunction implements WarpScriptStackFunct
 
   public static final String JVM_ARG_PREFIX_BENCHCONF = "-Djmh.benchconfiguration.file=";
   public static final String JVM_ARG_PREFIX_WARPCONF = "-Djmh.warp10configuration.file=";
+  public static final String JVM_ARG_PROFILE = "-Djmh.warpscript.profile=true";
+  public static final String JVM_ARG_PREFIX_STOPFILE = "-Djmh.stop.file=";
+  public static final String JVM_ARG_PREFIX_LOAD_RATE = "-Djmh.load.rate=";
+  public static final String JVM_ARG_PREFIX_LOAD_DURATION = "-Djmh.load.duration=";
+  public static final String JVM_ARG_FOOTPRINT = "-Djmh.footprint=true";
+  public static final String JVM_ARG_CALIBRATE = "-Djmh.calibrate=true";
   public static final String MACRO_KEY = "macro";
+  public static final String PARAMS_KEY = "params";
+  public static final String NAME_KEY = "name";
+
+  // JMH parameter to run the forks in the warm JVMs of JMHWorkerPool
+  public static final String POOL_KEY = "pool";
+
+  // JMH parameter to also measure a no-op macro in the same forks and correct the scores by the overhead of the harness
+  public static final String CALIBRATE_KEY = "calibrate";
+
+  // Confidence level of the errors of calibrated scores, as computed by JMH
+  private static final double CALIBRATION_CONFIDENCE = 0.999D;
+
+  // JMH parameter giving the directory of the Java Flight Recorder recordings of the measurement iterations
+  public static final String JFR_KEY = "jfr";
+
+  // Configuration key of the directory under which the jfr parameter is resolved, recordings are refused if not set
+  public static final String CONF_JFR_DIR = "jmh.jfr.dir";
+
+  // JMH parameter, macro called with each iteration result or file to which they are appended, see StreamingOutputFormat
+  public static final String STREAM_KEY = "stream";
+
+  // Configuration key of the directory under which the stream parameter is resolved, files are refused if not set
+  public static final String CONF_STREAM_DIR = "jmh.stream.dir";
+
+  // JMH parameter, json to convert the JMH JSON results, gts to build the results and GTS of the scores directly, see WarpScriptResults
+  public static final String OUTPUT_KEY = "output";
+  public static final String OUTPUT_JSON = "json";
+  public static final String OUTPUT_GTS = "gts";
+
+  // JMH parameter, map of the rate in calls per second and duration of a fixed rate load benchmark, see MacroBenchmark.load
+  public static final String LOAD_KEY = "load";
+  public static final String LOAD_RATE = "rate";
+  public static final String LOAD_DURATION = "duration";
+  // Internal, directory of the histogram logs of the run, set by run
+  static final String LOAD_LOGS = "logs";
+
+  // JMH parameter, run the macro with MacroBenchmark.fastExec, through the interpreter with MemoryWarpScriptStack.exec, or both
+  public static final String EXEC_KEY = "exec";
+  public static final String EXEC_FAST = "fast";
+  public static final String EXEC_INTERPRETER = "interpreter";
+  public static final String EXEC_BOTH = "both";
+
+  // JMH parameters, arguments and path of the JVM of the forks
+  public static final String JVM_ARGS_KEY = "jvmArgs";
+  public static final String JVM_KEY = "jvm";
+
+  /**
+   * Allow the jvm and jvmArgs parameters, which can run any command on the Warp 10 host, false by default
+   */
+  public static final String CONF_JVM_ALLOW = "jmh.jvm.allow";
+
+  // JMH parameter, map of names to JMH parameters overriding the others, the benchmarks being run once per entry
+  public static final String MATRIX_KEY = "matrix";
+
+  // JMH parameter, map of the target error, confidence, time budget, window and stability of adaptive runs, see AdaptiveRun
+  public static final String ADAPTIVE_KEY = "adaptive";
+  public static final String ADAPTIVE_ERROR = "error";
+  public static final String ADAPTIVE_CONFIDENCE = "confidence";
+  public static final String ADAPTIVE_BUDGET = "budget";
+  public static final String ADAPTIVE_WINDOW = "window";
+  public static final String ADAPTIVE_STABILITY = "stability";
+
+  // JMH parameter to also measure the heap retained by what the macro leaves on the stack, see FootprintProfiler
+  public static final String FOOTPRINT_KEY = "footprint";
+
+  // JMH parameter, number of fresh forks timing the phases of a cold start of the library and the macro, see ColdStartProfiler
+  public static final String COLDSTART_KEY = "coldstart";
+
+  // Maximum number of measurement iterations of a fork of an adaptive run
+  public static final long ADAPTIVE_MAX_ITERATIONS = 10000L;
+
+  // Keys added to the JMH results
+  public static final String KEY_BENCH_CONFIGURATION = "benchConfiguration";
+  public static final String KEY_BENCH_PARAMS = "benchParams";
+  public static final String KEY_BENCH_NAME = "benchName";
+  public static final String KEY_CALIBRATION = "calibration";
+  public static final String KEY_WARPSCRIPT_PROFILE = "warpscriptProfile";
+  public static final String KEY_JFR = "jfr";
+  public static final String KEY_LOAD = "load";
+  public static final String KEY_COMPLEXITY = "complexity";
+  public static final String KEY_COMPARISON = "comparison";
+  public static final String KEY_INTERPRETER = "interpreter";
+  public static final String KEY_MATRIX = "matrix";
+  public static final String KEY_ADAPTIVE = "adaptive";
+  public static final String KEY_FOOTPRINT = "footprint";
+  public static final String KEY_COLDSTART = "coldstart";
+
+  // Name of the JMH parameter holding the index of the bench configuration and combination of parameters, see BenchRun
+  public static final String COMBINATION_PARAM = "combination";
 
   // Setup and teardown calls, see http://tutorials.jenkov.com/java-performance/jmh.html#state-setup-and-teardown
   public static final String PRETRIAL_MACRO = "pretrial";
@@ -71,12 +181,53 @@ public class JMH extends NamedWarpScriptFunction implements WarpScriptStackFunct
   public static final String POSTITERATION_MACRO = "postiteration";
   public static final String POSTTRIAL_MACRO = "posttrial";
 
+  // Macros run once per fork on a stack shared by all the threads, the variables they define are visible by all the threads
+  public static final String SHARED_PRETRIAL_MACRO = "sharedpretrial";
+  public static final String SHARED_POSTTRIAL_MACRO = "sharedposttrial";
+
+  // Batched benchmark, the input macro is run batch times at the start of each iteration to fill a ring of inputs
+  public static final String INPUT_MACRO = "input";
+  public static final String BATCH_KEY = "batch";
+
+  // Asymmetric benchmark, writer and reader macros run concurrently in the same group of threads
+  public static final String WRITER_MACRO = "writer";
+  public static final String READER_MACRO = "reader";
+
+  // Map of names to macros run once, whose values are cached and stored in variables in the forks, see JMHFixtures
+  public static final String FIXTURES_KEY = "fixtures";
+
+  // Store used by the stacks of the forks, 'memory' or the name of a BenchStore class, seeded from the dataset map
+  public static final String STORE_KEY = "store";
+  public static final String DATASET_KEY = "dataset";
+
+  // Complexity benchmark, the generator macro builds the input of the macro from each size, swept as the size parameter, see Complexity
+  public static final String GENERATOR_MACRO = "generator";
+  public static final String SIZES_KEY = "sizes";
+  public static final String PROJECTION_KEY = "projection";
+  public static final String SIZE_PARAM = "size";
+
+  // A/B comparison, both macros run in the same forks in a random order of iterations, see ComparisonProfiler
+  public static final String A_MACRO = "A";
+  public static final String B_MACRO = "B";
+
   public JMH(String name) {
     super(name);
   }
 
   @Override
   public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    Map<Object, Object> jmhConf = popJMHConfiguration(stack);
+    List<Map<Object, Object>> benchConfigurations = popBenchConfigurations(stack);
+
+    stack.push(report(run(benchConfigurations, jmhConf, stack), benchConfigurations));
+
+    return stack;
+  }
+
+  /**
+   * Pop the map of JMH parameters from the top of the stack.
+   */
+  protected Map<Object, Object> popJMHConfiguration(WarpScriptStack stack) throws WarpScriptException {
     // Get parameters override Map
     Object top = stack.pop();
 
@@ -84,34 +235,594 @@ public class JMH extends NamedWarpScriptFunction implements WarpScriptStackFunct
       throw new WarpScriptException(getName() + "expects a Map of JHM parameters.");
     }
 
-    Map<Object, Object> jmhConf = (Map) top;
+    return (Map) top;
+  }
 
-    // Get Macro to benchmark or Map of macros
-    top = stack.pop();
+  /**
+   * Pop the bench configurations from the top of the stack and check them. The top of the stack is either a macro to
+   * benchmark, a map of macros, a map of named macros or maps of macros, or a list of maps of macros with a name.
+   * @return The list of bench configurations, each one being a map of macros. They contain a name if they were named.
+   */
+  protected List<Map<Object, Object>> popBenchConfigurations(WarpScriptStack stack) throws WarpScriptException {
+    // Get Macro to benchmark, Map of macros or named Maps of macros
+    Object top = stack.pop();
 
-    Map<Object, Object> benchConfiguration;
+    List<Map<Object, Object>> benchConfigurations = new ArrayList<Map<Object, Object>>();
 
     if (top instanceof WarpScriptStack.Macro) {
-      benchConfiguration = new HashMap<Object, Object>();
+      Map<Object, Object> benchConfiguration = new HashMap<Object, Object>();
       benchConfiguration.put(MACRO_KEY, top);
-    } else if (top instanceof Map) {
-      benchConfiguration = (Map) top;
-      if (!benchConfiguration.containsKey(MACRO_KEY)) {
-        throw new WarpScriptException(getName() + "expects the map of macros to contain at least a '" + MACRO_KEY + "' key.");
+      benchConfigurations.add(benchConfiguration);
+    } else if (top instanceof Map && (isBenchConfiguration((Map) top) || !Collections.disjoint(((Map) top).keySet(), CONFIGURATION_KEYS))) {
+      benchConfigurations.add((Map) top);
+    } else if (top instanceof Map && !((Map) top).isEmpty()) {
+      for (Map.Entry<Object, Object> entry: ((Map<Object, Object>) top).entrySet()) {
+        if (!(entry.getKey() instanceof String)) {
+          throw new WarpScriptException(getName() + " expects the names of the bench configurations to be Strings.");
+        }
+        Map<Object, Object> benchConfiguration = new HashMap<Object, Object>();
+        if (entry.getValue() instanceof WarpScriptStack.Macro) {
+          benchConfiguration.put(MACRO_KEY, entry.getValue());
+        } else if (entry.getValue() instanceof Map) {
+          benchConfiguration.putAll((Map) entry.getValue());
+        } else {
+          throw new WarpScriptException(getName() + " expects named bench configurations to be Macros or maps of macros.");
+        }
+        benchConfiguration.put(NAME_KEY, entry.getKey());
+        benchConfigurations.add(benchConfiguration);
+      }
+    } else if (top instanceof List && !((List) top).isEmpty()) {
+      for (Object benchConfiguration: (List) top) {
+        if (!(benchConfiguration instanceof Map) || !(((Map) benchConfiguration).get(NAME_KEY) instanceof String)) {
+          throw new WarpScriptException(getName() + " expects a list of maps of macros with a '" + NAME_KEY + "' key.");
+        }
+        benchConfigurations.add((Map) benchConfiguration);
       }
     } else {
-      throw new WarpScriptException(getName() + "expects a Macro or a map of macros.");
+      throw new WarpScriptException(getName() + "expects a Macro, a map of macros, a map of named maps of macros or a list of maps of macros.");
+    }
+
+    for (int i = 0; i < benchConfigurations.size(); i++) {
+      // Work on copies, the configurations are completed below and before being run
+      Map<Object, Object> benchConfiguration = new HashMap<Object, Object>(benchConfigurations.get(i));
+      if (benchConfiguration.containsKey(A_MACRO) || benchConfiguration.containsKey(B_MACRO)) {
+        checkComparison(benchConfiguration);
+      }
+      benchConfigurations.set(i, benchConfiguration);
+    }
+
+    Set<Object> names = new HashSet<Object>();
+
+    for (Map<Object, Object> benchConfiguration: benchConfigurations) {
+      if (!isBenchConfiguration(benchConfiguration)) {
+        throw new WarpScriptException(getName() + "expects the map of macros to contain at least a '" + MACRO_KEY + "' key or both '" + WRITER_MACRO + "' and '" + READER_MACRO + "' keys.");
+      }
+
+      // All the configurations are run by the same JMH benchmark method
+      if (benchConfiguration.containsKey(MACRO_KEY) != benchConfigurations.get(0).containsKey(MACRO_KEY)) {
+        throw new WarpScriptException(getName() + " cannot mix bench configurations with a '" + MACRO_KEY + "' key and with '" + WRITER_MACRO + "' and '" + READER_MACRO + "' keys.");
+      }
+
+      // All the configurations share the same operationsPerInvocation
+      if (!Objects.equals(benchConfiguration.get(BATCH_KEY), benchConfigurations.get(0).get(BATCH_KEY))) {
+        throw new WarpScriptException(getName() + " expects all the bench configurations to have the same '" + BATCH_KEY + "'.");
+      }
+
+      if (benchConfiguration.containsKey(INPUT_MACRO) || benchConfiguration.containsKey(BATCH_KEY)) {
+        if (!(benchConfiguration.get(INPUT_MACRO) instanceof WarpScriptStack.Macro) || !(benchConfiguration.get(BATCH_KEY) instanceof Long) || (Long) benchConfiguration.get(BATCH_KEY) < 1) {
+          throw new WarpScriptException(getName() + " expects batched bench configurations to have an '" + INPUT_MACRO + "' macro and a strictly positive '" + BATCH_KEY + "' Long.");
+        }
+        if (!benchConfiguration.containsKey(MACRO_KEY)) {
+          throw new WarpScriptException(getName() + " expects batched bench configurations to have a '" + MACRO_KEY + "' macro.");
+        }
+      }
+
+      if (benchConfiguration.containsKey(NAME_KEY) && !names.add(benchConfiguration.get(NAME_KEY))) {
+        throw new WarpScriptException(getName() + " expects the names of the bench configurations to be unique.");
+      }
+
+      if (benchConfiguration.containsKey(FIXTURES_KEY)) {
+        if (!(benchConfiguration.get(FIXTURES_KEY) instanceof Map)) {
+          throw new WarpScriptException(getName() + " expects '" + FIXTURES_KEY + "' to be a map of macros, keyed by String.");
+        }
+        for (Map.Entry<Object, Object> fixture: ((Map<Object, Object>) benchConfiguration.get(FIXTURES_KEY)).entrySet()) {
+          if (!(fixture.getKey() instanceof String) || !(fixture.getValue() instanceof WarpScriptStack.Macro)) {
+            throw new WarpScriptException(getName() + " expects '" + FIXTURES_KEY + "' to be a map of macros, keyed by String.");
+          }
+        }
+      }
+
+      if (benchConfiguration.containsKey(STORE_KEY) && !(benchConfiguration.get(STORE_KEY) instanceof String)) {
+        throw new WarpScriptException(getName() + " expects '" + STORE_KEY + "' to be '" + InMemoryBenchStore.NAME + "' or the name of a class.");
+      }
+      if (benchConfiguration.containsKey(DATASET_KEY) && !(benchConfiguration.get(DATASET_KEY) instanceof Map)) {
+        throw new WarpScriptException(getName() + " expects '" + DATASET_KEY + "' to be a map.");
+      }
+
+      if (benchConfiguration.containsKey(GENERATOR_MACRO)) {
+        checkComplexity(benchConfiguration);
+      }
+
+      checkParams(benchConfiguration.get(PARAMS_KEY));
+    }
+
+    return benchConfigurations;
+  }
+
+  /**
+   * Check the macros of an A/B comparison. The macro key is set to A, so the comparison is run by the same benchmark
+   * method as a single macro.
+   */
+  private void checkComparison(Map<Object, Object> benchConfiguration) throws WarpScriptException {
+    if (!(benchConfiguration.get(A_MACRO) instanceof WarpScriptStack.Macro) || !(benchConfiguration.get(B_MACRO) instanceof WarpScriptStack.Macro)) {
+      throw new WarpScriptException(getName() + " expects both '" + A_MACRO + "' and '" + B_MACRO + "' to be macros.");
+    }
+    if (benchConfiguration.containsKey(MACRO_KEY) || benchConfiguration.containsKey(WRITER_MACRO) || benchConfiguration.containsKey(READER_MACRO) || benchConfiguration.containsKey(BATCH_KEY)) {
+      throw new WarpScriptException(getName() + " cannot compare '" + A_MACRO + "' and '" + B_MACRO + "' with a '" + MACRO_KEY + "', '" + WRITER_MACRO + "', '" + READER_MACRO + "' or '" + BATCH_KEY + "'.");
+    }
+    benchConfiguration.put(MACRO_KEY, benchConfiguration.get(A_MACRO));
+  }
+
+  /**
+   * Check the parameters to sweep, so combinations can compute their product.
+   */
+  private void checkParams(Object params) throws WarpScriptException {
+    if (null == params) {
+      return;
+    }
+    if (!(params instanceof Map)) {
+      throw new WarpScriptException(getName() + " expects '" + PARAMS_KEY + "' to be a map of non-empty lists, keyed by String.");
+    }
+    for (Map.Entry<Object, Object> param: ((Map<Object, Object>) params).entrySet()) {
+      if (!(param.getKey() instanceof String) || !(param.getValue() instanceof List) || ((List) param.getValue()).isEmpty()) {
+        throw new WarpScriptException(getName() + " expects '" + PARAMS_KEY + "' to be a map of non-empty lists, keyed by String.");
+      }
+    }
+  }
+
+  /**
+   * Check the keys of a complexity benchmark and sweep its sizes as the size parameter.
+   */
+  private void checkComplexity(Map<Object, Object> benchConfiguration) throws WarpScriptException {
+    if (!(benchConfiguration.get(GENERATOR_MACRO) instanceof WarpScriptStack.Macro) || !benchConfiguration.containsKey(MACRO_KEY) || benchConfiguration.containsKey(BATCH_KEY)) {
+      throw new WarpScriptException(getName() + " expects a '" + GENERATOR_MACRO + "' macro to be given with a '" + MACRO_KEY + "' macro, without '" + BATCH_KEY + "'.");
+    }
+
+    if (!(benchConfiguration.get(SIZES_KEY) instanceof List) || ((List) benchConfiguration.get(SIZES_KEY)).size() < 2) {
+      throw new WarpScriptException(getName() + " expects '" + SIZES_KEY + "' to be a list of at least 2 strictly positive Longs.");
+    }
+    for (Object size: (List) benchConfiguration.get(SIZES_KEY)) {
+      if (!(size instanceof Long) || (Long) size < 1) {
+        throw new WarpScriptException(getName() + " expects '" + SIZES_KEY + "' to be a list of at least 2 strictly positive Longs.");
+      }
+    }
+
+    if (benchConfiguration.containsKey(PROJECTION_KEY) && !(benchConfiguration.get(PROJECTION_KEY) instanceof Long)) {
+      throw new WarpScriptException(getName() + " expects '" + PROJECTION_KEY + "' to be a Long.");
+    }
+
+    Map<Object, Object> params = new HashMap<Object, Object>();
+    if (benchConfiguration.get(PARAMS_KEY) instanceof Map) {
+      params.putAll((Map) benchConfiguration.get(PARAMS_KEY));
+    }
+    if (params.containsKey(SIZE_PARAM)) {
+      throw new WarpScriptException(getName() + " cannot sweep a '" + SIZE_PARAM + "' parameter with a '" + GENERATOR_MACRO + "'.");
+    }
+    params.put(SIZE_PARAM, benchConfiguration.get(SIZES_KEY));
+    benchConfiguration.put(PARAMS_KEY, params);
+  }
+
+  // Keys of a bench configuration, which cannot be names of bench configurations
+  private static final Set<String> CONFIGURATION_KEYS = new HashSet<String>(Arrays.asList(MACRO_KEY, PARAMS_KEY, WRITER_MACRO, READER_MACRO,
+      PRETRIAL_MACRO, PREITERATION_MACRO, PREINVOCATION_MACRO, POSTINVOCATION_MACRO, POSTITERATION_MACRO, POSTTRIAL_MACRO,
+      SHARED_PRETRIAL_MACRO, SHARED_POSTTRIAL_MACRO, INPUT_MACRO, BATCH_KEY, FIXTURES_KEY,
+      STORE_KEY, DATASET_KEY, GENERATOR_MACRO, SIZES_KEY, PROJECTION_KEY, A_MACRO, B_MACRO));
+
+  private static boolean isBenchConfiguration(Map<Object, Object> map) {
+    return map.containsKey(MACRO_KEY) || (map.containsKey(WRITER_MACRO) && map.containsKey(READER_MACRO)) || (map.containsKey(A_MACRO) && map.containsKey(B_MACRO));
+  }
+
+  /**
+   * Build what is pushed on the stack: the list of results, or a map of lists of results keyed by name if the bench
+   * configurations are named.
+   */
+  protected Object report(List results, List<Map<Object, Object>> benchConfigurations) {
+    // Reports of a matrix run are keyed by the name of the entry of the matrix
+    if (!results.isEmpty() && ((Map) results.get(0)).containsKey(KEY_MATRIX)) {
+      Map<Object, List<Object>> resultsByEntry = new LinkedHashMap<Object, List<Object>>();
+      for (Object result: results) {
+        Object entry = ((Map) result).get(KEY_MATRIX);
+        if (!resultsByEntry.containsKey(entry)) {
+          resultsByEntry.put(entry, new ArrayList<Object>());
+        }
+        resultsByEntry.get(entry).add(result);
+      }
+
+      Map<Object, Object> reportsByEntry = new LinkedHashMap<Object, Object>();
+      for (Map.Entry<Object, List<Object>> entry: resultsByEntry.entrySet()) {
+        List<Object> entryResults = entry.getValue();
+        for (Object result: entryResults) {
+          ((Map) result).remove(KEY_MATRIX);
+        }
+        reportsByEntry.put(entry.getKey(), report(entryResults, benchConfigurations));
+        for (Object result: entryResults) {
+          ((Map) result).put(KEY_MATRIX, entry.getKey());
+        }
+      }
+      return reportsByEntry;
+    }
+
+    if (!benchConfigurations.get(0).containsKey(NAME_KEY)) {
+      return results;
+    }
+
+    Map<Object, Object> resultsByName = new LinkedHashMap<Object, Object>();
+    for (Map<Object, Object> benchConfiguration: benchConfigurations) {
+      resultsByName.put(benchConfiguration.get(NAME_KEY), new ArrayList<Object>());
+    }
+    for (Object result: results) {
+      ((List) resultsByName.get(((Map) result).get(KEY_BENCH_NAME))).add(result);
+    }
+
+    return resultsByName;
+  }
+
+  /**
+   * Check the JMH parameters without running anything, so errors are reported before a benchmark is scheduled.
+   */
+  protected void checkJMHConfiguration(Map<Object, Object> jmhConf) throws WarpScriptException {
+    overrideParameters(new OptionsBuilder(), new ArrayList<String>(), jmhConf);
+  }
+
+  /**
+   * Run the benchmarks described by the given bench configurations and JMH parameters, in a single JMH run.
+   * @param benchConfigurations List of maps of macros, as returned by popBenchConfigurations.
+   * @param jmhConf Map of JMH parameters.
+   * @return The list of results, one per bench configuration and combination of parameters.
+   * @throws WarpScriptException if the benchmark cannot be run.
+   */
+  public List run(List<Map<Object, Object>> benchConfigurations, Map<Object, Object> jmhConf) throws WarpScriptException {
+    return run(benchConfigurations, jmhConf, null);
+  }
+
+  /**
+   * Run the benchmarks described by the given bench configurations and JMH parameters, in a single JMH run.
+   * @param benchConfigurations List of maps of macros, as returned by popBenchConfigurations.
+   * @param jmhConf Map of JMH parameters.
+   * @param stack Stack on which the stream macro is called, null if the benchmark is not run by a WarpScript request.
+   * @return The list of results, one per bench configuration and combination of parameters.
+   * @throws WarpScriptException if the benchmark cannot be run.
+   */
+  public List run(List<Map<Object, Object>> benchConfigurations, Map<Object, Object> jmhConf, WarpScriptStack stack) throws WarpScriptException {
+    return run(benchConfigurations, jmhConf, stack, null);
+  }
+
+  /**
+   * Run the benchmarks described by the given bench configurations and JMH parameters, in a single JMH run.
+   * @param benchConfigurations List of maps of macros, as returned by popBenchConfigurations.
+   * @param jmhConf Map of JMH parameters.
+   * @param stack Stack on which the stream macro is called, null if the benchmark is not run by a WarpScript request.
+   * @param cancelFile File whose creation stops the forks at their next iteration, see JMHJobScheduler.cancel. May be null.
+   * @return The list of results, one per bench configuration and combination of parameters.
+   * @throws WarpScriptException if the benchmark cannot be run or was cancelled.
+   */
+  public List run(List<Map<Object, Object>> benchConfigurations, Map<Object, Object> jmhConf, WarpScriptStack stack, File cancelFile) throws WarpScriptException {
+    // Run the benchmarks once per entry of the matrix, each result being tagged with the name of its entry
+    if (jmhConf.get(MATRIX_KEY) instanceof Map) {
+      List<Object> results = new ArrayList<Object>();
+      for (Map.Entry<Object, Object> entry: ((Map<Object, Object>) jmhConf.get(MATRIX_KEY)).entrySet()) {
+        if (!(entry.getKey() instanceof String) || !(entry.getValue() instanceof Map)) {
+          throw new WarpScriptException(getName() + " expects '" + MATRIX_KEY + "' to be a map of JMH parameters, keyed by String.");
+        }
+
+        checkCancelled(cancelFile);
+
+        Map<Object, Object> entryConf = new LinkedHashMap<Object, Object>(jmhConf);
+        entryConf.remove(MATRIX_KEY);
+        entryConf.putAll((Map) entry.getValue());
+
+        for (Object result: run(benchConfigurations, entryConf, stack, cancelFile)) {
+          ((Map) result).put(KEY_MATRIX, entry.getKey());
+          results.add(result);
+        }
+      }
+      return results;
+    }
+
+    List<BenchRun> benchRuns = benchRuns(benchConfigurations);
+
+    StreamingOutputFormat.Sink sink = null;
+    if (jmhConf.get(STREAM_KEY) instanceof WarpScriptStack.Macro) {
+      if (null == stack) {
+        throw new WarpScriptException(getName() + " cannot call a '" + STREAM_KEY + "' macro when the benchmark is not run by a request, give a file instead.");
+      }
+      sink = new StreamingOutputFormat.MacroSink(stack, (WarpScriptStack.Macro) jmhConf.get(STREAM_KEY));
+    } else if (jmhConf.get(STREAM_KEY) instanceof String) {
+      sink = new StreamingOutputFormat.FileSink(resolve(CONF_STREAM_DIR, STREAM_KEY, (String) jmhConf.get(STREAM_KEY)));
     }
 
     // Default to clear the stack after each invocation of the macro
-    if (!benchConfiguration.containsKey(POSTINVOCATION_MACRO)) {
-      WarpScriptStack.Macro clearMacro = new WarpScriptStack.Macro();
-      clearMacro.add(CLEAR);
-      benchConfiguration.put(POSTINVOCATION_MACRO, clearMacro);
+    for (Map<Object, Object> benchConfiguration: benchConfigurations) {
+      if (!benchConfiguration.containsKey(POSTINVOCATION_MACRO)) {
+        WarpScriptStack.Macro clearMacro = new WarpScriptStack.Macro();
+        clearMacro.add(CLEAR);
+        benchConfiguration.put(POSTINVOCATION_MACRO, clearMacro);
+      }
+    }
+
+    // Each run records in its own directory so the recordings of previous runs are not summarized
+    File jfrDir = null;
+    if (jmhConf.get(JFR_KEY) instanceof String) {
+      jfrDir = new File(resolve(CONF_JFR_DIR, JFR_KEY, (String) jmhConf.get(JFR_KEY)), "jmh-" + System.currentTimeMillis());
+      jmhConf = new HashMap<Object, Object>(jmhConf);
+      jmhConf.put(JFR_KEY, jfrDir.getAbsolutePath());
+    }
+
+    // The forks of load benchmarks log their histograms in a directory of this run, see LoadProfiler
+    File loadDir = null;
+    if (jmhConf.get(LOAD_KEY) instanceof Map) {
+      try {
+        loadDir = Files.createTempDirectory("jmh-load").toFile();
+      } catch (IOException ioe) {
+        throw new WarpScriptException(getName() + " could not create temporary directory.", ioe);
+      }
+      Map<Object, Object> load = new HashMap<Object, Object>((Map) jmhConf.get(LOAD_KEY));
+      load.put(LOAD_LOGS, loadDir.getAbsolutePath());
+      jmhConf = new HashMap<Object, Object>(jmhConf);
+      jmhConf.put(LOAD_KEY, load);
+    }
+
+    // Keep the cached fixtures of this run, those missing are built by the forks
+    JMHFixtures.prepare(benchConfigurations);
+
+    try {
+      List runResultsList;
+
+      boolean pooled = Boolean.TRUE.equals(jmhConf.get(POOL_KEY));
+      if (pooled) {
+        if (!JMHWorkerPool.getInstance().isEnabled()) {
+          throw new WarpScriptException(getName() + " cannot use the pool of JMH workers, set '" + JMHWorkerPool.CONF_SIZE + "' to enable it.");
+        }
+        String restriction = poolRestriction(jmhConf, sink);
+        if (null != restriction) {
+          throw new WarpScriptException(getName() + " cannot " + restriction);
+        }
+      } else if (!jmhConf.containsKey(POOL_KEY) && benchConfigurations.size() > 1) {
+        // JMH starts new forks for each configuration, share their startup in the warm workers unless told otherwise
+        pooled = !Long.valueOf(0L).equals(jmhConf.get("forks")) && null == poolRestriction(jmhConf, sink) && JMHWorkerPool.getInstance().isEnabled();
+      }
+
+      if (pooled) {
+        runResultsList = convert(JMHWorkerPool.getInstance().run(this, benchConfigurations, jmhConf, cancelFile), benchConfigurations, jmhConf, null);
+      } else {
+        runResultsList = runResults(benchConfigurations, jmhConf, sink, cancelFile);
+      }
+
+      calibrate(runResultsList);
+      compareInterpreter(runResultsList);
+      Complexity.fit(runResultsList, benchConfigurations, benchRuns);
+      compare(runResultsList);
+      summarizeProfile(runResultsList);
+      summarizeLoad(runResultsList, loadDir);
+      summarizeFootprint(runResultsList);
+      summarizeColdStart(runResultsList);
+      if (null != jfrDir) {
+        summarizeRecordings(runResultsList, jfrDir);
+      }
+
+      return tag(runResultsList, benchConfigurations, benchRuns);
+    } finally {
+      if (null != loadDir) {
+        File[] logs = loadDir.listFiles();
+        if (null != logs) {
+          for (File log: logs) {
+            log.delete();
+          }
+        }
+        loadDir.delete();
+      }
+    }
+  }
+
+  /**
+   * @return Why the benchmark cannot be run in the pool of JMH workers, null if it can.
+   */
+  private static String poolRestriction(Map<Object, Object> jmhConf, StreamingOutputFormat.Sink sink) {
+    if (null != sink) {
+      return "stream the results of benchmarks run in the pool of JMH workers.";
+    }
+    if (jmhConf.containsKey(JVM_KEY) || jmhConf.containsKey(JVM_ARGS_KEY) || jmhConf.containsKey("mem")) {
+      return "set the JVM of benchmarks run in the pool of JMH workers, set '" + JMHWorkerPool.CONF_JVMARGS + "' instead.";
+    }
+    if (jmhConf.containsKey("warmupForks")) {
+      return "run warmup forks in the pool of JMH workers.";
+    }
+    if (jmhConf.containsKey(ADAPTIVE_KEY)) {
+      return "run '" + ADAPTIVE_KEY + "' benchmarks in the pool of JMH workers.";
     }
+    if (jmhConf.containsKey(COLDSTART_KEY)) {
+      return "run '" + COLDSTART_KEY + "' benchmarks in the pool of JMH workers, their JVMs are warm.";
+    }
+    return null;
+  }
+
+  /**
+   * Run JMH on the given bench configurations, whose defaults are already set, and return its raw results. This is what
+   * a pooled JMHWorker runs, the pool merging the results of its workers before they are converted.
+   * @param benchConfigurations List of maps of macros.
+   * @param jmhConf Map of JMH parameters.
+   * @param cancelFile File whose creation stops the forks at their next iteration, may be null.
+   * @return The JMH results.
+   * @throws WarpScriptException if the benchmark cannot be run or was cancelled.
+   */
+  Collection<RunResult> runForks(List<Map<Object, Object>> benchConfigurations, Map<Object, Object> jmhConf, File cancelFile) throws WarpScriptException {
+    return runJMH(benchConfigurations, jmhConf, null, null, cancelFile);
+  }
+
+  /**
+   * Run JMH on the given bench configurations, whose defaults are already set, and return its results without any
+   * post-processing.
+   * @param benchConfigurations List of maps of macros.
+   * @param jmhConf Map of JMH parameters.
+   * @param sink Receiver of the iteration results as they are measured, may be null. If it stops the run, the results
+   *             of the iterations measured so far are returned.
+   * @param cancelFile File whose creation stops the forks at their next iteration, may be null.
+   * @return The JMH results converted from JSON.
+   * @throws WarpScriptException if the benchmark cannot be run or was cancelled.
+   */
+  public List runResults(List<Map<Object, Object>> benchConfigurations, Map<Object, Object> jmhConf, StreamingOutputFormat.Sink sink, File cancelFile) throws WarpScriptException {
+    Collection<RunResult> runResults;
+    Map<Integer, Map<Object, Object>> adaptiveSummaries = null;
+    if (jmhConf.containsKey(ADAPTIVE_KEY)) {
+      adaptiveSummaries = new HashMap<Integer, Map<Object, Object>>();
+      runResults = runAdaptive(benchConfigurations, jmhConf, sink, adaptiveSummaries, cancelFile);
+    } else {
+      runResults = runJMH(benchConfigurations, jmhConf, sink, null, cancelFile);
+    }
+
+    return convert(runResults, benchConfigurations, jmhConf, adaptiveSummaries);
+  }
+
+  /**
+   * Convert JMH results to GTS or to the objects of their JSON form, depending on the output parameter.
+   * @param runResults The JMH results.
+   * @param benchConfigurations List of maps of macros.
+   * @param jmhConf Map of JMH parameters.
+   * @param adaptiveSummaries Summary of each adaptive run by combination, may be null.
+   * @return The converted results.
+   * @throws WarpScriptException if the results cannot be converted.
+   */
+  private List convert(Collection<RunResult> runResults, List<Map<Object, Object>> benchConfigurations, Map<Object, Object> jmhConf, Map<Integer, Map<Object, Object>> adaptiveSummaries) throws WarpScriptException {
+    List results;
+    if (OUTPUT_GTS.equals(jmhConf.get(OUTPUT_KEY))) {
+      results = WarpScriptResults.convert(runResults, benchConfigurations, benchRuns(benchConfigurations));
+    } else {
+      // Write results
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      final String utf8 = StandardCharsets.UTF_8.name();
+      try (PrintStream ps = new PrintStream(baos, true, utf8)) {
+        ResultFormatFactory.getInstance(ResultFormatType.JSON, ps).writeOut(runResults);
+        String json = baos.toString(utf8);
+        results = (List) JsonUtils.jsonToObject(json);
+      } catch (UnsupportedEncodingException e) {
+        // cannot happen
+        throw new WarpScriptException(getName() + " failed.", e);
+      } catch (JsonProcessingException e) {
+        throw new WarpScriptException(getName() + " failed because the JMH JSON is invalid.", e);
+      }
+    }
+
+    if (null != adaptiveSummaries) {
+      for (Object result: results) {
+        Object combination = ((Map) ((Map) result).get("params")).get(COMBINATION_PARAM);
+        ((Map) result).put(KEY_ADAPTIVE, adaptiveSummaries.get(Integer.parseInt(combination.toString())));
+      }
+    }
+
+    return results;
+  }
+
+  /**
+   * Run each bench configuration and combination of parameters one fork at a time. Each fork only runs measurement
+   * iterations, until the end of its warmup is detected and its scores reach the target error or its share of the
+   * budget is spent, see AdaptiveRun.
+   * @param benchConfigurations List of maps of macros.
+   * @param jmhConf Map of JMH parameters, with the adaptive parameter.
+   * @param sink Must be null, the results of adaptive runs cannot be streamed.
+   * @param summaries Filled with the summary of each adaptive run, by index of bench configuration and combination of parameters.
+   * @param cancelFile File whose creation stops the forks at their next iteration, may be null.
+   * @return The results of the steady iterations of the forks.
+   * @throws WarpScriptException if the benchmark cannot be run or was cancelled.
+   */
+  private Collection<RunResult> runAdaptive(List<Map<Object, Object>> benchConfigurations, Map<Object, Object> jmhConf, StreamingOutputFormat.Sink sink, Map<Integer, Map<Object, Object>> summaries, File cancelFile) throws WarpScriptException {
+    checkJMHConfiguration(jmhConf);
+
+    if (null != sink) {
+      throw new WarpScriptException(getName() + " cannot stream the results of '" + ADAPTIVE_KEY + "' benchmarks.");
+    }
+    for (String key: new String[] {"warmupIterations", "warmupTime", "warmupBatchSize", "warmupForks", "warmupMode", "measurementIterations", LOAD_KEY}) {
+      if (jmhConf.containsKey(key)) {
+        throw new WarpScriptException(getName() + " cannot set '" + key + "' of '" + ADAPTIVE_KEY + "' benchmarks, their iterations are adaptive.");
+      }
+    }
+    // Each mode would be a benchmark of its own, while the forks of a combination are run for a single one
+    if (jmhConf.containsKey("mode") && Mode.All == Mode.deepValueOf((String) jmhConf.get("mode"))) {
+      throw new WarpScriptException(getName() + " cannot run '" + ADAPTIVE_KEY + "' benchmarks with mode '" + Mode.All.shortLabel() + "'.");
+    }
+    if (benchmarks(benchConfigurations, jmhConf).size() > 1 || Boolean.TRUE.equals(jmhConf.get(CALIBRATE_KEY))) {
+      throw new WarpScriptException(getName() + " cannot run '" + ADAPTIVE_KEY + "' benchmarks with '" + CALIBRATE_KEY + "' or with '" + EXEC_KEY + "' set to '" + EXEC_BOTH + "'.");
+    }
+
+    Map<Object, Object> adaptive = (Map) jmhConf.get(ADAPTIVE_KEY);
+    long budgetNs = TimeValue.valueOf((String) adaptive.getOrDefault(ADAPTIVE_BUDGET, AdaptiveRun.DEFAULT_BUDGET)).convertTo(TimeUnit.NANOSECONDS);
+    long window = ((Number) adaptive.getOrDefault(ADAPTIVE_WINDOW, AdaptiveRun.DEFAULT_WINDOW)).longValue();
+    String measurementTime = (String) jmhConf.getOrDefault("measurementTime", "1 s");
+    long iterationNs = Math.max(1L, TimeValue.valueOf(measurementTime).convertTo(TimeUnit.NANOSECONDS));
+    long forks = (Long) jmhConf.getOrDefault("forks", (long) Defaults.MEASUREMENT_FORKS);
+    // With forks set to 0, a single adaptive run is done in this JVM
+    long runs = Math.max(1L, forks);
+
+    List<RunResult> results = new ArrayList<RunResult>();
+
+    for (int combination = 0; combination < benchRuns(benchConfigurations).size(); combination++) {
+      long start = System.nanoTime();
+      List<AdaptiveRun> adaptiveRuns = new ArrayList<AdaptiveRun>();
+      List<BenchmarkResult> benchmarkResults = new ArrayList<BenchmarkResult>();
+      RunResult last = null;
+
+      for (long fork = 0; fork < runs; fork++) {
+        checkCancelled(cancelFile);
+
+        // Share what is left of the budget among the remaining forks
+        long forkBudgetNs = (budgetNs - (System.nanoTime() - start)) / (runs - fork);
+        AdaptiveRun adaptiveRun = new AdaptiveRun(adaptive, forkBudgetNs);
+        adaptiveRuns.add(adaptiveRun);
+
+        Map<Object, Object> forkConf = new LinkedHashMap<Object, Object>(jmhConf);
+        forkConf.remove(ADAPTIVE_KEY);
+        forkConf.put("forks", forks > 0 ? 1L : 0L);
+        forkConf.put("warmupIterations", 0L);
+        forkConf.put("measurementIterations", Math.max(window, Math.min(ADAPTIVE_MAX_ITERATIONS, forkBudgetNs / iterationNs + 1L)));
+        forkConf.put("measurementTime", measurementTime);
+
+        for (RunResult runResult: runJMH(benchConfigurations, forkConf, adaptiveRun, combination, cancelFile)) {
+          last = runResult;
+          for (BenchmarkResult benchmarkResult: runResult.getBenchmarkResults()) {
+            List<IterationResult> steady = adaptiveRun.steady(new ArrayList<IterationResult>(benchmarkResult.getIterationResults()));
+            if (!steady.isEmpty()) {
+              benchmarkResults.add(new BenchmarkResult(benchmarkResult.getParams(), steady));
+            }
+          }
+        }
+      }
+
+      if (null != last && !benchmarkResults.isEmpty()) {
+        results.add(new RunResult(last.getParams(), benchmarkResults));
+        summaries.put(combination, AdaptiveRun.summarize(adaptiveRuns, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+      }
+    }
+
+    return results;
+  }
+
+  /**
+   * Run JMH on the given bench configurations, whose defaults are already set.
+   * @param benchConfigurations List of maps of macros.
+   * @param jmhConf Map of JMH parameters.
+   * @param sink Receiver of the iteration results as they are measured, may be null. If it stops the run, the results
+   *             of the iterations measured so far are returned.
+   * @param combination Index of the only bench configuration and combination of parameters to run, null to run them all.
+   * @param cancelFile File whose creation stops the forks at their next iteration, may be null.
+   * @return The JMH results.
+   * @throws WarpScriptException if the benchmark cannot be run or was cancelled.
+   */
+  private Collection<RunResult> runJMH(List<Map<Object, Object>> benchConfigurations, Map<Object, Object> jmhConf, StreamingOutputFormat.Sink sink, Integer combination, File cancelFile) throws WarpScriptException {
+    List<BenchRun> benchRuns = benchRuns(benchConfigurations);
 
     File benchConfFile = null;
     File warpConfFile = null;
+    File stopFile = null;
+    StreamingOutputFormat streamingOutputFormat = null;
 
     try {
       // Write the snapshot to a temporary file. We must use a temp file because passing the snapshot as a JVM arg
@@ -119,7 +830,7 @@ public class JMH extends NamedWarpScriptFunction implements WarpScriptStackFunct
       benchConfFile = File.createTempFile("benchConf", ".mc2");
       try (OutputStreamWriter writer = new OutputStreamWriter(new FileOutputStream(benchConfFile), StandardCharsets.UTF_8)) {
         StringBuilder sb = new StringBuilder();
-        SNAPSHOT.addElement(sb, benchConfiguration);
+        SNAPSHOT.addElement(sb, benchConfigurations);
         writer.write(sb.toString());
       }
 
@@ -138,38 +849,100 @@ public class JMH extends NamedWarpScriptFunction implements WarpScriptStackFunct
 
       // Build base options
       ChainedOptionsBuilder optionsBuilder = new OptionsBuilder()
-          // Include only MacroBenchmark. Do not use class.getName() to avoid cyclic dependency.
-          .include("io\\.warp10\\.script\\.ext\\.jmh\\.MacroBenchmark.*")
+          // Include only the relevant benchmark of MacroBenchmark. Do not use class.getName() to avoid cyclic dependency.
+          .include(benchmarkPattern(benchmarks(benchConfigurations, jmhConf)))
           // Remove output on stdout
           .verbosity(VerboseMode.SILENT)
           // Throw instead of returning empty result
           .shouldFailOnError(true);
 
+      // A load benchmark runs for its whole duration in each iteration, do not repeat it by default
+      if (jmhConf.containsKey(LOAD_KEY)) {
+        optionsBuilder.warmupIterations(1).measurementIterations(1);
+      }
+
       // Override parameters with those given
       overrideParameters(optionsBuilder, jvmArgsAppend, jmhConf);
 
+      // The iterations of A/B comparisons report which macro they ran
+      for (Map<Object, Object> benchConfiguration: benchConfigurations) {
+        if (benchConfiguration.containsKey(A_MACRO)) {
+          optionsBuilder.addProfiler(ComparisonProfiler.class);
+          break;
+        }
+      }
+
+      // Each invocation of a batched benchmark runs the macro on every input of the ring
+      if (benchConfigurations.get(0).containsKey(BATCH_KEY)) {
+        if (jmhConf.containsKey("operationsPerInvocation")) {
+          throw new WarpScriptException(getName() + " cannot set operationsPerInvocation of batched benchmarks, it is set to '" + BATCH_KEY + "'.");
+        }
+        optionsBuilder.operationsPerInvocation(((Long) benchConfigurations.get(0).get(BATCH_KEY)).intValue());
+      }
+
+      // Run each configuration and combination of parameters in the same run, unless a single one is given
+      String[] combinationIndexes;
+      if (null == combination) {
+        combinationIndexes = new String[benchRuns.size()];
+        for (int i = 0; i < combinationIndexes.length; i++) {
+          combinationIndexes[i] = Integer.toString(i);
+        }
+      } else {
+        combinationIndexes = new String[] {combination.toString()};
+      }
+      optionsBuilder.param(COMBINATION_PARAM, combinationIndexes);
+
+      if (null != sink) {
+        // Only the path is used, the file is created to stop the run
+        stopFile = File.createTempFile("stop", ".jmh");
+        stopFile.delete();
+        jvmArgsAppend.add(JVM_ARG_PREFIX_STOPFILE + stopFile.getAbsolutePath());
+
+        List<Map<Object, Object>> tags = new ArrayList<Map<Object, Object>>();
+        for (BenchRun benchRun: benchRuns) {
+          Map<Object, Object> eventTags = new LinkedHashMap<Object, Object>();
+          Object name = benchConfigurations.get(benchRun.configuration).get(NAME_KEY);
+          if (null != name) {
+            eventTags.put(KEY_BENCH_NAME, name);
+          }
+          eventTags.put(KEY_BENCH_PARAMS, benchRun.params);
+          tags.add(eventTags);
+        }
+        streamingOutputFormat = new StreamingOutputFormat(sink, stopFile, tags);
+      }
+
+      if (null != cancelFile) {
+        jvmArgsAppend.add(JVM_ARG_PREFIX_STOPFILE + cancelFile.getAbsolutePath());
+      }
+
       optionsBuilder.jvmArgsAppend(jvmArgsAppend.toArray(new String[jvmArgsAppend.size()]));
 
       // Run the JMH Benchmark
-      Collection<RunResult> runResults = new Runner(optionsBuilder.build()).run();
-
-      // Write results
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      final String utf8 = StandardCharsets.UTF_8.name();
-      try (PrintStream ps = new PrintStream(baos, true, utf8)) {
-        ResultFormatFactory.getInstance(ResultFormatType.JSON, ps).writeOut(runResults);
-        String json = baos.toString(utf8);
-        List runResultsList = (List) JsonUtils.jsonToObject(json);
-        for (Object runResult: runResultsList) {
-          ((Map) runResult).put("benchConfiguration", benchConfiguration);
+      Collection<RunResult> runResults;
+      if (null == streamingOutputFormat) {
+        runResults = new Runner(optionsBuilder.build()).run();
+      } else {
+        try {
+          runResults = new Runner(optionsBuilder.build(), streamingOutputFormat).run();
+        } catch (RunnerException e) {
+          // The forks fail when stopped by the stream
+          if (!streamingOutputFormat.isStopped()) {
+            throw e;
+          }
+          runResults = streamingOutputFormat.partialResults();
+        }
+        if (null != streamingOutputFormat.getError()) {
+          throw new WarpScriptException(getName() + " stopped because the results could not be streamed.", streamingOutputFormat.getError());
         }
-        stack.push(runResultsList);
-      } catch (UnsupportedEncodingException e) {
-        // cannot happen
-      } catch (JsonProcessingException e) {
-        throw new WarpScriptException(getName() + " failed because the JMH JSON is invalid.", e);
       }
+
+      checkCancelled(cancelFile);
+
+      return runResults;
     } catch (RunnerException e) {
+      // The forks fail when stopped by a cancellation
+      checkCancelled(cancelFile);
+
       // The true exception is hidden in the suppressed exception of the cause, try to get it.
       Throwable eCause = e.getCause();
       if (null != eCause) {
@@ -188,9 +961,647 @@ public class JMH extends NamedWarpScriptFunction implements WarpScriptStackFunct
       if (null != warpConfFile) {
         warpConfFile.delete();
       }
+      if (null != stopFile) {
+        stopFile.delete();
+      }
     }
+  }
 
-    return stack;
+  /**
+   * Throw if the job running the benchmark was cancelled, see JMHJobScheduler.cancel.
+   * @param cancelFile File created on cancellation, may be null.
+   * @throws WarpScriptException if the file exists.
+   */
+  void checkCancelled(File cancelFile) throws WarpScriptException {
+    if (null != cancelFile && cancelFile.exists()) {
+      throw new WarpScriptException(getName() + " was cancelled.");
+    }
+  }
+
+  /**
+   * Tag each result with its bench configuration, its name if any and the values of its parameters. The internal
+   * COMBINATION_PARAM JMH parameter is removed from the results.
+   */
+  private static List tag(List runResultsList, List<Map<Object, Object>> benchConfigurations, List<BenchRun> benchRuns) {
+    for (Object runResult: runResultsList) {
+      Map jmhParams = (Map) ((Map) runResult).get("params");
+      Object combination = jmhParams.remove(COMBINATION_PARAM);
+      if (jmhParams.isEmpty()) {
+        ((Map) runResult).remove("params");
+      }
+      BenchRun benchRun = benchRuns.get(Integer.parseInt(combination.toString()));
+      Map<Object, Object> benchConfiguration = benchConfigurations.get(benchRun.configuration);
+      ((Map) runResult).put(KEY_BENCH_CONFIGURATION, benchConfiguration);
+      ((Map) runResult).put(KEY_BENCH_PARAMS, benchRun.params);
+      if (benchConfiguration.containsKey(NAME_KEY)) {
+        ((Map) runResult).put(KEY_BENCH_NAME, benchConfiguration.get(NAME_KEY));
+      }
+    }
+    return runResultsList;
+  }
+
+  /**
+   * A benchmark run by JMH, identified by its index in the COMBINATION_PARAM JMH parameter.
+   */
+  public static class BenchRun {
+    // Index of the bench configuration
+    public final int configuration;
+    // Values of the parameters
+    public final Map<String, Object> params;
+
+    BenchRun(int configuration, Map<String, Object> params) {
+      this.configuration = configuration;
+      this.params = params;
+    }
+  }
+
+  /**
+   * List all the combinations of parameters of all the bench configurations, in a deterministic order.
+   * @param benchConfigurations List of maps of macros.
+   * @return The list of benchmarks to run.
+   */
+  public static List<BenchRun> benchRuns(List<Map<Object, Object>> benchConfigurations) {
+    List<BenchRun> benchRuns = new ArrayList<BenchRun>();
+    for (int i = 0; i < benchConfigurations.size(); i++) {
+      for (Map<String, Object> combination: combinations((Map<Object, Object>) benchConfigurations.get(i).get(PARAMS_KEY))) {
+        benchRuns.add(new BenchRun(i, combination));
+      }
+    }
+    return benchRuns;
+  }
+
+  /**
+   * Compute the cartesian product of the parameters to sweep. The names are sorted so the forks, which read the
+   * configuration back from a snapshot, compute the combinations in the same order.
+   * @param params Map of parameter names to non-empty lists of values, may be null. Checked when the bench
+   *               configurations are popped.
+   * @return The list of combinations, each one being a map of parameter names to values.
+   */
+  public static List<Map<String, Object>> combinations(Map<Object, Object> params) {
+    List<Map<String, Object>> combinations = new ArrayList<Map<String, Object>>();
+    combinations.add(new LinkedHashMap<String, Object>());
+
+    if (null == params) {
+      return combinations;
+    }
+
+    List<String> names = new ArrayList<String>();
+    for (Object name: params.keySet()) {
+      names.add((String) name);
+    }
+    Collections.sort(names);
+
+    for (String name: names) {
+      List values = (List) params.get(name);
+      List<Map<String, Object>> product = new ArrayList<Map<String, Object>>(combinations.size() * values.size());
+      for (Map<String, Object> combination: combinations) {
+        for (Object value: values) {
+          Map<String, Object> newCombination = new LinkedHashMap<String, Object>(combination);
+          newCombination.put(name, value);
+          product.add(newCombination);
+        }
+      }
+      combinations = product;
+    }
+
+    return combinations;
+  }
+
+  /**
+   * List the benchmark methods or groups of MacroBenchmark to run.
+   */
+  private List<String> benchmarks(List<Map<Object, Object>> benchConfigurations, Map<Object, Object> jmhConf) throws WarpScriptException {
+    List<String> benchmarks = new ArrayList<String>();
+
+    Object exec = jmhConf.getOrDefault(EXEC_KEY, EXEC_FAST);
+    boolean fast = EXEC_FAST.equals(exec) || EXEC_BOTH.equals(exec);
+    boolean interpreted = EXEC_INTERPRETER.equals(exec) || EXEC_BOTH.equals(exec);
+
+    if (interpreted && (jmhConf.containsKey(LOAD_KEY) || !benchConfigurations.get(0).containsKey(MACRO_KEY))) {
+      throw new WarpScriptException(getName() + " can only run '" + LOAD_KEY + "' and '" + WRITER_MACRO + "' and '" + READER_MACRO + "' benchmarks with '" + EXEC_KEY + "' set to '" + EXEC_FAST + "'.");
+    }
+    if (fast && interpreted && Boolean.TRUE.equals(jmhConf.get(CALIBRATE_KEY))) {
+      throw new WarpScriptException(getName() + " cannot calibrate benchmarks with '" + EXEC_KEY + "' set to '" + EXEC_BOTH + "'.");
+    }
+
+    if (Boolean.TRUE.equals(jmhConf.get(FOOTPRINT_KEY)) && (jmhConf.containsKey(LOAD_KEY) || !benchConfigurations.get(0).containsKey(MACRO_KEY) || benchConfigurations.get(0).containsKey(BATCH_KEY))) {
+      throw new WarpScriptException(getName() + " can only measure the '" + FOOTPRINT_KEY + "' of '" + MACRO_KEY + "' benchmarks without '" + BATCH_KEY + "' nor '" + LOAD_KEY + "'.");
+    }
+
+    if (jmhConf.containsKey(COLDSTART_KEY)) {
+      if (!benchConfigurations.get(0).containsKey(MACRO_KEY) || benchConfigurations.get(0).containsKey(BATCH_KEY)) {
+        throw new WarpScriptException(getName() + " can only run '" + COLDSTART_KEY + "' benchmarks of a '" + MACRO_KEY + "' without '" + BATCH_KEY + "'.");
+      }
+      for (Map<Object, Object> benchConfiguration: benchConfigurations) {
+        if (benchConfiguration.containsKey(A_MACRO)) {
+          throw new WarpScriptException(getName() + " cannot run '" + COLDSTART_KEY + "' benchmarks with '" + A_MACRO + "' and '" + B_MACRO + "'.");
+        }
+      }
+      // Each fork runs a single invocation in a single thread
+      for (String key: new String[] {"mode", "forks", "warmupForks", "warmupIterations", "measurementIterations", "threads", LOAD_KEY, ADAPTIVE_KEY, FOOTPRINT_KEY}) {
+        if (jmhConf.containsKey(key)) {
+          throw new WarpScriptException(getName() + " cannot set '" + key + "' of '" + COLDSTART_KEY + "' benchmarks.");
+        }
+      }
+      if (Boolean.TRUE.equals(jmhConf.get(CALIBRATE_KEY)) || (fast && interpreted)) {
+        throw new WarpScriptException(getName() + " cannot calibrate '" + COLDSTART_KEY + "' benchmarks nor run them with '" + EXEC_KEY + "' set to '" + EXEC_BOTH + "'.");
+      }
+      benchmarks.add(interpreted ? "coldStartInterpreted" : "coldStart");
+      return benchmarks;
+    }
+
+    if (jmhConf.containsKey(LOAD_KEY)) {
+      if (!benchConfigurations.get(0).containsKey(MACRO_KEY) || benchConfigurations.get(0).containsKey(BATCH_KEY)) {
+        throw new WarpScriptException(getName() + " can only run '" + LOAD_KEY + "' benchmarks of a '" + MACRO_KEY + "' without '" + BATCH_KEY + "'.");
+      }
+      for (Map<Object, Object> benchConfiguration: benchConfigurations) {
+        if (benchConfiguration.containsKey(GENERATOR_MACRO) || benchConfiguration.containsKey(A_MACRO)) {
+          throw new WarpScriptException(getName() + " cannot run '" + LOAD_KEY + "' benchmarks with a '" + GENERATOR_MACRO + "' or '" + A_MACRO + "' and '" + B_MACRO + "'.");
+        }
+      }
+      if (Boolean.TRUE.equals(jmhConf.get(CALIBRATE_KEY)) || jmhConf.containsKey("mode")) {
+        throw new WarpScriptException(getName() + " cannot set the mode or calibrate '" + LOAD_KEY + "' benchmarks.");
+      }
+      benchmarks.add("load");
+      return benchmarks;
+    }
+
+    if (!benchConfigurations.get(0).containsKey(MACRO_KEY)) {
+      if (Boolean.TRUE.equals(jmhConf.get(CALIBRATE_KEY))) {
+        throw new WarpScriptException(getName() + " cannot calibrate '" + WRITER_MACRO + "' and '" + READER_MACRO + "' benchmarks.");
+      }
+      benchmarks.add("readwrite");
+      return benchmarks;
+    }
+
+    // The iterations of calibrated benchmarks alternate between the macro and its no-op macro, as those of A/B comparisons
+    if (Boolean.TRUE.equals(jmhConf.get(CALIBRATE_KEY))) {
+      if (Boolean.TRUE.equals(jmhConf.get(FOOTPRINT_KEY))) {
+        throw new WarpScriptException(getName() + " cannot calibrate benchmarks measuring their '" + FOOTPRINT_KEY + "'.");
+      }
+      for (Map<Object, Object> benchConfiguration: benchConfigurations) {
+        if (benchConfiguration.containsKey(A_MACRO)) {
+          throw new WarpScriptException(getName() + " cannot calibrate benchmarks with '" + A_MACRO + "' and '" + B_MACRO + "'.");
+        }
+      }
+    }
+
+    // Batched benchmarks do not use invocation level macros
+    boolean batch = benchConfigurations.get(0).containsKey(BATCH_KEY);
+
+    if (fast) {
+      benchmarks.add(batch ? "benchmarkBatch" : "benchmarkMacro");
+    }
+    if (interpreted) {
+      benchmarks.add(batch ? "benchmarkBatchInterpreted" : "benchmarkInterpreted");
+    }
+    return benchmarks;
+  }
+
+  /**
+   * Build the include pattern of some benchmarks of MacroBenchmark.
+   * @param benchmarks Names of the benchmark methods or groups.
+   * @return A regular expression matching only these benchmarks.
+   */
+  static String benchmarkPattern(List<String> benchmarks) {
+    return "io\\.warp10\\.script\\.ext\\.jmh\\.MacroBenchmark\\.(" + String.join("|", benchmarks) + ")$";
+  }
+
+  /**
+   * Remove from the results those of the given benchmark method, and return them keyed by resultKey.
+   */
+  static Map<Object, Map<Object, Object>> extractResults(List results, String benchmark) {
+    Map<Object, Map<Object, Object>> extracted = new HashMap<Object, Map<Object, Object>>();
+    String name = "io.warp10.script.ext.jmh.MacroBenchmark." + benchmark;
+
+    Iterator iter = results.iterator();
+    while (iter.hasNext()) {
+      Map<Object, Object> result = (Map) iter.next();
+      if (name.equals(result.get("benchmark"))) {
+        extracted.put(resultKey(result), result);
+        iter.remove();
+      }
+    }
+
+    return extracted;
+  }
+
+  /**
+   * Key matching the results of different benchmark methods run with the same configuration, combination of
+   * parameters and mode. With mode 'all', each combination has a result per mode.
+   */
+  static List<Object> resultKey(Map<Object, Object> result) {
+    List<Object> key = new ArrayList<Object>(2);
+    key.add(((Map) result.get("params")).get(COMBINATION_PARAM));
+    key.add(result.get("mode"));
+    return key;
+  }
+
+  /**
+   * Scores and errors in the JMH JSON are either numbers or "NaN".
+   */
+  static double toDouble(Object value) {
+    if (value instanceof Number) {
+      return ((Number) value).doubleValue();
+    } else if (value instanceof String) {
+      try {
+        return Double.parseDouble((String) value);
+      } catch (NumberFormatException nfe) {
+        return Double.NaN;
+      }
+    }
+    return Double.NaN;
+  }
+
+  /**
+   * Build from the secondary results of WarpScriptProfiler a table of the WarpScript functions of the macro, sorted by
+   * decreasing self time.
+   */
+  private static void summarizeProfile(List results) {
+    for (Object result: results) {
+      Map secondaryMetrics = (Map) ((Map) result).get("secondaryMetrics");
+      if (null == secondaryMetrics) {
+        continue;
+      }
+
+      Map<String, Map<Object, Object>> functions = new HashMap<String, Map<Object, Object>>();
+
+      for (Object label: secondaryMetrics.keySet()) {
+        if (!(label instanceof String) || !((String) label).startsWith(WarpScriptProfiler.LABEL_PREFIX)) {
+          continue;
+        }
+        String metricAndFunction = ((String) label).substring(WarpScriptProfiler.LABEL_PREFIX.length());
+        int dot = metricAndFunction.indexOf('.');
+        String metric = metricAndFunction.substring(0, dot);
+        String function = metricAndFunction.substring(dot + 1);
+
+        Map<Object, Object> row = functions.get(function);
+        if (null == row) {
+          row = new LinkedHashMap<Object, Object>();
+          row.put("function", function);
+          functions.put(function, row);
+        }
+        row.put(metric, toDouble(((Map) secondaryMetrics.get(label)).get("score")));
+      }
+
+      if (functions.isEmpty()) {
+        continue;
+      }
+
+      List<Map<Object, Object>> table = new ArrayList<Map<Object, Object>>(functions.values());
+      table.sort(new Comparator<Map<Object, Object>>() {
+        @Override
+        public int compare(Map<Object, Object> o1, Map<Object, Object> o2) {
+          return Double.compare(toDouble(o2.get(WarpScriptProfiler.METRIC_SELF_TIME)), toDouble(o1.get(WarpScriptProfiler.METRIC_SELF_TIME)));
+        }
+      });
+
+      ((Map) result).put(KEY_WARPSCRIPT_PROFILE, table);
+    }
+  }
+
+  /**
+   * Attach to the results of A/B comparisons the speedup of B over A, see ComparisonProfiler.
+   */
+  private static void compare(List results) {
+    for (Object result: results) {
+      Map<Object, Object> comparison = ComparisonProfiler.compare((Map) result);
+      if (null != comparison) {
+        ((Map) result).put(KEY_COMPARISON, comparison);
+      }
+    }
+  }
+
+  /**
+   * Build from the secondary results of LoadProfiler the rate and number of calls of load benchmarks, and their latency
+   * percentiles from the histograms of all the iterations of all the forks, merged.
+   * @param loadDir Directory of the histogram logs, see LoadProfiler.
+   */
+  private void summarizeLoad(List results, File loadDir) throws WarpScriptException {
+    for (Object result: results) {
+      Map secondaryMetrics = (Map) ((Map) result).get("secondaryMetrics");
+      if (null == secondaryMetrics || !secondaryMetrics.containsKey(LoadProfiler.LABEL_PREFIX + LoadProfiler.METRIC_CALLS)) {
+        continue;
+      }
+
+      Map<Object, Object> load = new LinkedHashMap<Object, Object>();
+      load.put("calls", toDouble(((Map) secondaryMetrics.get(LoadProfiler.LABEL_PREFIX + LoadProfiler.METRIC_CALLS)).get("score")));
+      load.put("missed", toDouble(((Map) secondaryMetrics.get(LoadProfiler.LABEL_PREFIX + LoadProfiler.METRIC_MISSED)).get("score")));
+      load.put("rate", toDouble(((Map) secondaryMetrics.get(LoadProfiler.LABEL_PREFIX + LoadProfiler.METRIC_RATE)).get("score")));
+
+      String benchmark = (String) ((Map) result).get("benchmark");
+      benchmark = benchmark.substring(benchmark.lastIndexOf('.') + 1);
+      Object combination = ((Map) ((Map) result).get("params")).get(COMBINATION_PARAM);
+      final String prefix = LoadProfiler.logPrefix(benchmark, combination.toString());
+
+      File[] logs = null == loadDir ? null : loadDir.listFiles(new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+          return LoadProfiler.isLog(name, prefix);
+        }
+      });
+
+      if (null == logs || 0 == logs.length) {
+        throw new WarpScriptException(getName() + " could not find the latency histograms of the load benchmark.");
+      }
+
+      Map<String, Histogram> histograms;
+      try {
+        histograms = LoadProfiler.merge(Arrays.asList(logs));
+      } catch (IOException ioe) {
+        throw new WarpScriptException(getName() + " could not read the latency histograms in " + loadDir + ".", ioe);
+      }
+
+      // Histograms are in ns, percentiles in us
+      for (Map.Entry<String, Histogram> histogram: histograms.entrySet()) {
+        Map<Object, Object> percentiles = new LinkedHashMap<Object, Object>();
+        for (double percentile: LoadProfiler.PERCENTILES) {
+          percentiles.put("p" + percentile, histogram.getValue().getValueAtPercentile(percentile) / 1000.0D);
+        }
+        percentiles.put("max", histogram.getValue().getMaxValue() / 1000.0D);
+        load.put(histogram.getKey(), percentiles);
+      }
+      load.put("unit", "us");
+
+      ((Map) result).put(KEY_LOAD, load);
+    }
+  }
+
+  /**
+   * Attach to each result the heap retained by what the macro leaves on the stack, per object and per datapoint.
+   */
+  private static void summarizeFootprint(List results) {
+    for (Object result: results) {
+      Map secondaryMetrics = (Map) ((Map) result).get("secondaryMetrics");
+      if (null == secondaryMetrics || !secondaryMetrics.containsKey(FootprintProfiler.LABEL_PREFIX + FootprintProfiler.METRIC_BYTES)) {
+        continue;
+      }
+
+      double bytes = toDouble(((Map) secondaryMetrics.get(FootprintProfiler.LABEL_PREFIX + FootprintProfiler.METRIC_BYTES)).get("score"));
+      double objects = toDouble(((Map) secondaryMetrics.get(FootprintProfiler.LABEL_PREFIX + FootprintProfiler.METRIC_OBJECTS)).get("score"));
+      double datapoints = toDouble(((Map) secondaryMetrics.get(FootprintProfiler.LABEL_PREFIX + FootprintProfiler.METRIC_DATAPOINTS)).get("score"));
+
+      Map<Object, Object> footprint = new LinkedHashMap<Object, Object>();
+      footprint.put("bytes", bytes);
+      footprint.put("objects", objects);
+      footprint.put("datapoints", datapoints);
+      footprint.put("bytesPerObject", objects > 0.0D ? bytes / objects : Double.NaN);
+      footprint.put("bytesPerDatapoint", datapoints > 0.0D ? bytes / datapoints : Double.NaN);
+
+      ((Map) result).put(KEY_FOOTPRINT, footprint);
+    }
+  }
+
+  /**
+   * Build from the secondary results of ColdStartProfiler the time, loaded classes and JIT compilation time of each
+   * phase of cold start benchmarks, averaged over the forks.
+   */
+  private static void summarizeColdStart(List results) {
+    for (Object result: results) {
+      Map secondaryMetrics = (Map) ((Map) result).get("secondaryMetrics");
+      if (null == secondaryMetrics || !secondaryMetrics.containsKey(ColdStartProfiler.label(ColdStartProfiler.PHASE_FIRST, ColdStartProfiler.METRIC_TIME))) {
+        continue;
+      }
+
+      Map<Object, Object> phases = new LinkedHashMap<Object, Object>();
+      for (String phase: ColdStartProfiler.PHASES) {
+        Map<Object, Object> metrics = new LinkedHashMap<Object, Object>();
+        for (String metric: new String[] {ColdStartProfiler.METRIC_TIME, ColdStartProfiler.METRIC_CLASSES, ColdStartProfiler.METRIC_JIT_TIME}) {
+          Map secondaryMetric = (Map) secondaryMetrics.get(ColdStartProfiler.label(phase, metric));
+          metrics.put(metric, null == secondaryMetric ? Double.NaN : toDouble(secondaryMetric.get("score")));
+        }
+        phases.put(phase, metrics);
+      }
+
+      Map<Object, Object> coldStart = new LinkedHashMap<Object, Object>();
+      coldStart.put("phases", phases);
+      coldStart.put("timeUnit", "us");
+      coldStart.put("jitTimeUnit", "ms");
+
+      ((Map) result).put(KEY_COLDSTART, coldStart);
+    }
+  }
+
+  /**
+   * Attach to each result the summary of the JFR recordings of its forks.
+   */
+  private void summarizeRecordings(List results, File jfrDir) throws WarpScriptException {
+    for (Object result: results) {
+      String benchmark = (String) ((Map) result).get("benchmark");
+      benchmark = benchmark.substring(benchmark.lastIndexOf('.') + 1);
+      Object combination = ((Map) ((Map) result).get("params")).get(COMBINATION_PARAM);
+      final String prefix = JFRProfiler.recordingPrefix(benchmark, combination.toString());
+
+      File[] recordings = jfrDir.listFiles(new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+          return name.startsWith(prefix) && name.endsWith(".jfr");
+        }
+      });
+
+      if (null == recordings || 0 == recordings.length) {
+        continue;
+      }
+
+      Arrays.sort(recordings);
+
+      try {
+        ((Map) result).put(KEY_JFR, JFRProfiler.summarize(Arrays.asList(recordings)));
+      } catch (IOException ioe) {
+        throw new WarpScriptException(getName() + " could not read the JFR recordings in " + jfrDir + ".", ioe);
+      }
+    }
+  }
+
+  /**
+   * Split the iterations of calibrated benchmarks between the macro and its no-op macro, see CalibrationProfiler. The
+   * primary metric is computed again from the iterations of the macro only, with the statistics of JMH, and the
+   * calibration map compares it to the iterations of the no-op macro, which measure the overhead of the harness.
+   */
+  static void calibrate(List results) {
+    for (Object result: results) {
+      Map secondaryMetrics = (Map) ((Map) result).get("secondaryMetrics");
+      if (null == secondaryMetrics || !secondaryMetrics.containsKey(CalibrationProfiler.LABEL_CALIBRATION_SIDE)) {
+        continue;
+      }
+
+      Map primaryMetric = (Map) ((Map) result).get("primaryMetric");
+      List sidesByFork = (List) ((Map) secondaryMetrics.get(CalibrationProfiler.LABEL_CALIBRATION_SIDE)).get("rawData");
+      // Iteration scores, or sampled times of the iterations in sample mode
+      boolean histogram = !primaryMetric.containsKey("rawData");
+      List iterationsByFork = (List) primaryMetric.get(histogram ? "rawDataHistogram" : "rawData");
+
+      MultisetStatistics raw = new MultisetStatistics();
+      MultisetStatistics overhead = new MultisetStatistics();
+      List<Object> rawIterationsByFork = new ArrayList<Object>();
+
+      for (int fork = 0; fork < Math.min(iterationsByFork.size(), sidesByFork.size()); fork++) {
+        List iterations = (List) iterationsByFork.get(fork);
+        List sides = (List) sidesByFork.get(fork);
+        // The side of each iteration is unknown if the fork did not report as many of them as scores
+        if (iterations.size() != sides.size()) {
+          continue;
+        }
+        List<Object> rawIterations = new ArrayList<Object>();
+        for (int i = 0; i < iterations.size(); i++) {
+          boolean noop = toDouble(sides.get(i)) > 0.5D;
+          MultisetStatistics statistics = noop ? overhead : raw;
+          if (histogram) {
+            for (Object bucket: (List) iterations.get(i)) {
+              statistics.addValue(toDouble(((List) bucket).get(0)), ((Number) ((List) bucket).get(1)).longValue());
+            }
+          } else {
+            statistics.addValue(toDouble(iterations.get(i)), 1L);
+          }
+          if (!noop) {
+            rawIterations.add(iterations.get(i));
+          }
+        }
+        rawIterationsByFork.add(rawIterations);
+      }
+
+      if (0L == raw.getN() || 0L == overhead.getN()) {
+        continue;
+      }
+
+      // The score is the one JMH would report for the iterations of the macro
+      primaryMetric.put(histogram ? "rawDataHistogram" : "rawData", rawIterationsByFork);
+      primaryMetric.put("score", raw.getMean());
+      primaryMetric.put("scoreError", raw.getMeanErrorAt(CALIBRATION_CONFIDENCE));
+      double[] confidence = raw.getConfidenceIntervalAt(CALIBRATION_CONFIDENCE);
+      primaryMetric.put("scoreConfidence", new ArrayList<Object>(Arrays.asList(confidence[0], confidence[1])));
+      if (primaryMetric.get("scorePercentiles") instanceof Map) {
+        Map<Object, Object> percentiles = new LinkedHashMap<Object, Object>();
+        for (Object percentile: ((Map) primaryMetric.get("scorePercentiles")).keySet()) {
+          percentiles.put(percentile, raw.getPercentile(Double.parseDouble(percentile.toString())));
+        }
+        primaryMetric.put("scorePercentiles", percentiles);
+      }
+
+      double rawScore = raw.getMean();
+      double rawError = raw.getMeanErrorAt(CALIBRATION_CONFIDENCE);
+      double overheadScore = overhead.getMean();
+      double overheadError = overhead.getMeanErrorAt(CALIBRATION_CONFIDENCE);
+
+      double corrected;
+      if ("thrpt".equals(((Map) result).get("mode"))) {
+        // Scores are operations per time unit, subtract the time per operation
+        corrected = 1.0D / (1.0D / rawScore - 1.0D / overheadScore);
+      } else {
+        corrected = rawScore - overheadScore;
+      }
+
+      // NaN errors, with less than three iterations, are considered null
+      double rawMargin = Double.isNaN(rawError) ? 0.0D : rawError;
+      double overheadMargin = Double.isNaN(overheadError) ? 0.0D : overheadError;
+      boolean noiseFloor = Math.abs(rawScore - overheadScore) <= rawMargin + overheadMargin || !(corrected > 0.0D);
+
+      Map<Object, Object> calibration = new LinkedHashMap<Object, Object>();
+      calibration.put("raw", rawScore);
+      calibration.put("rawError", rawError);
+      calibration.put("overhead", overheadScore);
+      calibration.put("overheadError", overheadError);
+      calibration.put("corrected", corrected);
+      calibration.put("noiseFloor", noiseFloor);
+      calibration.put("scoreUnit", primaryMetric.get("scoreUnit"));
+      ((Map) result).put(KEY_CALIBRATION, calibration);
+    }
+  }
+
+
+  /**
+   * When the macro is run both ways, attach to each result of fastExec the score of the same macro run through the
+   * interpreter, and the overhead of the interpreter per operation.
+   */
+  private static void compareInterpreter(List results) {
+    boolean fast = false;
+    for (Object result: results) {
+      String benchmark = String.valueOf(((Map) result).get("benchmark"));
+      fast |= benchmark.endsWith(".benchmarkMacro") || benchmark.endsWith(".benchmarkBatch");
+    }
+    // The interpreted results are the only results when not run both ways
+    if (!fast) {
+      return;
+    }
+
+    Map<Object, Map<Object, Object>> interpretedResults = extractResults(results, "benchmarkInterpreted");
+    interpretedResults.putAll(extractResults(results, "benchmarkBatchInterpreted"));
+
+    for (Object result: results) {
+      Map<Object, Object> interpretedResult = interpretedResults.get(resultKey((Map) result));
+      if (null == interpretedResult) {
+        continue;
+      }
+
+      Map primaryMetric = (Map) ((Map) result).get("primaryMetric");
+      Map interpretedMetric = (Map) interpretedResult.get("primaryMetric");
+
+      double fastScore = toDouble(primaryMetric.get("score"));
+      double interpretedScore = toDouble(interpretedMetric.get("score"));
+
+      // Compare the times per operation, throughputs are operations per time unit
+      String unit = String.valueOf(primaryMetric.get("scoreUnit"));
+      double fastTime = fastScore;
+      double interpretedTime = interpretedScore;
+      if ("thrpt".equals(((Map) result).get("mode"))) {
+        fastTime = 1.0D / fastScore;
+        interpretedTime = 1.0D / interpretedScore;
+        unit = unit.substring(unit.indexOf('/') + 1) + "/op";
+      }
+
+      Map<Object, Object> interpreter = new LinkedHashMap<Object, Object>();
+      interpreter.put("fast", fastScore);
+      interpreter.put("fastError", toDouble(primaryMetric.get("scoreError")));
+      interpreter.put("interpreted", interpretedScore);
+      interpreter.put("interpretedError", toDouble(interpretedMetric.get("scoreError")));
+      interpreter.put("scoreUnit", primaryMetric.get("scoreUnit"));
+      interpreter.put("overhead", interpretedTime - fastTime);
+      interpreter.put("overheadUnit", unit);
+      interpreter.put("ratio", interpretedTime / fastTime);
+      ((Map) result).put(KEY_INTERPRETER, interpreter);
+    }
+  }
+
+  /**
+   * Resolve a path given as a JMH parameter under the directory set in the configuration, so requests cannot write
+   * anywhere on this host.
+   * @param confDir Configuration key of the directory.
+   * @param key JMH parameter giving the path.
+   * @param path The path, relative to the directory and without '..'.
+   * @return The file under the directory.
+   * @throws WarpScriptException if the directory is not set or the path is absolute or escapes it.
+   */
+  private File resolve(String confDir, String key, String path) throws WarpScriptException {
+    String dir = WarpConfig.getProperty(confDir);
+    if (null == dir) {
+      throw new WarpScriptException(getName() + " cannot write the '" + key + "' files unless '" + confDir + "' is set.");
+    }
+    if (new File(path).isAbsolute() || Arrays.asList(path.split("[/\\\\]")).contains("..")) {
+      throw new WarpScriptException(getName() + " expects " + key + " to be a path relative to '" + confDir + "', without '..'.");
+    }
+
+    File base = new File(dir).getAbsoluteFile();
+    File file = new File(base, path);
+    try {
+      // Symbolic links could still lead outside of the directory
+      String canonicalBase = base.getCanonicalPath();
+      String canonicalFile = file.getCanonicalPath();
+      if (!canonicalFile.equals(canonicalBase) && !canonicalFile.startsWith(canonicalBase + File.separator)) {
+        throw new WarpScriptException(getName() + " expects " + key + " to be a path under '" + confDir + "'.");
+      }
+    } catch (IOException ioe) {
+      throw new WarpScriptException(getName() + " could not resolve " + key + ".", ioe);
+    }
+    return file;
+  }
+
+  /**
+   * Throw unless the jvm and jvmArgs parameters are allowed by the configuration, see CONF_JVM_ALLOW.
+   */
+  private void checkJvmAllowed() throws WarpScriptException {
+    if (!"true".equals(WarpConfig.getProperty(CONF_JVM_ALLOW, "false"))) {
+      throw new WarpScriptException(getName() + " cannot set '" + JVM_KEY + "' or '" + JVM_ARGS_KEY + "' unless '" + CONF_JVM_ALLOW + "' is true.");
+    }
   }
 
   private void overrideParameters(ChainedOptionsBuilder optionsBuilder, List<String> jvmArgs, Map<Object, Object> jmhConfiguration) throws WarpScriptException {
@@ -270,7 +1681,13 @@ public class JMH extends NamedWarpScriptFunction implements WarpScriptStackFunct
               if (!(o instanceof String)) {
                 throw new WarpScriptException(getName() + " expects profilers to be a List of String.");
               }
-              optionsBuilder.addProfiler((String) o);
+              if (WarpScriptProfiler.NAME.equals(o)) {
+                // The forks wrap the functions of the macro to profile them
+                optionsBuilder.addProfiler(WarpScriptProfiler.class);
+                jvmArgs.add(JVM_ARG_PROFILE);
+              } else {
+                optionsBuilder.addProfiler((String) o);
+              }
             }
           } catch (IllegalArgumentException e) {
             throw new WarpScriptException(getName() + " expects valid parameter option.", e);
@@ -293,16 +1710,30 @@ public class JMH extends NamedWarpScriptFunction implements WarpScriptStackFunct
           }
           break;
         case "threads":
-          throw new WarpScriptException(getName() + " does not support multi-threaded benchmarks as stacks are mono-threaded.");
-//          if (!(entry.getValue() instanceof Long)) {
-//            throw new WarpScriptException(getName() + " expects threads to be a Long.");
-//          }
-//          try {
-//            optionsBuilder.threads(Math.toIntExact((Long) entry.getValue()));
-//          } catch (ArithmeticException | IllegalArgumentException e) {
-//            throw new WarpScriptException(getName() + " expects valid parameter option.", e);
-//          }
-//          break;
+          // Each thread has its own stack, see MacroBenchmark.MBState
+          if (!(entry.getValue() instanceof Long)) {
+            throw new WarpScriptException(getName() + " expects threads to be a Long.");
+          }
+          try {
+            optionsBuilder.threads(Math.toIntExact((Long) entry.getValue()));
+          } catch (ArithmeticException | IllegalArgumentException e) {
+            throw new WarpScriptException(getName() + " expects valid parameter option.", e);
+          }
+          break;
+        case "groupThreads":
+          if (!(entry.getValue() instanceof List)) {
+            throw new WarpScriptException(getName() + " expects groupThreads to be a List.");
+          }
+          List groupThreads = (List) entry.getValue();
+          if (2 != groupThreads.size() || !(groupThreads.get(0) instanceof Long) || !(groupThreads.get(1) instanceof Long)) {
+            throw new WarpScriptException(getName() + " expects groupThreads to be a List of 2 Longs, the number of writer and reader threads.");
+          }
+          try {
+            optionsBuilder.threadGroups(Math.toIntExact((Long) groupThreads.get(0)), Math.toIntExact((Long) groupThreads.get(1)));
+          } catch (ArithmeticException | IllegalArgumentException e) {
+            throw new WarpScriptException(getName() + " expects valid parameter option.", e);
+          }
+          break;
         case "timeUnit":
           if (!(entry.getValue() instanceof String)) {
             throw new WarpScriptException(getName() + " expects timeUnit to be a String.");
@@ -363,6 +1794,154 @@ public class JMH extends NamedWarpScriptFunction implements WarpScriptStackFunct
             throw new WarpScriptException(getName() + " expects valid parameter option.", e);
           }
           break;
+        case POOL_KEY:
+          if (!(entry.getValue() instanceof Boolean)) {
+            throw new WarpScriptException(getName() + " expects pool to be a Boolean.");
+          }
+          break;
+        case CALIBRATE_KEY:
+          if (!(entry.getValue() instanceof Boolean)) {
+            throw new WarpScriptException(getName() + " expects calibrate to be a Boolean.");
+          }
+          if ((Boolean) entry.getValue()) {
+            optionsBuilder.addProfiler(CalibrationProfiler.class);
+            jvmArgs.add(JVM_ARG_CALIBRATE);
+          }
+          break;
+        case JFR_KEY:
+          if (!(entry.getValue() instanceof String)) {
+            throw new WarpScriptException(getName() + " expects jfr to be a String.");
+          }
+          try {
+            optionsBuilder.addProfiler(JFRProfiler.class, (String) entry.getValue());
+          } catch (IllegalArgumentException e) {
+            throw new WarpScriptException(getName() + " expects valid parameter option.", e);
+          }
+          break;
+        case STREAM_KEY:
+          if (!(entry.getValue() instanceof WarpScriptStack.Macro) && !(entry.getValue() instanceof String)) {
+            throw new WarpScriptException(getName() + " expects stream to be a Macro or a String.");
+          }
+          break;
+        case LOAD_KEY:
+          if (!(entry.getValue() instanceof Map)) {
+            throw new WarpScriptException(getName() + " expects load to be a Map.");
+          }
+          Map load = (Map) entry.getValue();
+          if (!(load.get(LOAD_RATE) instanceof Number) || !(((Number) load.get(LOAD_RATE)).doubleValue() > 0.0D) || !(load.get(LOAD_DURATION) instanceof String)) {
+            throw new WarpScriptException(getName() + " expects load to contain a strictly positive '" + LOAD_RATE + "' in calls per second and a '" + LOAD_DURATION + "' String.");
+          }
+          try {
+            TimeValue duration = TimeValue.valueOf((String) load.get(LOAD_DURATION));
+            long durationNs = duration.convertTo(TimeUnit.NANOSECONDS);
+            jvmArgs.add(JVM_ARG_PREFIX_LOAD_RATE + ((Number) load.get(LOAD_RATE)).doubleValue());
+            jvmArgs.add(JVM_ARG_PREFIX_LOAD_DURATION + durationNs);
+            optionsBuilder.mode(Mode.SingleShotTime);
+            // Leave time for the last calls and the setup of the iteration
+            optionsBuilder.timeout(TimeValue.seconds(Math.max(600L, 2L * TimeUnit.NANOSECONDS.toSeconds(durationNs))));
+            optionsBuilder.addProfiler(LoadProfiler.class, load.containsKey(LOAD_LOGS) ? load.get(LOAD_LOGS).toString() : "");
+          } catch (IllegalArgumentException e) {
+            throw new WarpScriptException(getName() + " expects valid parameter option.", e);
+          }
+          break;
+        case JVM_ARGS_KEY:
+          checkJvmAllowed();
+          if (!(entry.getValue() instanceof List)) {
+            throw new WarpScriptException(getName() + " expects jvmArgs to be a list of Strings.");
+          }
+          for (Object jvmArg: (List) entry.getValue()) {
+            if (!(jvmArg instanceof String)) {
+              throw new WarpScriptException(getName() + " expects jvmArgs to be a list of Strings.");
+            }
+            jvmArgs.add((String) jvmArg);
+          }
+          break;
+        case JVM_KEY:
+          checkJvmAllowed();
+          if (!(entry.getValue() instanceof String)) {
+            throw new WarpScriptException(getName() + " expects jvm to be a String.");
+          }
+          optionsBuilder.jvm((String) entry.getValue());
+          break;
+        case MATRIX_KEY:
+          if (!(entry.getValue() instanceof Map) || ((Map) entry.getValue()).isEmpty()) {
+            throw new WarpScriptException(getName() + " expects matrix to be a non-empty map of JMH parameters, keyed by name.");
+          }
+          // Check each entry as it will be run, entries cannot be nested
+          for (Map.Entry<Object, Object> matrixEntry: ((Map<Object, Object>) entry.getValue()).entrySet()) {
+            if (!(matrixEntry.getKey() instanceof String) || !(matrixEntry.getValue() instanceof Map) || ((Map) matrixEntry.getValue()).containsKey(MATRIX_KEY)) {
+              throw new WarpScriptException(getName() + " expects matrix to be a non-empty map of JMH parameters, keyed by name.");
+            }
+            Map<Object, Object> entryConf = new LinkedHashMap<Object, Object>(jmhConfiguration);
+            entryConf.remove(MATRIX_KEY);
+            entryConf.putAll((Map) matrixEntry.getValue());
+            overrideParameters(new OptionsBuilder(), new ArrayList<String>(), entryConf);
+          }
+          break;
+        case FOOTPRINT_KEY:
+          if (!(entry.getValue() instanceof Boolean)) {
+            throw new WarpScriptException(getName() + " expects footprint to be a Boolean.");
+          }
+          if ((Boolean) entry.getValue()) {
+            optionsBuilder.addProfiler(FootprintProfiler.class);
+            jvmArgs.add(JVM_ARG_FOOTPRINT);
+          }
+          break;
+        case COLDSTART_KEY:
+          if (!(entry.getValue() instanceof Long) || (Long) entry.getValue() < 1L || (Long) entry.getValue() > Integer.MAX_VALUE) {
+            throw new WarpScriptException(getName() + " expects coldstart to be a strictly positive Long, the number of forks.");
+          }
+          // Each fresh fork runs the benchmark once, without warmup
+          optionsBuilder.mode(Mode.SingleShotTime)
+              .forks(((Long) entry.getValue()).intValue())
+              .warmupForks(0)
+              .warmupIterations(0)
+              .measurementIterations(1)
+              .threads(1)
+              .addProfiler(ColdStartProfiler.class);
+          break;
+        case ADAPTIVE_KEY:
+          if (!(entry.getValue() instanceof Map)) {
+            throw new WarpScriptException(getName() + " expects adaptive to be a Map.");
+          }
+          for (Map.Entry<Object, Object> adaptiveEntry: ((Map<Object, Object>) entry.getValue()).entrySet()) {
+            Object value = adaptiveEntry.getValue();
+            boolean valid;
+            switch (String.valueOf(adaptiveEntry.getKey())) {
+              case ADAPTIVE_ERROR:
+              case ADAPTIVE_CONFIDENCE:
+              case ADAPTIVE_STABILITY:
+                valid = value instanceof Number && ((Number) value).doubleValue() > 0.0D && ((Number) value).doubleValue() < 1.0D;
+                break;
+              case ADAPTIVE_WINDOW:
+                valid = value instanceof Long && (Long) value >= 2L;
+                break;
+              case ADAPTIVE_BUDGET:
+                valid = value instanceof String;
+                try {
+                  valid = valid && TimeValue.valueOf((String) value).convertTo(TimeUnit.NANOSECONDS) > 0L;
+                } catch (IllegalArgumentException e) {
+                  valid = false;
+                }
+                break;
+              default:
+                valid = false;
+            }
+            if (!valid) {
+              throw new WarpScriptException(getName() + " expects adaptive to only contain an '" + ADAPTIVE_ERROR + "', a '" + ADAPTIVE_CONFIDENCE + "' and a '" + ADAPTIVE_STABILITY + "' between 0 and 1 excluded, a '" + ADAPTIVE_WINDOW + "' of at least 2 iterations and a '" + ADAPTIVE_BUDGET + "' String.");
+            }
+          }
+          break;
+        case EXEC_KEY:
+          if (!EXEC_FAST.equals(entry.getValue()) && !EXEC_INTERPRETER.equals(entry.getValue()) && !EXEC_BOTH.equals(entry.getValue())) {
+            throw new WarpScriptException(getName() + " expects exec to be '" + EXEC_FAST + "', '" + EXEC_INTERPRETER + "' or '" + EXEC_BOTH + "'.");
+          }
+          break;
+        case OUTPUT_KEY:
+          if (!OUTPUT_JSON.equals(entry.getValue()) && !OUTPUT_GTS.equals(entry.getValue())) {
+            throw new WarpScriptException(getName() + " expects output to be '" + OUTPUT_JSON + "' or '" + OUTPUT_GTS + "'.");
+          }
+          break;
         case "mem":
           if (!(entry.getValue() instanceof String)) {
             throw new WarpScriptException(getName() + " expects mem to be a String.");
@@ -371,7 +1950,7 @@ public class JMH extends NamedWarpScriptFunction implements WarpScriptStackFunct
           jvmArgs.add("-Xmx" + (String) entry.getValue());
           break;
         default:
-          throw new WarpScriptException(getName() + " expects parameter keys to be in [forks, measurementBatchSize, measurementIterations, measurementTime, mode, operationsPerInvocation, profilers, shouldDoGC, syncIterations, threads, timeUnit, warmupBatchSize, warmupForks, warmupIterations, warmupMode, warmupTime, mem]");
+          throw new WarpScriptException(getName() + " expects parameter keys to be in [forks, measurementBatchSize, measurementIterations, measurementTime, mode, operationsPerInvocation, profilers, shouldDoGC, syncIterations, threads, groupThreads, timeUnit, warmupBatchSize, warmupForks, warmupIterations, warmupMode, warmupTime, mem, pool, calibrate, jfr, stream, output, load, exec, jvmArgs, jvm, matrix, adaptive, footprint, coldstart]");
       }
     }
   }
@@ -0,0 +1,201 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import io.warp10.WarpConfig;
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStackFunction;
+import org.apache.commons.math3.stat.descriptive.rank.Median;
+import org.apache.commons.math3.stat.inference.MannWhitneyUTest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Compare a JMH report to a baseline, either a report or the last run saved with JMHSAVE under a given name.
+ * Reports of several bench configurations or of a matrix are flattened, and each result is matched with the baseline
+ * result of the same benchmark, name, matrix entry and parameters, and the raw iteration scores
+ * of both are compared with a two-sided Mann-Whitney U test. The verdict is 'faster' or 'slower' if the p-value is
+ * below the significance level, 'nochange' otherwise.
+ */
+public class JMHCOMPARE extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+
+  /**
+   * Significance level of the test, defaults to 0.01.
+   */
+  public static final String CONF_ALPHA = "jmh.compare.alpha";
+
+  public static final String VERDICT_FASTER = "faster";
+  public static final String VERDICT_SLOWER = "slower";
+  public static final String VERDICT_NOCHANGE = "nochange";
+
+  public JMHCOMPARE(String name) {
+    super(name);
+  }
+
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    Object top = stack.pop();
+
+    List baseline;
+
+    if (top instanceof String) {
+      List<Map<Object, Object>> runs = BenchHistory.load((String) top);
+      if (runs.isEmpty()) {
+        throw new WarpScriptException(getName() + " could not find any saved run for " + top + ".");
+      }
+      baseline = (List) runs.get(runs.size() - 1).get(BenchHistory.KEY_RESULTS);
+    } else if (top instanceof List || top instanceof Map) {
+      baseline = new ArrayList<Object>();
+      JMHRunner.flatten(top, baseline);
+    } else {
+      throw new WarpScriptException(getName() + " expects a baseline report or the name of a saved benchmark.");
+    }
+
+    top = stack.pop();
+
+    if (!(top instanceof List) && !(top instanceof Map)) {
+      throw new WarpScriptException(getName() + " expects a JMH report below the baseline.");
+    }
+
+    List<Object> results = new ArrayList<Object>();
+    JMHRunner.flatten(top, results);
+
+    double alpha = Double.parseDouble(WarpConfig.getProperty(CONF_ALPHA, "0.01"));
+
+    List<Object> verdicts = new ArrayList<Object>(results.size());
+
+    for (Object result: results) {
+      if (!(result instanceof Map)) {
+        throw new WarpScriptException(getName() + " expects JMH reports.");
+      }
+      Map<Object, Object> baselineResult = findMatching((Map) result, baseline);
+      if (null == baselineResult) {
+        throw new WarpScriptException(getName() + " could not find a baseline for benchmark " + ((Map) result).get("benchmark") + " with params " + ((Map) result).get(JMH.KEY_BENCH_PARAMS) + ".");
+      }
+      verdicts.add(compare((Map) result, baselineResult, alpha));
+    }
+
+    stack.push(verdicts);
+
+    return stack;
+  }
+
+  private static Map<Object, Object> findMatching(Map<Object, Object> result, List baseline) {
+    for (Object candidate: baseline) {
+      if (candidate instanceof Map
+          && Objects.equals(result.get("benchmark"), ((Map) candidate).get("benchmark"))
+          && Objects.equals(result.get(JMH.KEY_BENCH_NAME), ((Map) candidate).get(JMH.KEY_BENCH_NAME))
+          && Objects.equals(result.get(JMH.KEY_MATRIX), ((Map) candidate).get(JMH.KEY_MATRIX))
+          && Objects.equals(result.get(JMH.KEY_BENCH_PARAMS), ((Map) candidate).get(JMH.KEY_BENCH_PARAMS))) {
+        return (Map) candidate;
+      }
+    }
+    return null;
+  }
+
+  private Map<Object, Object> compare(Map<Object, Object> result, Map<Object, Object> baselineResult, double alpha) throws WarpScriptException {
+    double[] samples = iterationScores(result);
+    double[] baselineSamples = iterationScores(baselineResult);
+
+    double median = new Median().evaluate(samples);
+    double baselineMedian = new Median().evaluate(baselineSamples);
+
+    // Mann-Whitney U test, no assumption on the distribution of the scores which are often skewed
+    double pValue = 1.0D;
+    if (samples.length > 1 && baselineSamples.length > 1) {
+      pValue = new MannWhitneyUTest().mannWhitneyUTest(samples, baselineSamples);
+    }
+
+    // In throughput mode higher is better, in all other modes the score is a time
+    boolean higherIsBetter = "thrpt".equals(result.get("mode"));
+
+    String verdict = VERDICT_NOCHANGE;
+    if (pValue < alpha && median != baselineMedian) {
+      verdict = (median > baselineMedian) == higherIsBetter ? VERDICT_FASTER : VERDICT_SLOWER;
+    }
+
+    Map<Object, Object> comparison = new LinkedHashMap<Object, Object>();
+    comparison.put("benchmark", result.get("benchmark"));
+    comparison.put(JMH.KEY_BENCH_NAME, result.get(JMH.KEY_BENCH_NAME));
+    if (result.containsKey(JMH.KEY_MATRIX)) {
+      comparison.put(JMH.KEY_MATRIX, result.get(JMH.KEY_MATRIX));
+    }
+    comparison.put(JMH.KEY_BENCH_PARAMS, result.get(JMH.KEY_BENCH_PARAMS));
+    comparison.put("verdict", verdict);
+    comparison.put("pValue", pValue);
+    comparison.put("alpha", alpha);
+    comparison.put("median", median);
+    comparison.put("baselineMedian", baselineMedian);
+    comparison.put("ratio", median / baselineMedian);
+    comparison.put("samples", (long) samples.length);
+    comparison.put("baselineSamples", (long) baselineSamples.length);
+    comparison.put("score", ((Map) result.get("primaryMetric")).get("score"));
+    comparison.put("baselineScore", ((Map) baselineResult.get("primaryMetric")).get("score"));
+    return comparison;
+  }
+
+  /**
+   * Extract the scores of all the measurement iterations of all the forks. In sample mode, the score of an iteration is
+   * the mean of its samples.
+   */
+  private double[] iterationScores(Map<Object, Object> result) throws WarpScriptException {
+    List<Double> scores = new ArrayList<Double>();
+
+    try {
+      Map primaryMetric = (Map) result.get("primaryMetric");
+      if (primaryMetric.containsKey("rawData")) {
+        for (Object fork: (List) primaryMetric.get("rawData")) {
+          for (Object score: (List) fork) {
+            scores.add(((Number) score).doubleValue());
+          }
+        }
+      } else {
+        for (Object fork: (List) primaryMetric.get("rawDataHistogram")) {
+          for (Object iteration: (List) fork) {
+            double sum = 0.0D;
+            double count = 0.0D;
+            for (Object bucket: (List) iteration) {
+              double value = ((Number) ((List) bucket).get(0)).doubleValue();
+              double n = ((Number) ((List) bucket).get(1)).doubleValue();
+              sum += value * n;
+              count += n;
+            }
+            scores.add(sum / count);
+          }
+        }
+      }
+    } catch (ClassCastException | NullPointerException e) {
+      throw new WarpScriptException(getName() + " expects JMH reports with raw data.", e);
+    }
+
+    if (scores.isEmpty()) {
+      throw new WarpScriptException(getName() + " expects JMH reports with at least one measurement iteration.");
+    }
+
+    double[] samples = new double[scores.size()];
+    for (int i = 0; i < samples.length; i++) {
+      samples[i] = scores.get(i);
+    }
+    return samples;
+  }
+}
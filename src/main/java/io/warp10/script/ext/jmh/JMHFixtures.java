@@ -0,0 +1,362 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import io.warp10.Revision;
+import io.warp10.WarpConfig;
+import io.warp10.continuum.gts.GTSWrapperHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.DirectoryClient;
+import io.warp10.continuum.store.StoreClient;
+import io.warp10.continuum.store.thrift.data.GTSWrapper;
+import io.warp10.script.MemoryWarpScriptStack;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStack.Macro;
+import io.warp10.script.functions.SNAPSHOT;
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TCompactProtocol;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of the values built by the fixture macros of the bench configurations. Each fixture macro is run once, by the
+ * first fork which needs it, and the value it leaves on top of the stack is serialized in a file named after the
+ * SHA-256 of the snapshot of the macro, of the revision of Warp 10 and of the configured extensions, which may change
+ * what the macro builds. The other forks memory-map this file and decode the value instead of running the macro again.
+ * Fixture macros thus run in the forks, with the store and the limits of the benchmark, and never in the JVM running JMH.
+ * Forks needing the same missing fixture wait for the one building it, through a lock per fixture.
+ * <p>
+ * GTS are serialized as wrappers, lists and maps recursively, and any other value as its snapshot. The least recently
+ * used files are evicted when the cache exceeds 'jmh.fixtures.maxsize' bytes.
+ */
+public class JMHFixtures {
+
+  /**
+   * Directory of the cached fixtures, defaults to jmh-fixtures in the temporary directory.
+   */
+  public static final String CONF_DIR = "jmh.fixtures.dir";
+
+  /**
+   * Maximum size in bytes of the cached fixtures, defaults to 1 GiB.
+   */
+  public static final String CONF_MAXSIZE = "jmh.fixtures.maxsize";
+
+  private static final String SUFFIX = ".fixture";
+
+  // Prefix of the configuration keys of the WarpScript extensions, warpscript.extensions and warpscript.extension.*
+  private static final String CONF_EXTENSION_PREFIX = "warpscript.extension";
+
+  private static final byte TYPE_SNAPSHOT = 0;
+  private static final byte TYPE_GTS = 1;
+  private static final byte TYPE_LIST = 2;
+  private static final byte TYPE_MAP = 3;
+
+  // Lock of each fixture in this JVM, the file locks of the forks being held by the whole JVM
+  private static final Map<String, Object> LOCKS = new ConcurrentHashMap<String, Object>();
+
+  private static File getDir() {
+    return new File(WarpConfig.getProperty(CONF_DIR, new File(System.getProperty("java.io.tmpdir"), "jmh-fixtures").getAbsolutePath()));
+  }
+
+  /**
+   * File caching the value of a fixture macro.
+   */
+  static File getFile(Macro macro) throws WarpScriptException {
+    StringBuilder sb = new StringBuilder();
+    sb.append(Revision.REVISION).append('\n');
+
+    // The extensions are those of the configuration, sorted so the order of the properties does not matter
+    Map<String, String> extensions = new TreeMap<String, String>();
+    for (Map.Entry<Object, Object> property: WarpConfig.getProperties().entrySet()) {
+      if (property.getKey().toString().startsWith(CONF_EXTENSION_PREFIX)) {
+        extensions.put(property.getKey().toString(), String.valueOf(property.getValue()));
+      }
+    }
+    for (Map.Entry<String, String> extension: extensions.entrySet()) {
+      sb.append(extension.getKey()).append('=').append(extension.getValue()).append('\n');
+    }
+
+    SNAPSHOT.addElement(sb, macro);
+
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+      StringBuilder name = new StringBuilder();
+      for (byte b: hash) {
+        name.append(String.format("%02x", b & 0xFF));
+      }
+      return new File(getDir(), name.append(SUFFIX).toString());
+    } catch (NoSuchAlgorithmException nsae) {
+      // cannot happen, SHA-256 is always available
+      throw new WarpScriptException("Could not hash fixture.", nsae);
+    }
+  }
+
+  /**
+   * Mark the cached fixtures of the bench configurations as recently used, then evict the least recently used fixtures
+   * if the cache is too large. Missing fixtures are built by the forks, see load.
+   * @param benchConfigurations List of maps of macros.
+   */
+  public static void prepare(List<Map<Object, Object>> benchConfigurations) throws WarpScriptException {
+    Set<File> used = new HashSet<File>();
+
+    for (Map<Object, Object> benchConfiguration: benchConfigurations) {
+      Map<Object, Object> fixtures = (Map) benchConfiguration.get(JMH.FIXTURES_KEY);
+      if (null == fixtures) {
+        continue;
+      }
+
+      for (Object macro: fixtures.values()) {
+        File file = getFile((Macro) macro);
+        used.add(file);
+
+        if (file.exists()) {
+          file.setLastModified(System.currentTimeMillis());
+        }
+      }
+    }
+
+    if (!used.isEmpty()) {
+      evict(used);
+    }
+  }
+
+  /**
+   * Store the values of the fixtures of a bench configuration in variables named after the fixtures. A value missing
+   * from the cache is built and written by this fork, unless another fork built it while this one waited for its lock.
+   * @param stack Stack in which the values are stored.
+   * @param benchConfiguration Map of macros.
+   * @param storeClient Store of the benchmark, used by the fixture macros.
+   * @param directoryClient Directory of the benchmark, used by the fixture macros.
+   */
+  public static void load(WarpScriptStack stack, Map<Object, Object> benchConfiguration, StoreClient storeClient, DirectoryClient directoryClient) throws WarpScriptException {
+    Map<Object, Object> fixtures = (Map) benchConfiguration.get(JMH.FIXTURES_KEY);
+    if (null == fixtures) {
+      return;
+    }
+
+    for (Map.Entry<Object, Object> fixture: fixtures.entrySet()) {
+      Macro macro = (Macro) fixture.getValue();
+      File file = getFile(macro);
+
+      Object value;
+      if (file.exists()) {
+        value = read(stack, file, fixture.getKey());
+      } else {
+        value = buildMissing(stack, file, macro, fixture.getKey(), storeClient, directoryClient);
+      }
+
+      stack.store(fixture.getKey().toString(), value);
+    }
+  }
+
+  /**
+   * Build a fixture missing from the cache and write it, holding the lock of the fixture so concurrent forks do not
+   * build it again.
+   */
+  private static Object buildMissing(WarpScriptStack stack, File file, Macro macro, Object name, StoreClient storeClient, DirectoryClient directoryClient) throws WarpScriptException {
+    file.getParentFile().mkdirs();
+
+    synchronized (LOCKS.computeIfAbsent(file.getName(), k -> new Object())) {
+      try (RandomAccessFile raf = new RandomAccessFile(new File(file.getPath() + ".lock"), "rw"); FileChannel channel = raf.getChannel(); FileLock lock = channel.lock()) {
+        if (file.exists()) {
+          return read(stack, file, name);
+        }
+        Object value = build(macro, storeClient, directoryClient);
+        // The value built is used even if the file is evicted right after being written
+        write(file, value);
+        return value;
+      } catch (IOException ioe) {
+        throw new WarpScriptException("Could not lock fixture '" + name + "'.", ioe);
+      }
+    }
+  }
+
+  private static Object read(WarpScriptStack stack, File file, Object name) throws WarpScriptException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+      // A single buffer maps at most 2 GiB
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new WarpScriptException("Fixture '" + name + "' is larger than " + Integer.MAX_VALUE + " bytes.");
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return decode(stack, buffer);
+    } catch (IOException ioe) {
+      throw new WarpScriptException("Could not read fixture '" + name + "'.", ioe);
+    }
+  }
+
+  private static Object build(Macro macro, StoreClient storeClient, DirectoryClient directoryClient) throws WarpScriptException {
+    MemoryWarpScriptStack stack = MacroBenchmark.newStack(storeClient, directoryClient);
+    stack.exec(macro);
+    if (0 == stack.depth()) {
+      throw new WarpScriptException("Fixture macros must leave their value on the stack.");
+    }
+    return stack.pop();
+  }
+
+  private static void write(File file, Object value) throws WarpScriptException {
+    file.getParentFile().mkdirs();
+
+    try {
+      // Write to a temporary file first, forks of concurrent benchmarks may read the same fixture
+      File tmp = File.createTempFile("fixture", ".tmp", file.getParentFile());
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+        encode(out, value, new TSerializer(new TCompactProtocol.Factory()));
+      } catch (IOException | TException e) {
+        tmp.delete();
+        throw new WarpScriptException("Could not write fixture.", e);
+      }
+      // Fail now rather than in the forks, which map the file in a single buffer
+      if (tmp.length() > Integer.MAX_VALUE) {
+        tmp.delete();
+        throw new WarpScriptException("Fixture is larger than " + Integer.MAX_VALUE + " bytes.");
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException ioe) {
+      throw new WarpScriptException("Could not write fixture.", ioe);
+    }
+  }
+
+  private static void encode(DataOutputStream out, Object value, TSerializer serializer) throws IOException, TException, WarpScriptException {
+    if (value instanceof GeoTimeSerie) {
+      GTSWrapper wrapper = GTSWrapperHelper.fromGTSToGTSWrapper((GeoTimeSerie) value, true);
+      byte[] bytes = serializer.serialize(wrapper);
+      out.writeByte(TYPE_GTS);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    } else if (value instanceof List) {
+      out.writeByte(TYPE_LIST);
+      out.writeInt(((List) value).size());
+      for (Object element: (List) value) {
+        encode(out, element, serializer);
+      }
+    } else if (value instanceof Map) {
+      out.writeByte(TYPE_MAP);
+      out.writeInt(((Map) value).size());
+      for (Map.Entry<Object, Object> entry: ((Map<Object, Object>) value).entrySet()) {
+        encode(out, entry.getKey(), serializer);
+        encode(out, entry.getValue(), serializer);
+      }
+    } else {
+      StringBuilder sb = new StringBuilder();
+      SNAPSHOT.addElement(sb, value);
+      byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+      out.writeByte(TYPE_SNAPSHOT);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static Object decode(WarpScriptStack stack, ByteBuffer buffer) throws WarpScriptException {
+    byte type = buffer.get();
+    switch (type) {
+      case TYPE_GTS:
+        byte[] wrapperBytes = new byte[buffer.getInt()];
+        buffer.get(wrapperBytes);
+        try {
+          GTSWrapper wrapper = new GTSWrapper();
+          new TDeserializer(new TCompactProtocol.Factory()).deserialize(wrapper, wrapperBytes);
+          return GTSWrapperHelper.fromGTSWrapperToGTS(wrapper);
+        } catch (TException te) {
+          throw new WarpScriptException("Invalid fixture.", te);
+        }
+      case TYPE_LIST:
+        int size = buffer.getInt();
+        List<Object> list = new ArrayList<Object>(size);
+        for (int i = 0; i < size; i++) {
+          list.add(decode(stack, buffer));
+        }
+        return list;
+      case TYPE_MAP:
+        int entries = buffer.getInt();
+        Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+        for (int i = 0; i < entries; i++) {
+          Object key = decode(stack, buffer);
+          map.put(key, decode(stack, buffer));
+        }
+        return map;
+      case TYPE_SNAPSHOT:
+        byte[] snapshot = new byte[buffer.getInt()];
+        buffer.get(snapshot);
+        stack.exec(new String(snapshot, StandardCharsets.UTF_8));
+        return stack.pop();
+      default:
+        throw new WarpScriptException("Invalid fixture.");
+    }
+  }
+
+  /**
+   * Delete the least recently used fixtures, except those in use, until the cache fits in its maximum size.
+   */
+  private static synchronized void evict(Set<File> used) {
+    long maxSize = Long.parseLong(WarpConfig.getProperty(CONF_MAXSIZE, Long.toString(1024L * 1024L * 1024L)));
+
+    File[] files = getDir().listFiles();
+    if (null == files) {
+      return;
+    }
+
+    long size = 0L;
+    for (File file: files) {
+      size += file.length();
+    }
+
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File o1, File o2) {
+        return Long.compare(o1.lastModified(), o2.lastModified());
+      }
+    });
+
+    for (File file: files) {
+      if (size <= maxSize) {
+        break;
+      }
+      if (file.getName().endsWith(SUFFIX) && !used.contains(file)) {
+        size -= file.length();
+        file.delete();
+        new File(file.getPath() + ".lock").delete();
+      }
+    }
+  }
+}
@@ -0,0 +1,259 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import io.warp10.WarpConfig;
+import io.warp10.script.WarpScriptException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded scheduler of asynchronous benchmark jobs, see JMHSUBMIT, JMHSTATUS, JMHRESULT and JMHCANCEL.
+ * Jobs are run by a dedicated pool of threads so they survive the request which submitted them.
+ */
+public class JMHJobScheduler {
+
+  /**
+   * Maximum number of benchmarks run concurrently, defaults to 1. Above 1, the JMH lock is ignored, see
+   * JMHWarpScriptExtension.
+   */
+  public static final String CONF_CONCURRENCY = "jmh.jobs.concurrency";
+
+  /**
+   * Maximum number of jobs waiting to be run, defaults to 16.
+   */
+  public static final String CONF_QUEUE = "jmh.jobs.queue";
+
+  /**
+   * Delay in ms after which finished jobs are forgotten, defaults to 1 hour.
+   */
+  public static final String CONF_RETENTION = "jmh.jobs.retention";
+
+  public enum Status {
+    QUEUED,
+    RUNNING,
+    DONE,
+    FAILED,
+    CANCELLED
+  }
+
+  /**
+   * Benchmark run by a job.
+   */
+  public interface Benchmark {
+    /**
+     * Run the benchmark, returning its report.
+     * @param cancelFile File created when the job is cancelled, the forks stop at their next iteration when it exists.
+     */
+    Object run(File cancelFile) throws Exception;
+  }
+
+  public static class Job {
+    private final String id = UUID.randomUUID().toString();
+    private final long submitted = System.currentTimeMillis();
+    private final File cancelFile = new File(System.getProperty("java.io.tmpdir"), "cancel-" + id + ".jmh");
+    private boolean cancelled = false;
+    private volatile long started = 0L;
+    private volatile long ended = 0L;
+    private volatile Status status = Status.QUEUED;
+    private volatile Object result = null;
+    private volatile String error = null;
+    private Future<Object> future;
+
+    public String getId() {
+      return id;
+    }
+
+    public Status getStatus() {
+      return status;
+    }
+
+    public Object getResult() {
+      return result;
+    }
+
+    public Map<Object, Object> toMap() {
+      Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+      map.put("id", id);
+      map.put("status", status.name());
+      map.put("submitted", submitted);
+      map.put("started", 0L == started ? null : started);
+      map.put("ended", 0L == ended ? null : ended);
+      map.put("error", error);
+      return map;
+    }
+  }
+
+  private static JMHJobScheduler instance;
+
+  private final ThreadPoolExecutor executor;
+  private final Map<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+  private final long retention;
+
+  private JMHJobScheduler(Properties props) {
+    int concurrency = Integer.parseInt(props.getProperty(CONF_CONCURRENCY, "1"));
+    int queue = Integer.parseInt(props.getProperty(CONF_QUEUE, "16"));
+    retention = Long.parseLong(props.getProperty(CONF_RETENTION, Long.toString(3600000L)));
+
+    executor = new ThreadPoolExecutor(concurrency, concurrency, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queue), new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "[JMH job #" + count.incrementAndGet() + "]");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  public static synchronized JMHJobScheduler getInstance() {
+    if (null == instance) {
+      instance = new JMHJobScheduler(WarpConfig.getProperties());
+    }
+    return instance;
+  }
+
+  /**
+   * Submit a benchmark, returns immediately.
+   * @param benchmark The benchmark to run, returning its report.
+   * @return The submitted job.
+   * @throws WarpScriptException if the queue is full.
+   */
+  public Job submit(final Benchmark benchmark) throws WarpScriptException {
+    purge();
+
+    final Job job = new Job();
+
+    Callable<Object> callable = new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        synchronized (job) {
+          // Cancelled while queued
+          if (job.cancelled) {
+            return null;
+          }
+          job.started = System.currentTimeMillis();
+          job.status = Status.RUNNING;
+        }
+
+        try {
+          Object result = benchmark.run(job.cancelFile);
+          synchronized (job) {
+            job.result = result;
+            job.status = Status.DONE;
+          }
+          return result;
+        } catch (Exception e) {
+          synchronized (job) {
+            job.error = null == e.getMessage() ? e.getClass().getName() : e.getMessage();
+            job.status = job.cancelled ? Status.CANCELLED : Status.FAILED;
+          }
+          throw e;
+        } finally {
+          synchronized (job) {
+            job.ended = System.currentTimeMillis();
+            job.cancelFile.delete();
+          }
+        }
+      }
+    };
+
+    // Register before submitting so the job can be queried as soon as the id is known
+    jobs.put(job.id, job);
+
+    try {
+      job.future = executor.submit(callable);
+    } catch (RejectedExecutionException ree) {
+      jobs.remove(job.id);
+      throw new WarpScriptException("Too many benchmark jobs, the queue is full.", ree);
+    }
+
+    return job;
+  }
+
+  public Job get(String id) {
+    purge();
+    return jobs.get(id);
+  }
+
+  /**
+   * Cancel a job. A queued job is never run and is CANCELLED at once. A running job creates its cancel file, so its
+   * forks, which may be other JVMs, stop at their next iteration: it stays RUNNING until they have stopped, then it is
+   * CANCELLED. A job whose run ends before the forks notice the cancellation is DONE.
+   * @param id Id of the job.
+   * @return true if the job was cancelled, false if it was unknown, already cancelled or already finished.
+   * @throws WarpScriptException if the cancel file cannot be created.
+   */
+  public boolean cancel(String id) throws WarpScriptException {
+    Job job = jobs.get(id);
+
+    if (null == job) {
+      return false;
+    }
+
+    synchronized (job) {
+      if (job.cancelled || 0L != job.ended) {
+        return false;
+      }
+
+      job.cancelled = true;
+
+      if (Status.QUEUED == job.status) {
+        job.status = Status.CANCELLED;
+        job.ended = System.currentTimeMillis();
+        if (null != job.future) {
+          job.future.cancel(false);
+        }
+        return true;
+      }
+
+      try {
+        job.cancelFile.createNewFile();
+      } catch (IOException ioe) {
+        throw new WarpScriptException("Could not cancel benchmark job " + id + ".", ioe);
+      }
+      return true;
+    }
+  }
+
+  private void purge() {
+    long now = System.currentTimeMillis();
+    Iterator<Job> iter = jobs.values().iterator();
+    while (iter.hasNext()) {
+      Job job = iter.next();
+      if (0L != job.ended && now - job.ended > retention) {
+        iter.remove();
+      }
+    }
+  }
+}
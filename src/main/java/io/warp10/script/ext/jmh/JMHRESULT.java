@@ -0,0 +1,55 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStackFunction;
+
+/**
+ * Push the report of a finished benchmark job submitted with JMHSUBMIT.
+ */
+public class JMHRESULT extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+
+  public JMHRESULT(String name) {
+    super(name);
+  }
+
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    Object top = stack.pop();
+
+    if (!(top instanceof String)) {
+      throw new WarpScriptException(getName() + " expects a job id.");
+    }
+
+    JMHJobScheduler.Job job = JMHJobScheduler.getInstance().get((String) top);
+
+    if (null == job) {
+      throw new WarpScriptException(getName() + " could not find job " + top + ".");
+    }
+
+    if (JMHJobScheduler.Status.DONE != job.getStatus()) {
+      throw new WarpScriptException(getName() + " cannot get the results of job " + top + " whose status is " + job.getStatus().name() + ".");
+    }
+
+    stack.push(job.getResult());
+
+    return stack;
+  }
+}
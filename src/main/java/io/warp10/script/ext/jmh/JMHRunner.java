@@ -0,0 +1,454 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import io.warp10.Revision;
+import io.warp10.WarpConfig;
+import io.warp10.json.JsonUtils;
+import io.warp10.script.MemoryWarpScriptStack;
+import io.warp10.script.WarpScriptLib;
+import io.warp10.script.functions.SNAPSHOT;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Run the benchmarks defined in a directory of .mc2 files outside of Warp 10, and write aggregated JSON and CSV reports.
+ * Each file leaves on the stack the bench configurations and the JMH parameters, as given to JMH, the parameters being
+ * optional.
+ * <p>
+ * Each file is run by a child JVM. Up to 'parallel' files are run at the same time, each child being pinned with
+ * taskset to its own set of CPUs, which the forks of JMH inherit, so concurrent benchmarks do not share cores. The sets
+ * are taken from the CPUs the runner itself is allowed to run on.
+ * <p>
+ * Usage: JMHRunner [--parallel n] [--cpus n] [--nopin] [--conf warp10.conf] [--profilers gc,...] &lt;directory&gt;
+ * &lt;report&gt;, the reports being written to report.json and report.csv. The given profilers are added to those of
+ * each file. The exit code is 1 if a benchmark failed.
+ */
+public class JMHRunner {
+
+  public static final String SUFFIX = ".mc2";
+
+  private static final String RUN = "--run";
+  private static final String TASKSET = "/usr/bin/taskset";
+  private static final String PROC_STATUS = "/proc/self/status";
+  private static final String CPUS_ALLOWED_LIST = "Cpus_allowed_list:";
+  private static final String IGNORE_LOCK = "-Djmh.ignoreLock=true";
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0 && RUN.equals(args[0])) {
+      runFile(new File(args[1]), new File(args[2]), args[3], args.length > 4 ? args[4] : null);
+      // JMH may leave non daemon threads behind
+      System.exit(0);
+    }
+
+    int parallel = 1;
+    int cpus = 0;
+    boolean pin = true;
+    String conf = null;
+    String profilers = null;
+    List<String> positional = new ArrayList<String>();
+
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "--parallel":
+          parallel = Integer.parseInt(args[++i]);
+          break;
+        case "--cpus":
+          cpus = Integer.parseInt(args[++i]);
+          break;
+        case "--nopin":
+          pin = false;
+          break;
+        case "--conf":
+          conf = args[++i];
+          break;
+        case "--profilers":
+          profilers = args[++i];
+          break;
+        default:
+          positional.add(args[i]);
+      }
+    }
+
+    if (2 != positional.size() || parallel < 1) {
+      System.err.println("Usage: JMHRunner [--parallel n] [--cpus n] [--nopin] [--conf warp10.conf] [--profilers gc,...] <directory> <report>");
+      System.exit(2);
+    }
+
+    File dir = new File(positional.get(0));
+    File[] files = dir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(SUFFIX);
+      }
+    });
+    if (null == files || 0 == files.length) {
+      System.err.println("No " + SUFFIX + " file in " + dir);
+      System.exit(2);
+    }
+    Arrays.sort(files);
+
+    if (null == conf) {
+      File configuration = File.createTempFile("warp10", ".conf");
+      configuration.deleteOnExit();
+      try (Writer writer = new OutputStreamWriter(new FileOutputStream(configuration), StandardCharsets.UTF_8)) {
+        writer.write("warp.timeunits = us\n");
+        // The benchmark files are those of the user running the runner, they may set the JVM of their forks
+        writer.write(JMH.CONF_JVM_ALLOW + " = true\n");
+      }
+      conf = configuration.getAbsolutePath();
+    }
+
+    // The CPUs this JVM may run on, in a container or under taskset they are not numbered from 0
+    final List<Integer> allowed = allowedCpus();
+    if (0 == cpus) {
+      cpus = Math.max(1, allowed.size() / parallel);
+    }
+    pin = pin && new File(TASKSET).canExecute() && parallel * cpus <= allowed.size();
+    if (!pin && parallel > 1) {
+      System.err.println("Benchmarks run in parallel without CPU pinning, their results may interfere.");
+    }
+
+    // Each slot is a set of CPUs, taken by a child for the duration of its benchmark
+    BlockingQueue<Integer> slots = new ArrayBlockingQueue<Integer>(parallel);
+    for (int i = 0; i < parallel; i++) {
+      slots.add(i);
+    }
+
+    File reportDir = new File(positional.get(1)).getAbsoluteFile().getParentFile();
+    reportDir.mkdirs();
+
+    ExecutorService executor = Executors.newFixedThreadPool(parallel);
+    List<Future<Map<Object, Object>>> runs = new ArrayList<Future<Map<Object, Object>>>();
+    for (File file: files) {
+      final File benchFile = file;
+      final String warpConf = conf;
+      final int slotCpus = cpus;
+      final boolean slotPin = pin;
+      final String fileProfilers = profilers;
+      final boolean ignoreLock = parallel > 1;
+      runs.add(executor.submit(new Callable<Map<Object, Object>>() {
+        @Override
+        public Map<Object, Object> call() throws Exception {
+          int slot = slots.take();
+          try {
+            String cpuList = slotPin ? cpuList(allowed.subList(slot * slotCpus, (slot + 1) * slotCpus)) : null;
+            List<String> prefix = new ArrayList<String>();
+            if (null != cpuList) {
+              prefix.add(TASKSET);
+              prefix.add("-c");
+              prefix.add(cpuList);
+            }
+            Map<Object, Object> run = runChild(benchFile, warpConf, prefix, fileProfilers, ignoreLock);
+            run.put("cpus", cpuList);
+            return run;
+          } finally {
+            slots.put(slot);
+          }
+        }
+      }));
+    }
+    executor.shutdown();
+
+    List<Object> results = new ArrayList<Object>();
+    boolean failed = false;
+    for (Future<Map<Object, Object>> run: runs) {
+      Map<Object, Object> result = run.get();
+      failed |= null != result.get("error");
+      results.add(result);
+    }
+
+    Map<Object, Object> report = new LinkedHashMap<Object, Object>();
+    report.put("timestamp", System.currentTimeMillis());
+    report.put("revision", Revision.REVISION);
+    report.put("environment", JMHSUITE.environment());
+    report.put("parallel", (long) parallel);
+    report.put("cpus", pin ? (long) cpus : null);
+    report.put("runs", results);
+
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(positional.get(1) + ".json"), StandardCharsets.UTF_8)) {
+      writer.write(JsonUtils.objectToJson(report, true));
+      writer.write("\n");
+    }
+
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(positional.get(1) + ".csv"), StandardCharsets.UTF_8)) {
+      writeCsv(writer, results);
+    }
+
+    System.exit(failed ? 1 : 0);
+  }
+
+  /**
+   * Run a file in a child JVM.
+   * @param file The .mc2 file.
+   * @param conf Path of the Warp 10 configuration of the child.
+   * @param prefix Command prefixing the java command, to pin the child to some CPUs or lower its priority for instance.
+   * @param profilers Comma separated profilers added to those of the file, may be null.
+   * @param ignoreLock Whether the child ignores the host-wide lock of JMH, which children run in parallel would
+   *                   otherwise wait for in turn.
+   * @return A map of the file, its results or the error.
+   */
+  static Map<Object, Object> runChild(File file, String conf, List<String> prefix, String profilers, boolean ignoreLock) throws IOException, InterruptedException {
+    File output = File.createTempFile("jmhrun", ".json");
+
+    List<String> command = new ArrayList<String>(prefix);
+    command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+    if (ignoreLock) {
+      command.add(IGNORE_LOCK);
+    }
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(JMHRunner.class.getName());
+    command.add(RUN);
+    command.add(file.getAbsolutePath());
+    command.add(output.getAbsolutePath());
+    command.add(conf);
+    if (null != profilers) {
+      command.add(profilers);
+    }
+
+    Map<Object, Object> run = new LinkedHashMap<Object, Object>();
+    run.put("file", file.getName());
+
+    long start = System.currentTimeMillis();
+    Process process = new ProcessBuilder(command).inheritIO().start();
+    int exitCode = process.waitFor();
+    run.put("duration", System.currentTimeMillis() - start);
+
+    try {
+      String json = new String(Files.readAllBytes(output.toPath()), StandardCharsets.UTF_8);
+      if (0 != exitCode || json.isEmpty()) {
+        run.put("error", json.isEmpty() ? "Exit code " + exitCode : json);
+      } else {
+        run.put("results", JsonUtils.jsonToObject(json));
+      }
+    } finally {
+      output.delete();
+    }
+
+    return run;
+  }
+
+  /**
+   * Run a file in this JVM and write its results as JSON, or the error as plain text.
+   */
+  private static void runFile(File file, File output, String conf, String profilers) throws IOException {
+    String json;
+    try {
+      WarpConfig.setProperties(conf);
+      WarpScriptLib.registerExtensions();
+      WarpScriptLib.register(new JMHWarpScriptExtension());
+
+      MemoryWarpScriptStack stack = MacroBenchmark.newStack();
+      stack.execMulti(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+      // The JMH parameters are optional
+      if (1 == stack.depth()) {
+        stack.push(new LinkedHashMap<Object, Object>());
+      }
+      if (null != profilers) {
+        Map<Object, Object> jmhConf = new LinkedHashMap<Object, Object>((Map) stack.pop());
+        List<Object> fileProfilers = new ArrayList<Object>((List) jmhConf.getOrDefault("profilers", new ArrayList<Object>()));
+        for (String profiler: profilers.split(",")) {
+          if (!profiler.isEmpty() && !fileProfilers.contains(profiler)) {
+            fileProfilers.add(profiler);
+          }
+        }
+        jmhConf.put("profilers", fileProfilers);
+        stack.push(jmhConf);
+      }
+      stack.exec("JMH");
+
+      List<Object> results = new ArrayList<Object>();
+      flatten(stack.pop(), results);
+
+      // Macros cannot be converted to JSON, keep the snapshot of the configurations
+      for (Object result: results) {
+        Object benchConfiguration = ((Map) result).get(JMH.KEY_BENCH_CONFIGURATION);
+        if (null != benchConfiguration) {
+          StringBuilder sb = new StringBuilder();
+          SNAPSHOT.addElement(sb, benchConfiguration);
+          ((Map) result).put(JMH.KEY_BENCH_CONFIGURATION, sb.toString());
+        }
+      }
+
+      json = JsonUtils.objectToJson(results, true);
+    } catch (Throwable t) {
+      try (Writer writer = new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8)) {
+        writer.write(String.valueOf(t));
+      }
+      System.exit(1);
+      return;
+    }
+
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8)) {
+      writer.write(json);
+    }
+  }
+
+  /**
+   * List the CPUs this process is allowed to run on, from its affinity which also reflects the cpuset of its cgroup.
+   * @return The CPU numbers, all the available processors from 0 if the affinity cannot be read.
+   */
+  static List<Integer> allowedCpus() {
+    try {
+      for (String line: Files.readAllLines(new File(PROC_STATUS).toPath(), StandardCharsets.UTF_8)) {
+        if (line.startsWith(CPUS_ALLOWED_LIST)) {
+          List<Integer> allowed = parseCpuList(line.substring(CPUS_ALLOWED_LIST.length()).trim());
+          if (!allowed.isEmpty()) {
+            return allowed;
+          }
+        }
+      }
+    } catch (IOException | NumberFormatException e) {
+      // Not Linux, fall back to the available processors
+    }
+
+    List<Integer> allowed = new ArrayList<Integer>();
+    for (int i = 0; i < Runtime.getRuntime().availableProcessors(); i++) {
+      allowed.add(i);
+    }
+    return allowed;
+  }
+
+  /**
+   * Parse a list of CPUs in the format of taskset and cpuset, such as 0-3,8,10-11.
+   */
+  static List<Integer> parseCpuList(String list) {
+    List<Integer> cpus = new ArrayList<Integer>();
+    for (String range: list.split(",")) {
+      if (range.isEmpty()) {
+        continue;
+      }
+      int dash = range.indexOf('-');
+      int first = Integer.parseInt(range.substring(0, -1 == dash ? range.length() : dash));
+      int last = -1 == dash ? first : Integer.parseInt(range.substring(dash + 1));
+      for (int cpu = first; cpu <= last; cpu++) {
+        cpus.add(cpu);
+      }
+    }
+    return cpus;
+  }
+
+  /**
+   * Format a list of CPUs for taskset -c.
+   */
+  static String cpuList(List<Integer> cpus) {
+    StringBuilder sb = new StringBuilder();
+    for (int cpu: cpus) {
+      if (sb.length() > 0) {
+        sb.append(',');
+      }
+      sb.append(cpu);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Collect the results of a report, which is keyed by name and by entry of the matrix if any.
+   */
+  static void flatten(Object report, List<Object> results) {
+    if (report instanceof Map) {
+      for (Object value: ((Map) report).values()) {
+        flatten(value, results);
+      }
+    } else if (report instanceof List) {
+      results.addAll((List) report);
+    } else {
+      // Left for the caller to reject
+      results.add(report);
+    }
+  }
+
+  private static void writeCsv(Writer writer, List<Object> runs) throws IOException {
+    writer.write("file,name,matrix,params,benchmark,mode,threads,forks,score,scoreError,scoreUnit,error\n");
+
+    for (Object run: runs) {
+      Map<Object, Object> fileRun = (Map) run;
+      String file = csv(fileRun.get("file"));
+
+      if (null != fileRun.get("error")) {
+        writer.write(file + ",,,,,,,,,,," + csv(fileRun.get("error")) + "\n");
+        continue;
+      }
+
+      for (Object result: (List) fileRun.get("results")) {
+        Map<Object, Object> benchResult = (Map) result;
+        Map primaryMetric = (Map) benchResult.get("primaryMetric");
+
+        StringBuilder params = new StringBuilder();
+        Map<Object, Object> benchParams = (Map) benchResult.get(JMH.KEY_BENCH_PARAMS);
+        if (null != benchParams) {
+          for (Map.Entry<Object, Object> param: benchParams.entrySet()) {
+            if (params.length() > 0) {
+              params.append(';');
+            }
+            params.append(param.getKey()).append('=').append(param.getValue());
+          }
+        }
+
+        String benchmark = String.valueOf(benchResult.get("benchmark"));
+
+        writer.write(String.join(",",
+            file,
+            csv(benchResult.get(JMH.KEY_BENCH_NAME)),
+            csv(benchResult.get(JMH.KEY_MATRIX)),
+            csv(params.toString()),
+            csv(benchmark.substring(benchmark.lastIndexOf('.') + 1)),
+            csv(benchResult.get("mode")),
+            csv(benchResult.get("threads")),
+            csv(benchResult.get("forks")),
+            csv(primaryMetric.get("score")),
+            csv(primaryMetric.get("scoreError")),
+            csv(primaryMetric.get("scoreUnit")),
+            ""));
+        writer.write("\n");
+      }
+    }
+  }
+
+  /**
+   * Quote a CSV field if needed.
+   */
+  private static String csv(Object value) {
+    if (null == value) {
+      return "";
+    }
+    String s = value.toString();
+    if (s.contains(",") || s.contains("\"") || s.contains("\n")) {
+      return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+    return s;
+  }
+}
@@ -0,0 +1,61 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStackFunction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append the report pushed by JMH to the history of a named benchmark. Reports of several bench configurations or of a
+ * matrix are flattened, each result keeping its name and matrix entry.
+ */
+public class JMHSAVE extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+
+  public JMHSAVE(String name) {
+    super(name);
+  }
+
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    Object top = stack.pop();
+
+    if (!(top instanceof String)) {
+      throw new WarpScriptException(getName() + " expects a benchmark name.");
+    }
+
+    String name = (String) top;
+
+    top = stack.pop();
+
+    if (!(top instanceof List) && !(top instanceof Map)) {
+      throw new WarpScriptException(getName() + " expects a JMH report below the benchmark name.");
+    }
+
+    List<Object> results = new ArrayList<Object>();
+    JMHRunner.flatten(top, results);
+
+    BenchHistory.append(name, results);
+
+    return stack;
+  }
+}
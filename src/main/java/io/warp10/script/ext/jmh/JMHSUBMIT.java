@@ -0,0 +1,57 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Submit a benchmark to the job scheduler and push the id of the job. Takes the same parameters as JMH.
+ */
+public class JMHSUBMIT extends JMH {
+
+  public JMHSUBMIT(String name) {
+    super(name);
+  }
+
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    final Map<Object, Object> jmhConf = popJMHConfiguration(stack);
+    final List<Map<Object, Object>> benchConfigurations = popBenchConfigurations(stack);
+
+    // Report invalid parameters now rather than when the job is run
+    checkJMHConfiguration(jmhConf);
+    if (jmhConf.get(STREAM_KEY) instanceof WarpScriptStack.Macro) {
+      throw new WarpScriptException(getName() + " cannot call a '" + STREAM_KEY + "' macro after the end of the request, give a file instead.");
+    }
+
+    JMHJobScheduler.Job job = JMHJobScheduler.getInstance().submit(new JMHJobScheduler.Benchmark() {
+      @Override
+      public Object run(File cancelFile) throws Exception {
+        return report(JMHSUBMIT.this.run(benchConfigurations, jmhConf, null, cancelFile), benchConfigurations);
+      }
+    });
+
+    stack.push(job.getId());
+
+    return stack;
+  }
+}
@@ -0,0 +1,221 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import io.warp10.Revision;
+import io.warp10.script.MemoryWarpScriptStack;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Run the suite of core WarpScript functions bundled in the jar, see suite.mc2, and push a baseline of the scores along
+ * with the revision of Warp 10 and a description of the hardware and JVM, to be compared across releases and machines.
+ * Takes the same JMH parameters as JMH, which override the defaults of the suite, plus the names of the benchmarks to
+ * run under the 'only' key.
+ */
+public class JMHSUITE extends JMH {
+
+  // Path of the suite in the jar, relative to the src/main/warpscript directory
+  public static final String SUITE = "io.warp10/warp10-ext-jmh/suite";
+
+  // JMH parameter, list of the names of the benchmarks of the suite to run
+  public static final String ONLY_KEY = "only";
+
+  // Keys of the baseline
+  public static final String KEY_SUITE = "suite";
+  public static final String KEY_TIMESTAMP = "timestamp";
+  public static final String KEY_REVISION = "revision";
+  public static final String KEY_ENVIRONMENT = "environment";
+  public static final String KEY_JMH_CONFIGURATION = "jmhConfiguration";
+  public static final String KEY_RESULTS = "results";
+
+  private static final Map<Object, Object> DEFAULTS = new LinkedHashMap<Object, Object>();
+
+  static {
+    DEFAULTS.put("forks", 1L);
+    DEFAULTS.put("warmupIterations", 3L);
+    DEFAULTS.put("warmupTime", "1 s");
+    DEFAULTS.put("measurementIterations", 5L);
+    DEFAULTS.put("measurementTime", "1 s");
+    DEFAULTS.put("mode", "avgt");
+    DEFAULTS.put("timeUnit", "MICROSECONDS");
+  }
+
+  public JMHSUITE(String name) {
+    super(name);
+  }
+
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    Map<Object, Object> jmhConf = popJMHConfiguration(stack);
+
+    stack.push(runSuite(jmhConf, stack));
+
+    return stack;
+  }
+
+  /**
+   * Run the suite and build its baseline.
+   * @param jmhConf JMH parameters overriding the defaults of the suite.
+   * @param stack Stack on which the stream macro is called, null if the suite is not run by a WarpScript request.
+   * @return The baseline.
+   * @throws WarpScriptException if the suite cannot be loaded or run.
+   */
+  public Map<Object, Object> runSuite(Map<Object, Object> jmhConf, WarpScriptStack stack) throws WarpScriptException {
+    Map<Object, Object> suite = loadSuite();
+
+    Map<Object, Object> suiteConf = new LinkedHashMap<Object, Object>(DEFAULTS);
+    // The iterations of adaptive runs are not set
+    if (jmhConf.containsKey(ADAPTIVE_KEY)) {
+      suiteConf.remove("warmupIterations");
+      suiteConf.remove("warmupTime");
+      suiteConf.remove("measurementIterations");
+    }
+    // Cold start benchmarks set their own mode, forks and iterations
+    if (jmhConf.containsKey(COLDSTART_KEY)) {
+      suiteConf.remove("forks");
+      suiteConf.remove("warmupIterations");
+      suiteConf.remove("measurementIterations");
+      suiteConf.remove("mode");
+    }
+    suiteConf.putAll(jmhConf);
+
+    Object only = suiteConf.remove(ONLY_KEY);
+    if (null != only) {
+      if (!(only instanceof List)) {
+        throw new WarpScriptException(getName() + " expects '" + ONLY_KEY + "' to be a list of benchmark names.");
+      }
+      if (!suite.keySet().containsAll((List) only)) {
+        throw new WarpScriptException(getName() + " expects '" + ONLY_KEY + "' to contain names of benchmarks of the suite among " + suite.keySet() + ".");
+      }
+      suite.keySet().retainAll((List) only);
+    }
+
+    // Named bench configurations, as JMH would pop them
+    MemoryWarpScriptStack suiteStack = MacroBenchmark.newStack();
+    suiteStack.push(suite);
+    List<Map<Object, Object>> benchConfigurations = popBenchConfigurations(suiteStack);
+
+    List results = run(benchConfigurations, suiteConf, stack);
+
+    List<Object> scores = new ArrayList<Object>(results.size());
+    for (Object result: results) {
+      Map primaryMetric = (Map) ((Map) result).get("primaryMetric");
+      Map<Object, Object> score = new LinkedHashMap<Object, Object>();
+      score.put("name", ((Map) result).get(KEY_BENCH_NAME));
+      if (((Map) result).containsKey(KEY_MATRIX)) {
+        score.put("matrix", ((Map) result).get(KEY_MATRIX));
+      }
+      score.put("params", ((Map) result).get(KEY_BENCH_PARAMS));
+      score.put("mode", ((Map) result).get("mode"));
+      score.put("score", primaryMetric.get("score"));
+      score.put("scoreError", primaryMetric.get("scoreError"));
+      score.put("scoreUnit", primaryMetric.get("scoreUnit"));
+      if (((Map) result).containsKey(KEY_ADAPTIVE)) {
+        score.put("targetMet", ((Map) ((Map) result).get(KEY_ADAPTIVE)).get("targetMet"));
+      }
+      scores.add(score);
+    }
+
+    Map<Object, Object> baseline = new LinkedHashMap<Object, Object>();
+    baseline.put(KEY_SUITE, SUITE);
+    baseline.put(KEY_TIMESTAMP, System.currentTimeMillis());
+    baseline.put(KEY_REVISION, Revision.REVISION);
+    baseline.put(KEY_ENVIRONMENT, environment());
+    baseline.put(KEY_JMH_CONFIGURATION, suiteConf);
+    baseline.put(KEY_RESULTS, scores);
+
+    return baseline;
+  }
+
+  /**
+   * Load the bench configurations of the suite from the classpath.
+   */
+  private Map<Object, Object> loadSuite() throws WarpScriptException {
+    String mc2;
+    try (InputStream in = JMHSUITE.class.getResourceAsStream("/" + SUITE + ".mc2")) {
+      if (null == in) {
+        throw new WarpScriptException(getName() + " could not find " + SUITE + ".mc2 in the classpath.");
+      }
+      StringBuilder sb = new StringBuilder();
+      BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+      String line;
+      while (null != (line = reader.readLine())) {
+        sb.append(line).append("\n");
+      }
+      mc2 = sb.toString();
+    } catch (IOException ioe) {
+      throw new WarpScriptException(getName() + " could not read " + SUITE + ".mc2.", ioe);
+    }
+
+    // The mc2 file leaves the macro of the suite on the stack
+    MemoryWarpScriptStack stack = MacroBenchmark.newStack();
+    stack.execMulti(mc2);
+    stack.exec((WarpScriptStack.Macro) stack.pop());
+
+    return (Map) stack.pop();
+  }
+
+  /**
+   * Describe the machine and the JVM running the suite. The forks use the same JVM, unless the 'jvm' parameter is set.
+   */
+  static Map<Object, Object> environment() {
+    Map<Object, Object> environment = new LinkedHashMap<Object, Object>();
+    environment.put("os", System.getProperty("os.name") + " " + System.getProperty("os.version"));
+    environment.put("arch", System.getProperty("os.arch"));
+    environment.put("processors", (long) Runtime.getRuntime().availableProcessors());
+    environment.put("cpu", cpuModel());
+    environment.put("vmName", System.getProperty("java.vm.name"));
+    environment.put("vmVendor", System.getProperty("java.vm.vendor"));
+    environment.put("jdkVersion", System.getProperty("java.version"));
+    return environment;
+  }
+
+  /**
+   * Model of the CPU, only known on Linux.
+   */
+  private static String cpuModel() {
+    File cpuinfo = new File("/proc/cpuinfo");
+    if (!cpuinfo.canRead()) {
+      return null;
+    }
+
+    try {
+      for (String line: Files.readAllLines(cpuinfo.toPath(), StandardCharsets.UTF_8)) {
+        if (line.startsWith("model name")) {
+          return line.substring(line.indexOf(':') + 1).trim();
+        }
+      }
+    } catch (IOException ioe) {
+      // Unknown model
+    }
+
+    return null;
+  }
+}
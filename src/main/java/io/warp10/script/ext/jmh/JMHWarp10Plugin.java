@@ -0,0 +1,385 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import io.warp10.Revision;
+import io.warp10.WarpURLEncoder;
+import io.warp10.continuum.store.Constants;
+import io.warp10.warp.sdk.AbstractWarp10Plugin;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Warp 10 plugin running the benchmarks of a directory of .mc2 files on a schedule, see JMHRunner for their format, and
+ * writing their scores as GTS to a Warp 10 update endpoint or appending them to a file, in the GTS input format.
+ * <p>
+ * A run is due at each multiple of 'jmh.plugin.period'. It starts as soon as the load average of the node per
+ * processor is below 'jmh.plugin.maxload', and is skipped if the node stays busy until the next one. Each file is run
+ * by a child JVM at a low priority, which its forks inherit, so the benchmarks yield to the requests of the node.
+ * <p>
+ * The GTS are jmh.score and jmh.score.error for the primary metric, and jmh.gc.* for the secondary metrics of the gc
+ * profiler. They are labelled with the name of the benchmark, its method, file, mode, unit and parameters, the
+ * revision of Warp 10 and the host.
+ */
+public class JMHWarp10Plugin extends AbstractWarp10Plugin implements Runnable {
+
+  /**
+   * Directory of the .mc2 files to run, mandatory.
+   */
+  public static final String CONF_DIR = "jmh.plugin.dir";
+
+  /**
+   * Period in ms of the runs, defaults to 1 day.
+   */
+  public static final String CONF_PERIOD = "jmh.plugin.period";
+
+  /**
+   * Maximum load average per processor under which the node is idle and a run can start, defaults to 0.1.
+   */
+  public static final String CONF_MAXLOAD = "jmh.plugin.maxload";
+
+  /**
+   * Niceness of the child JVMs, defaults to 19, 0 to run them at the priority of Warp 10.
+   */
+  public static final String CONF_NICE = "jmh.plugin.nice";
+
+  /**
+   * Comma separated profilers added to those of each file, defaults to gc.
+   */
+  public static final String CONF_PROFILERS = "jmh.plugin.profilers";
+
+  /**
+   * Update endpoint and write token to which the GTS are pushed.
+   */
+  public static final String CONF_ENDPOINT = "jmh.plugin.endpoint";
+  public static final String CONF_TOKEN = "jmh.plugin.token";
+
+  /**
+   * File to which the GTS are appended. At least one of the endpoint and the file must be set.
+   */
+  public static final String CONF_FILE = "jmh.plugin.file";
+
+  /**
+   * Value of the host label, defaults to the host name.
+   */
+  public static final String CONF_HOST = "jmh.plugin.host";
+
+  /**
+   * Connect and read timeout in ms of the requests to the update endpoint, defaults to 60000.
+   */
+  public static final String CONF_TIMEOUT = "jmh.plugin.timeout";
+
+  public static final String CLASS_SCORE = WarpScriptResults.CLASS_SCORE;
+  public static final String CLASS_SCORE_ERROR = "jmh.score.error";
+  public static final String CLASS_GC_PREFIX = "jmh.gc.";
+
+  public static final String LABEL_FILE = "file";
+  public static final String LABEL_MODE = "mode";
+  public static final String LABEL_UNIT = "unit";
+  public static final String LABEL_MATRIX = "matrix";
+  public static final String LABEL_VERSION = "version";
+  public static final String LABEL_HOST = "host";
+
+  // Prefix of the secondary metrics of the gc profiler
+  private static final String GC_METRIC_PREFIX = "\u00B7gc.";
+
+  private static final String NICE = "/usr/bin/nice";
+
+  // Configuration given to the children, see isChildConfiguration
+  private static final String CHILD_TIMEUNITS = "warp.timeunits";
+  private static final String CHILD_WARPSCRIPT_PREFIX = "warpscript.";
+  private static final String CHILD_JMH_PREFIX = "jmh.";
+  private static final String PLUGIN_PREFIX = "jmh.plugin.";
+
+  // Delay between two checks of the load of the node
+  private static final long IDLE_CHECK = 60000L;
+
+  private Properties properties;
+  private File dir;
+  private long period;
+  private double maxLoad;
+  private String host;
+
+  @Override
+  public void init(Properties properties) {
+    this.properties = properties;
+
+    if (null == properties.getProperty(CONF_DIR)) {
+      throw new RuntimeException("JMH plugin expects '" + CONF_DIR + "' to be set.");
+    }
+    if (null == properties.getProperty(CONF_ENDPOINT) && null == properties.getProperty(CONF_FILE)) {
+      throw new RuntimeException("JMH plugin expects '" + CONF_ENDPOINT + "' or '" + CONF_FILE + "' to be set.");
+    }
+    if (null != properties.getProperty(CONF_ENDPOINT) && null == properties.getProperty(CONF_TOKEN)) {
+      throw new RuntimeException("JMH plugin expects '" + CONF_TOKEN + "' to be set along with '" + CONF_ENDPOINT + "'.");
+    }
+
+    dir = new File(properties.getProperty(CONF_DIR));
+    period = Long.parseLong(properties.getProperty(CONF_PERIOD, Long.toString(86400000L)));
+    maxLoad = Double.parseDouble(properties.getProperty(CONF_MAXLOAD, "0.1"));
+
+    host = properties.getProperty(CONF_HOST);
+    if (null == host) {
+      try {
+        host = InetAddress.getLocalHost().getHostName();
+      } catch (IOException ioe) {
+        host = "localhost";
+      }
+    }
+
+    Thread t = new Thread(this);
+    t.setName("[JMH Plugin]");
+    t.setDaemon(true);
+    t.setPriority(Thread.MIN_PRIORITY);
+    t.start();
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        long now = System.currentTimeMillis();
+        long due = now - (now % period) + period;
+        Thread.sleep(due - now);
+
+        // Wait for the node to be idle, but not beyond the next run
+        while (!isIdle() && System.currentTimeMillis() + IDLE_CHECK < due + period) {
+          Thread.sleep(IDLE_CHECK);
+        }
+        if (!isIdle()) {
+          System.err.println("JMH plugin skipped the run due at " + due + ", the node was busy.");
+          continue;
+        }
+
+        runAll(due);
+      } catch (InterruptedException ie) {
+        return;
+      } catch (Throwable t) {
+        System.err.println("JMH plugin failed to run the benchmarks of " + dir + ": " + t);
+      }
+    }
+  }
+
+  /**
+   * @return true if the load average of the node per processor is below the threshold, or is not available.
+   */
+  private boolean isIdle() {
+    double load = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+    return load < 0.0D || load / Runtime.getRuntime().availableProcessors() < maxLoad;
+  }
+
+  /**
+   * Run each file of the directory in a child JVM and write the GTS of their results.
+   * @param timestamp Time in ms of the datapoints of this run.
+   */
+  private void runAll(long timestamp) throws IOException, InterruptedException {
+    File[] files = dir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(JMHRunner.SUFFIX);
+      }
+    });
+    if (null == files || 0 == files.length) {
+      return;
+    }
+    Arrays.sort(files);
+
+    List<String> prefix = new ArrayList<String>();
+    int nice = Integer.parseInt(properties.getProperty(CONF_NICE, "19"));
+    if (0 != nice && new File(NICE).canExecute()) {
+      prefix.add(NICE);
+      prefix.add("-n");
+      prefix.add(Integer.toString(nice));
+    }
+
+    // The children only get the configuration they need, not the secrets of this node, in a file only readable by its owner
+    File conf = createPrivateFile("warpConf", ".conf");
+    try {
+      try (Writer writer = new OutputStreamWriter(new FileOutputStream(conf), StandardCharsets.UTF_8)) {
+        for (Map.Entry<Object, Object> entry: properties.entrySet()) {
+          if (isChildConfiguration((String) entry.getKey())) {
+            writer.write((String) entry.getKey() + " = " + WarpURLEncoder.encode((String) entry.getValue(), StandardCharsets.UTF_8) + "\n");
+          }
+        }
+      }
+
+      StringBuilder gts = new StringBuilder();
+      long ts = timestamp * Constants.TIME_UNITS_PER_MS;
+
+      for (File file: files) {
+        Map<Object, Object> run = JMHRunner.runChild(file, conf.getAbsolutePath(), prefix, properties.getProperty(CONF_PROFILERS, "gc"), false);
+        if (null != run.get("error")) {
+          System.err.println("JMH plugin failed to run " + file + ": " + run.get("error"));
+          continue;
+        }
+        for (Object result: (List) run.get("results")) {
+          append(gts, ts, file, (Map) result);
+        }
+      }
+
+      write(gts.toString());
+    } finally {
+      conf.delete();
+    }
+  }
+
+  /**
+   * Whether a configuration key is given to the children: the time units, the WarpScript configuration, extensions
+   * included, and the configuration of the JMH extension, except the one of this plugin.
+   */
+  static boolean isChildConfiguration(String key) {
+    return CHILD_TIMEUNITS.equals(key) || key.startsWith(CHILD_WARPSCRIPT_PREFIX) || (key.startsWith(CHILD_JMH_PREFIX) && !key.startsWith(PLUGIN_PREFIX));
+  }
+
+  /**
+   * Create a temporary file only readable and writable by its owner.
+   */
+  static File createPrivateFile(String prefix, String suffix) throws IOException {
+    try {
+      return Files.createTempFile(prefix, suffix, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))).toFile();
+    } catch (UnsupportedOperationException uoe) {
+      // Not a POSIX file system
+      File file = Files.createTempFile(prefix, suffix).toFile();
+      if (!(file.setReadable(false, false) && file.setReadable(true, true) && file.setWritable(false, false) && file.setWritable(true, true))) {
+        file.delete();
+        throw new IOException("Could not restrict the permissions of " + file + " to its owner.");
+      }
+      return file;
+    }
+  }
+
+  /**
+   * Append the datapoints of a result in the GTS input format.
+   */
+  private void append(StringBuilder gts, long ts, File file, Map<Object, Object> result) throws IOException {
+    Map<String, String> labels = new LinkedHashMap<String, String>();
+    Map benchParams = (Map) result.get(JMH.KEY_BENCH_PARAMS);
+    if (null != benchParams) {
+      for (Object param: benchParams.entrySet()) {
+        labels.put(String.valueOf(((Map.Entry) param).getKey()), String.valueOf(((Map.Entry) param).getValue()));
+      }
+    }
+
+    String name = file.getName().substring(0, file.getName().length() - JMHRunner.SUFFIX.length());
+    if (null != result.get(JMH.KEY_BENCH_NAME)) {
+      name = name + "/" + result.get(JMH.KEY_BENCH_NAME);
+    }
+    String benchmark = String.valueOf(result.get("benchmark"));
+
+    labels.put(WarpScriptResults.LABEL_NAME, name);
+    labels.put(WarpScriptResults.LABEL_BENCHMARK, benchmark.substring(benchmark.lastIndexOf('.') + 1));
+    labels.put(LABEL_FILE, file.getName());
+    labels.put(LABEL_MODE, String.valueOf(result.get("mode")));
+    if (null != result.get(JMH.KEY_MATRIX)) {
+      labels.put(LABEL_MATRIX, String.valueOf(result.get(JMH.KEY_MATRIX)));
+    }
+    labels.put(LABEL_VERSION, Revision.REVISION);
+    labels.put(LABEL_HOST, host);
+
+    Map primaryMetric = (Map) result.get("primaryMetric");
+    labels.put(LABEL_UNIT, String.valueOf(primaryMetric.get("scoreUnit")));
+    append(gts, ts, CLASS_SCORE, labels, JMH.toDouble(primaryMetric.get("score")));
+    append(gts, ts, CLASS_SCORE_ERROR, labels, JMH.toDouble(primaryMetric.get("scoreError")));
+
+    Map secondaryMetrics = (Map) result.get("secondaryMetrics");
+    if (null != secondaryMetrics) {
+      for (Object entry: secondaryMetrics.entrySet()) {
+        String metric = String.valueOf(((Map.Entry) entry).getKey());
+        if (!metric.startsWith(GC_METRIC_PREFIX)) {
+          continue;
+        }
+        Map secondaryMetric = (Map) ((Map.Entry) entry).getValue();
+        labels.put(LABEL_UNIT, String.valueOf(secondaryMetric.get("scoreUnit")));
+        append(gts, ts, CLASS_GC_PREFIX + metric.substring(GC_METRIC_PREFIX.length()), labels, JMH.toDouble(secondaryMetric.get("score")));
+      }
+    }
+  }
+
+  private static void append(StringBuilder gts, long ts, String className, Map<String, String> labels, double value) throws IOException {
+    // Missing scores are not written
+    if (Double.isNaN(value)) {
+      return;
+    }
+
+    gts.append(ts).append("// ").append(WarpURLEncoder.encode(className, StandardCharsets.UTF_8)).append('{');
+    boolean first = true;
+    for (Map.Entry<String, String> label: labels.entrySet()) {
+      if (!first) {
+        gts.append(',');
+      }
+      first = false;
+      gts.append(WarpURLEncoder.encode(label.getKey(), StandardCharsets.UTF_8)).append('=').append(WarpURLEncoder.encode(label.getValue(), StandardCharsets.UTF_8));
+    }
+    gts.append("} ").append(value).append('\n');
+  }
+
+  /**
+   * Push the datapoints to the update endpoint and append them to the file, those which are configured.
+   */
+  private void write(String gts) throws IOException {
+    if (gts.isEmpty()) {
+      return;
+    }
+
+    if (null != properties.getProperty(CONF_FILE)) {
+      try (Writer writer = new OutputStreamWriter(new FileOutputStream(properties.getProperty(CONF_FILE), true), StandardCharsets.UTF_8)) {
+        writer.write(gts);
+      }
+    }
+
+    if (null != properties.getProperty(CONF_ENDPOINT)) {
+      HttpURLConnection conn = (HttpURLConnection) new URL(properties.getProperty(CONF_ENDPOINT)).openConnection();
+      try {
+        // A stalled endpoint must not block the next runs
+        int timeout = Integer.parseInt(properties.getProperty(CONF_TIMEOUT, "60000"));
+        conn.setConnectTimeout(timeout);
+        conn.setReadTimeout(timeout);
+        conn.setDoOutput(true);
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("X-Warp10-Token", properties.getProperty(CONF_TOKEN));
+        conn.setRequestProperty("Content-Type", "text/plain; charset=UTF-8");
+        try (OutputStream out = conn.getOutputStream()) {
+          out.write(gts.getBytes(StandardCharsets.UTF_8));
+        }
+        if (HttpURLConnection.HTTP_OK != conn.getResponseCode()) {
+          throw new IOException("Update endpoint " + properties.getProperty(CONF_ENDPOINT) + " responded " + conn.getResponseCode() + " " + conn.getResponseMessage());
+        }
+      } finally {
+        conn.disconnect();
+      }
+    }
+  }
+}
@@ -16,6 +16,7 @@
 
 package io.warp10.script.ext.jmh;
 
+import io.warp10.WarpConfig;
 import io.warp10.warp.sdk.WarpScriptExtension;
 
 import java.util.HashMap;
@@ -26,8 +27,23 @@ public class JMHWarpScriptExtension extends WarpScriptExtension {
   private static final Map<String, Object> functions;
 
   static {
+    // JMH refuses to run while another run holds its host-wide lock, even in the same JVM, so concurrent jobs must
+    // ignore it. JMH reads this property once, when its Runner class is loaded, hence it is set before any function
+    // can run. It then applies to every run of this instance: jmh.jobs.concurrency above 1 opts into interfering runs.
+    if (Integer.parseInt(WarpConfig.getProperty(JMHJobScheduler.CONF_CONCURRENCY, "1")) > 1) {
+      System.setProperty("jmh.ignoreLock", "true");
+    }
+
     functions = new HashMap<String, Object>();
     functions.put("JMH", new JMH("JMH"));
+    functions.put("JMHSUBMIT", new JMHSUBMIT("JMHSUBMIT"));
+    functions.put("JMHSTATUS", new JMHSTATUS("JMHSTATUS"));
+    functions.put("JMHRESULT", new JMHRESULT("JMHRESULT"));
+    functions.put("JMHCANCEL", new JMHCANCEL("JMHCANCEL"));
+    functions.put("JMHSAVE", new JMHSAVE("JMHSAVE"));
+    functions.put("JMHHISTORY", new JMHHISTORY("JMHHISTORY"));
+    functions.put("JMHCOMPARE", new JMHCOMPARE("JMHCOMPARE"));
+    functions.put("JMHSUITE", new JMHSUITE("JMHSUITE"));
   }
 
   @Override
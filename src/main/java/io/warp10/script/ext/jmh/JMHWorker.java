@@ -0,0 +1,148 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import io.warp10.WarpConfig;
+import io.warp10.script.MemoryWarpScriptStack;
+import io.warp10.script.WarpScriptLib;
+import org.openjdk.jmh.results.RunResult;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pre-started JVM of the JMHWorkerPool. The configuration and the WarpScript library are loaded once at startup, then
+ * the worker waits for benchmarks on its standard input and runs them in its own JVM, as a single fork would.
+ * <p>
+ * Each message is a frame: an int length followed by UTF-8 bytes. A request is made of three frames, the snapshots of the
+ * list of bench configurations and of the JMH parameters, and the path of the cancel file of the job, empty if none. A response is made of a status frame, OK or ERROR, followed by the JMH
+ * RunResults, serialized and Base64 encoded so the pool can merge them with JMH's own aggregation, or the error message.
+ */
+public class JMHWorker {
+
+  public static final String READY = "READY";
+  public static final String OK = "OK";
+  public static final String ERROR = "ERROR";
+
+  public static void main(String[] args) throws Exception {
+    // Keep the standard output for the protocol, anything printed by the benchmarks goes to the standard error
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+    System.setOut(System.err);
+    DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+
+    WarpConfig.setProperties(args[0]);
+    WarpScriptLib.registerExtensions();
+
+    JMH jmh = new JMH("JMH");
+
+    writeFrame(out, READY);
+
+    while (true) {
+      String benchConfSnapshot;
+      String jmhConfSnapshot;
+      String cancelPath;
+      try {
+        benchConfSnapshot = readFrame(in);
+        jmhConfSnapshot = readFrame(in);
+        cancelPath = readFrame(in);
+      } catch (EOFException eofe) {
+        // The pool closed the channel
+        break;
+      }
+
+      try {
+        MemoryWarpScriptStack stack = MacroBenchmark.newStack();
+        stack.exec(benchConfSnapshot);
+        List<Map<Object, Object>> benchConfigurations = (List) stack.pop();
+        stack.exec(jmhConfSnapshot);
+        Map<Object, Object> jmhConf = (Map) stack.pop();
+
+        // The results are converted and post-processed by the pool, once merged
+        Collection<RunResult> results = jmh.runForks(benchConfigurations, jmhConf, cancelPath.isEmpty() ? null : new File(cancelPath));
+
+        String serialized = serialize(results);
+        writeFrame(out, OK);
+        writeFrame(out, serialized);
+      } catch (Throwable t) {
+        StringWriter sw = new StringWriter();
+        t.printStackTrace(new PrintWriter(sw));
+        writeFrame(out, ERROR);
+        writeFrame(out, sw.toString());
+      }
+    }
+  }
+
+  static String serialize(Collection<RunResult> results) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+      oos.writeObject(new ArrayList<RunResult>(results));
+    }
+    return Base64.getEncoder().encodeToString(baos.toByteArray());
+  }
+
+  static List<RunResult> deserialize(String serialized) throws IOException {
+    // The extension may be loaded by a dedicated class loader, resolve the JMH classes with it
+    try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(serialized))) {
+      @Override
+      protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+        try {
+          return Class.forName(desc.getName(), false, JMHWorker.class.getClassLoader());
+        } catch (ClassNotFoundException cnfe) {
+          return super.resolveClass(desc);
+        }
+      }
+    }) {
+      return (List<RunResult>) ois.readObject();
+    } catch (ClassNotFoundException cnfe) {
+      throw new IOException("Invalid results from JMH worker.", cnfe);
+    }
+  }
+
+  static void writeFrame(DataOutputStream out, String frame) throws IOException {
+    byte[] bytes = frame.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+    out.flush();
+  }
+
+  static String readFrame(DataInputStream in) throws IOException {
+    int len = in.readInt();
+    byte[] bytes = new byte[len];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
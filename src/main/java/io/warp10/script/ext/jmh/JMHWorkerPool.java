@@ -0,0 +1,334 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import io.warp10.WarpConfig;
+import io.warp10.WarpURLEncoder;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.functions.SNAPSHOT;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.BenchmarkResult;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.WorkloadParams;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Pool of pre-started JMHWorker JVMs with the WarpScript library already loaded, used when the 'pool' JMH parameter is
+ * true. JMH cannot hand its forks to existing JVMs, so each pooled worker runs the benchmark in its own JVM with
+ * forks set to 0 and stands for one fork. The JMH results of the workers are then merged as JMH merges forks.
+ * <p>
+ * Workers are retired after 'jmh.pool.maxruns' benchmarks, which defaults to 1 so a JVM never runs two forks and
+ * forks stay isolated from each other. The pool is replenished in the background.
+ */
+public class JMHWorkerPool {
+
+  /**
+   * Number of idle workers kept ready, 0 disables the pool.
+   */
+  public static final String CONF_SIZE = "jmh.pool.size";
+
+  /**
+   * Number of forks run by a worker before it is retired, defaults to 1.
+   */
+  public static final String CONF_MAXRUNS = "jmh.pool.maxruns";
+
+  /**
+   * Space separated JVM arguments of the workers, for instance -Xmx1g.
+   */
+  public static final String CONF_JVMARGS = "jmh.pool.jvmargs";
+
+  /**
+   * Delay in ms given to a worker to start, or to stop once its job is cancelled, before it is destroyed, defaults to
+   * 1 hour. A worker running a benchmark is waited for as long as it is alive.
+   */
+  public static final String CONF_TIMEOUT = "jmh.pool.timeout";
+
+  private static class Worker {
+    private final Process process;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private int runs = 0;
+
+    private Worker(Process process) {
+      this.process = process;
+      this.out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+      this.in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+    }
+
+    private void destroy() {
+      process.destroy();
+    }
+  }
+
+  private static JMHWorkerPool instance;
+
+  private final int size;
+  private final int maxRuns;
+  private final long timeout;
+  private final List<String> command;
+  private final LinkedBlockingQueue<Worker> idle = new LinkedBlockingQueue<Worker>();
+
+  private JMHWorkerPool(Properties props) throws IOException {
+    size = Integer.parseInt(props.getProperty(CONF_SIZE, "0"));
+    maxRuns = Integer.parseInt(props.getProperty(CONF_MAXRUNS, "1"));
+    timeout = Long.parseLong(props.getProperty(CONF_TIMEOUT, Long.toString(3600000L)));
+
+    // Recreate conf file to pass it to workers, it lives as long as the pool
+    File warpConfFile = File.createTempFile("warpConf", ".conf");
+    warpConfFile.deleteOnExit();
+    try (OutputStreamWriter writer = new OutputStreamWriter(new FileOutputStream(warpConfFile), StandardCharsets.UTF_8)) {
+      for (Map.Entry<Object, Object> entry: props.entrySet()) {
+        writer.write((String) entry.getKey() + " = " + WarpURLEncoder.encode((String) entry.getValue(), StandardCharsets.UTF_8) + "\n");
+      }
+    }
+
+    String classpath = System.getProperty("java.class.path");
+    // The extension may be loaded by a dedicated class loader, add its own location
+    String location = new File(JMHWorker.class.getProtectionDomain().getCodeSource().getLocation().getPath()).getAbsolutePath();
+    if (!classpath.contains(location)) {
+      classpath = classpath + File.pathSeparator + location;
+    }
+
+    command = new ArrayList<String>();
+    command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+    String jvmArgs = props.getProperty(CONF_JVMARGS, "").trim();
+    if (!jvmArgs.isEmpty()) {
+      command.addAll(Arrays.asList(jvmArgs.split("\\s+")));
+    }
+    command.add("-cp");
+    command.add(classpath);
+    command.add(JMHWorker.class.getName());
+    command.add(warpConfFile.getAbsolutePath());
+
+    replenish();
+  }
+
+  public static synchronized JMHWorkerPool getInstance() throws WarpScriptException {
+    if (null == instance) {
+      try {
+        instance = new JMHWorkerPool(WarpConfig.getProperties());
+      } catch (IOException ioe) {
+        throw new WarpScriptException("Could not initialize the pool of JMH workers.", ioe);
+      }
+    }
+    return instance;
+  }
+
+  public boolean isEnabled() {
+    return size > 0;
+  }
+
+  /**
+   * Start workers in the background until 'size' workers are idle.
+   */
+  private void replenish() {
+    if (idle.size() >= size) {
+      return;
+    }
+
+    Thread t = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (idle.size() < size) {
+          try {
+            idle.add(start());
+          } catch (IOException ioe) {
+            return;
+          }
+        }
+      }
+    }, "[JMH worker pool replenisher]");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  private Worker start() throws IOException {
+    ProcessBuilder pb = new ProcessBuilder(command);
+    pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+    Worker worker = new Worker(pb.start());
+    // Wait for the configuration and the library to be loaded
+    try {
+      if (!JMHWorker.READY.equals(readFrame(worker, System.currentTimeMillis() + timeout, null))) {
+        throw new IOException("JMH worker did not start.");
+      }
+    } catch (IOException ioe) {
+      worker.destroy();
+      throw ioe;
+    }
+    return worker;
+  }
+
+  /**
+   * Read a frame from a worker.
+   * @param deadline Time in ms after which the worker is given up, Long.MAX_VALUE to wait as long as it is alive.
+   * @param cancelFile File whose creation gives the worker 'jmh.pool.timeout' ms to stop, may be null.
+   * @throws IOException if the worker exited or did not answer in time.
+   */
+  private String readFrame(Worker worker, long deadline, File cancelFile) throws IOException {
+    // Wait for the length of the frame, its content is flushed with it
+    while (worker.in.available() < Integer.BYTES) {
+      if (!worker.process.isAlive() && worker.in.available() < Integer.BYTES) {
+        throw new IOException("JMH worker exited.");
+      }
+      if (Long.MAX_VALUE == deadline && null != cancelFile && cancelFile.exists()) {
+        // The worker stops at its next iteration, which may never come if the macro hangs
+        deadline = System.currentTimeMillis() + timeout;
+      }
+      if (System.currentTimeMillis() > deadline) {
+        throw new IOException("JMH worker did not answer within " + timeout + " ms.");
+      }
+      try {
+        Thread.sleep(10L);
+      } catch (InterruptedException ie) {
+        throw new IOException("Interrupted while waiting for JMH worker.", ie);
+      }
+    }
+    return JMHWorker.readFrame(worker.in);
+  }
+
+  private Worker acquire() throws IOException {
+    Worker worker;
+    while (null != (worker = idle.poll())) {
+      if (worker.process.isAlive()) {
+        return worker;
+      }
+    }
+    // No warm worker available, start a cold one
+    return start();
+  }
+
+  private void release(Worker worker) {
+    if (worker.runs >= maxRuns || !worker.process.isAlive() || idle.size() >= size) {
+      worker.destroy();
+    } else {
+      idle.add(worker);
+    }
+    replenish();
+  }
+
+  /**
+   * Run a benchmark on the workers of the pool, one worker per fork.
+   * @param jmh The function running the benchmark, used to tag the results.
+   * @param benchConfigurations List of maps of macros.
+   * @param jmhConf Map of JMH parameters.
+   * @param cancelFile File whose creation stops the workers at their next iteration, may be null.
+   * @return The merged JMH results, one per bench configuration and combination of parameters.
+   * @throws WarpScriptException if a worker fails or the run was cancelled.
+   */
+  public List<RunResult> run(JMH jmh, List<Map<Object, Object>> benchConfigurations, Map<Object, Object> jmhConf, File cancelFile) throws WarpScriptException {
+    int forks = 1;
+    if (jmhConf.get("forks") instanceof Long) {
+      forks = Math.max(1, ((Long) jmhConf.get("forks")).intValue());
+    }
+
+    // Each worker runs a single fork in its own JVM
+    Map<Object, Object> workerConf = new HashMap<Object, Object>(jmhConf);
+    workerConf.remove(JMH.POOL_KEY);
+    workerConf.put("forks", 0L);
+
+    StringBuilder sb = new StringBuilder();
+    SNAPSHOT.addElement(sb, benchConfigurations);
+    String benchConfSnapshot = sb.toString();
+    sb.setLength(0);
+    SNAPSHOT.addElement(sb, workerConf);
+    String jmhConfSnapshot = sb.toString();
+
+    List<List<RunResult>> forkResults = new ArrayList<List<RunResult>>(forks);
+
+    // Forks are run one after the other, as JMH does
+    for (int i = 0; i < forks; i++) {
+      jmh.checkCancelled(cancelFile);
+
+      Worker worker = null;
+      try {
+        worker = acquire();
+        worker.runs++;
+        JMHWorker.writeFrame(worker.out, benchConfSnapshot);
+        JMHWorker.writeFrame(worker.out, jmhConfSnapshot);
+        JMHWorker.writeFrame(worker.out, null == cancelFile ? "" : cancelFile.getAbsolutePath());
+        // A benchmark may run for hours, the worker is only given up if it dies or ignores a cancellation
+        String status = readFrame(worker, Long.MAX_VALUE, cancelFile);
+        String payload = readFrame(worker, Long.MAX_VALUE, cancelFile);
+        if (!JMHWorker.OK.equals(status)) {
+          jmh.checkCancelled(cancelFile);
+          throw new WarpScriptException(jmh.getName() + " failed in pooled worker: " + payload);
+        }
+        forkResults.add(JMHWorker.deserialize(payload));
+      } catch (IOException ioe) {
+        if (null != worker) {
+          worker.destroy();
+        }
+        throw new WarpScriptException(jmh.getName() + " could not communicate with pooled worker.", ioe);
+      } finally {
+        if (null != worker) {
+          release(worker);
+        }
+      }
+    }
+
+    return merge(forkResults);
+  }
+
+  /**
+   * Merge the results of several workers as if they were forks of the same run. The iterations of all the workers are
+   * gathered in a single RunResult, which aggregates them with the policy of each of its metrics as JMH does for forks.
+   */
+  static List<RunResult> merge(List<List<RunResult>> forkResults) {
+    List<RunResult> merged = new ArrayList<RunResult>();
+
+    for (int r = 0; r < forkResults.get(0).size(); r++) {
+      List<BenchmarkResult> benchmarkResults = new ArrayList<BenchmarkResult>();
+      for (List<RunResult> forkResult: forkResults) {
+        benchmarkResults.addAll(forkResult.get(r).getBenchmarkResults());
+      }
+      merged.add(new RunResult(withForks(forkResults.get(0).get(r).getParams(), forkResults.size()), benchmarkResults));
+    }
+
+    return merged;
+  }
+
+  /**
+   * Copy benchmark parameters, the workers ran with forks set to 0 while each of them stands for one fork.
+   */
+  private static BenchmarkParams withForks(BenchmarkParams params, int forks) {
+    WorkloadParams workloadParams = new WorkloadParams();
+    for (String key: params.getParamsKeys()) {
+      // The order of the values only sorts results, the merged ones keep the order of the workers
+      workloadParams.put(key, params.getParam(key), 0);
+    }
+    return new BenchmarkParams(params.getBenchmark(), params.generatedBenchmark(), params.shouldSynchIterations(), params.getThreads(),
+        params.getThreadGroups(), params.getThreadGroupLabels(), forks, params.getWarmupForks(), params.getWarmup(), params.getMeasurement(),
+        params.getMode(), workloadParams, params.getTimeUnit(), params.getOpsPerInvocation(), params.getJvm(), params.getJvmArgs(),
+        params.getJdkVersion(), params.getVmName(), params.getVmVersion(), params.getJmhVersion(), params.getTimeout());
+  }
+}
@@ -0,0 +1,224 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import org.HdrHistogram.EncodableHistogram;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogReader;
+import org.HdrHistogram.HistogramLogWriter;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.profile.ProfilerException;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+import org.openjdk.jmh.runner.IterationType;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMH profiler reporting the latencies recorded by the threads of MacroBenchmark.load during each measurement
+ * iteration. Latencies are measured from the time at which each call was scheduled, so the time spent waiting for a
+ * late previous call is accounted for, and from the time at which it actually started, which is the service time.
+ * <p>
+ * Percentiles cannot be averaged, so the histograms of each measurement iteration are also appended to a log in the
+ * directory given as init line, one per benchmark, combination and fork. JMH.summarizeLoad merges them to compute the
+ * percentiles of the whole benchmark.
+ */
+public class LoadProfiler implements InternalProfiler {
+
+  // Prefix of the labels of the secondary results, followed by the metric
+  public static final String LABEL_PREFIX = "load.";
+
+  public static final String METRIC_CALLS = "calls";
+  public static final String METRIC_MISSED = "missed";
+  public static final String METRIC_RATE = "rate";
+  public static final String METRIC_LATENCY = "latency";
+  public static final String METRIC_SERVICE = "service";
+
+  public static final double[] PERCENTILES = new double[] {50.0D, 90.0D, 99.0D, 99.9D, 99.99D};
+
+  private static final int SIGNIFICANT_DIGITS = 3;
+
+  private static final String SUFFIX = ".hlog";
+
+  private static final Histogram latency = new Histogram(SIGNIFICANT_DIGITS);
+  private static final Histogram service = new Histogram(SIGNIFICANT_DIGITS);
+  private static long calls = 0L;
+  private static long missed = 0L;
+  private static long elapsed = 0L;
+
+  // Directory of the logs of the histograms, null if they are not logged
+  private final File dir;
+
+  public LoadProfiler(String initLine) throws ProfilerException {
+    dir = initLine.trim().isEmpty() ? null : new File(initLine.trim());
+  }
+
+  /**
+   * Prefix of the histogram logs of a benchmark.
+   * @param benchmark Name of the benchmark method of MacroBenchmark.
+   * @param combination Index of the bench configuration and combination of parameters.
+   */
+  public static String logPrefix(String benchmark, String combination) {
+    return benchmark + "-" + combination + "-";
+  }
+
+  /**
+   * Add the records of a thread, called at the end of each iteration.
+   * @param threadLatency Latencies in ns from the scheduled start.
+   * @param threadService Latencies in ns from the actual start.
+   * @param threadCalls Number of calls.
+   * @param threadMissed Number of calls started after their scheduled time.
+   * @param threadElapsed Duration of the iteration for this thread, in ns.
+   */
+  static synchronized void record(Histogram threadLatency, Histogram threadService, long threadCalls, long threadMissed, long threadElapsed) {
+    latency.add(threadLatency);
+    service.add(threadService);
+    calls += threadCalls;
+    missed += threadMissed;
+    elapsed = Math.max(elapsed, threadElapsed);
+  }
+
+  static Histogram newHistogram() {
+    return new Histogram(SIGNIFICANT_DIGITS);
+  }
+
+  private static synchronized void reset() {
+    latency.reset();
+    service.reset();
+    calls = 0L;
+    missed = 0L;
+    elapsed = 0L;
+  }
+
+  /**
+   * Label of the secondary result of a percentile, or of the maximum if percentile is 100.
+   */
+  public static String label(String metric, double percentile) {
+    return LABEL_PREFIX + metric + ".p" + percentile;
+  }
+
+  @Override
+  public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+    reset();
+  }
+
+  @Override
+  public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams, IterationResult result) {
+    List<Result> results = new ArrayList<Result>();
+
+    if (IterationType.MEASUREMENT != iterationParams.getType()) {
+      return results;
+    }
+
+    synchronized (LoadProfiler.class) {
+      results.add(new ScalarResult(LABEL_PREFIX + METRIC_CALLS, calls, "calls", AggregationPolicy.SUM));
+      results.add(new ScalarResult(LABEL_PREFIX + METRIC_MISSED, missed, "calls", AggregationPolicy.SUM));
+      results.add(new ScalarResult(LABEL_PREFIX + METRIC_RATE, 0L == elapsed ? 0.0D : calls * 1.0e9D / elapsed, "calls/s", AggregationPolicy.AVG));
+      addPercentiles(results, METRIC_LATENCY, latency);
+      addPercentiles(results, METRIC_SERVICE, service);
+
+      if (null != dir) {
+        String benchmark = benchmarkParams.getBenchmark();
+        benchmark = benchmark.substring(benchmark.lastIndexOf('.') + 1);
+        String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+        File file = new File(dir, logPrefix(benchmark, benchmarkParams.getParam(JMH.COMBINATION_PARAM)) + pid + SUFFIX);
+        try {
+          log(file);
+        } catch (FileNotFoundException fnfe) {
+          throw new RuntimeException("Could not log the load histograms to " + file + ".", fnfe);
+        }
+      }
+    }
+
+    return results;
+  }
+
+  private static void log(File file) throws FileNotFoundException {
+    HistogramLogWriter writer = new HistogramLogWriter(new FileOutputStream(file, true));
+    try {
+      for (String metric: new String[] {METRIC_LATENCY, METRIC_SERVICE}) {
+        Histogram histogram = (METRIC_LATENCY.equals(metric) ? latency : service).copy();
+        histogram.setTag(metric);
+        writer.outputIntervalHistogram(histogram);
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Merge the histograms of the given logs.
+   * @param logs Logs written by the forks of a benchmark.
+   * @return The merged histograms, keyed by metric.
+   * @throws IOException if a log cannot be read.
+   */
+  public static Map<String, Histogram> merge(List<File> logs) throws IOException {
+    Map<String, Histogram> merged = new LinkedHashMap<String, Histogram>();
+    merged.put(METRIC_LATENCY, newHistogram());
+    merged.put(METRIC_SERVICE, newHistogram());
+
+    for (File log: logs) {
+      HistogramLogReader reader = new HistogramLogReader(log);
+      try {
+        EncodableHistogram histogram;
+        while (null != (histogram = reader.nextIntervalHistogram())) {
+          Histogram total = merged.get(histogram.getTag());
+          if (null != total) {
+            total.add((Histogram) histogram);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+
+    return merged;
+  }
+
+  /**
+   * Whether a file is a histogram log of a benchmark, see logPrefix.
+   */
+  public static boolean isLog(String name, String prefix) {
+    return name.startsWith(prefix) && name.endsWith(SUFFIX);
+  }
+
+  private static void addPercentiles(List<Result> results, String metric, Histogram histogram) {
+    // Histograms are in ns, results in us
+    for (double percentile: PERCENTILES) {
+      results.add(new ScalarResult(label(metric, percentile), histogram.getValueAtPercentile(percentile) / 1000.0D, "us", AggregationPolicy.AVG));
+    }
+    results.add(new ScalarResult(label(metric, 100.0D), histogram.getMaxValue() / 1000.0D, "us", AggregationPolicy.MAX));
+  }
+
+  @Override
+  public String getDescription() {
+    return "Latency percentiles of the fixed rate load benchmark.";
+  }
+}
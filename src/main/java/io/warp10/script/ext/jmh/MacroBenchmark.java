@@ -18,93 +18,315 @@
 package io.warp10.script.ext.jmh;
 
 import io.warp10.WarpConfig;
+import io.warp10.continuum.store.DirectoryClient;
+import io.warp10.continuum.store.StoreClient;
 import io.warp10.script.MemoryWarpScriptStack;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptLib;
 import io.warp10.script.WarpScriptStack;
 import io.warp10.script.WarpScriptStack.Macro;
 import io.warp10.script.WarpScriptStackFunction;
+import io.warp10.script.functions.NOOP;
+import io.warp10.script.functions.SNAPSHOT;
 import io.warp10.warp.sdk.AbstractWarp10Plugin;
+import org.HdrHistogram.Histogram;
 import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
 import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
 import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.annotations.TearDown;
 import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.ThreadParams;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
 
 public class MacroBenchmark {
 
-  @State(Scope.Thread)
-  public static class MBState {
+  /**
+   * Name of the group of asymmetric benchmarks, see JMH.WRITER_MACRO and JMH.READER_MACRO.
+   */
+  public static final String GROUP = "readwrite";
+
+  private static final NOOP NOOP = new NOOP(WarpScriptLib.NOOP);
+
+  /**
+   * State shared by all the threads of a benchmark. Loads the configuration and the extensions in forks, then runs
+   * the shared pretrial macro whose variables are made available to the stacks of every thread.
+   */
+  @State(Scope.Benchmark)
+  public static class MBSharedState {
+
+    // Index of the bench configuration and combination of parameters, see JMH.BenchRun
+    @Param({"0"})
+    public int combination;
+
+    MemoryWarpScriptStack stack;
+    JMH.BenchRun benchRun;
+    Map benchConf;
+    StoreClient storeClient;
+    DirectoryClient directoryClient;
+    boolean profile;
+    boolean footprint;
+    boolean calibrate;
+    List<File> stopFiles;
+    // Order of the macros of an A/B comparison or of a calibrated benchmark, true for B or the no-op macro, see ComparisonProfiler
+    boolean[] order;
+    Macro sharedPreTrial;
+    Macro sharedPostTrial;
+
+    @Setup(Level.Trial)
+    public void doTrialSetup(BenchmarkParams params) throws WarpScriptException, IOException {
+      // Set config if this is a fork
+      if (params.getForks() > 0) {
+        loadConfiguration(params);
+        WarpScriptLib.registerExtensions();
+      }
+
+      select(newStack(), params);
+      prepare();
+    }
+
+    /**
+     * Select the configuration and the parameters of this run, and read the options given to the forks.
+     * @param parser Stack reading the bench configurations.
+     */
+    void select(MemoryWarpScriptStack parser, BenchmarkParams params) throws WarpScriptException, IOException {
+      profile = params.getJvmArgs().contains(JMH.JVM_ARG_PROFILE);
+      footprint = params.getJvmArgs().contains(JMH.JVM_ARG_FOOTPRINT);
+      calibrate = params.getJvmArgs().contains(JMH.JVM_ARG_CALIBRATE);
+
+      stopFiles = stopFiles(params);
+
+      List<Map<Object, Object>> benchConfs = readBenchConfigurations(parser, params);
+      benchRun = JMH.benchRuns(benchConfs).get(combination);
+      benchConf = benchConfs.get(benchRun.configuration);
+
+      if (benchConf.containsKey(JMH.A_MACRO) || calibrate) {
+        order = ComparisonProfiler.newOrder(params.getWarmup().getCount() + params.getMeasurement().getCount(), new Random());
+      } else {
+        ComparisonProfiler.clearOrder();
+      }
+    }
+
+    /**
+     * Create the store and the shared stack of the selected run, then run the shared pretrial macro.
+     */
+    void prepare() throws WarpScriptException, IOException {
+      // The stacks of all the threads use the same store
+      BenchStore benchStore = newBenchStore(benchConf);
+      if (null == benchStore) {
+        storeClient = AbstractWarp10Plugin.getExposedStoreClient();
+        directoryClient = AbstractWarp10Plugin.getExposedDirectoryClient();
+      } else {
+        storeClient = benchStore.getStoreClient();
+        directoryClient = benchStore.getDirectoryClient();
+      }
+
+      stack = newStack(storeClient, directoryClient);
+
+      // Read the cached fixtures, they are visible from the stacks of all the threads
+      JMHFixtures.load(stack, benchConf, storeClient, directoryClient);
+
+      // Store the parameters, they are visible from the stacks of all the threads
+      for (Map.Entry<String, Object> param: benchRun.params.entrySet()) {
+        stack.store(param.getKey(), param.getValue());
+      }
+
+      sharedPreTrial = (Macro) benchConf.getOrDefault(JMH.SHARED_PRETRIAL_MACRO, new Macro());
+      sharedPostTrial = (Macro) benchConf.getOrDefault(JMH.SHARED_POSTTRIAL_MACRO, new Macro());
+
+      fastExec(stack, sharedPreTrial);
+    }
+
+    @Setup(Level.Iteration)
+    public void doIterationSetup() throws WarpScriptException {
+      checkStopped(stopFiles);
+    }
+
+    @TearDown(Level.Trial)
+    public void doTrialTearDown() throws WarpScriptException {
+      fastExec(stack, sharedPostTrial);
+    }
+  }
+
+  /**
+   * Per-thread state, with trial and iteration level macros. Invocation level fixtures are defined by subclasses.
+   */
+  public abstract static class AbstractMBState {
 
     MemoryWarpScriptStack stack;
     Macro macro;
+    Macro writer;
+    Macro reader;
     Macro preTrial;
     Macro preIteration;
     Macro preInvocation;
     Macro postInvocation;
     Macro postIteration;
     Macro postTrial;
+    // Macro building a fresh input from the size parameter before each invocation, see JMH.GENERATOR_MACRO
+    Macro generator;
+    // Macros of an A/B comparison, or the macro and its no-op macro, one of them being run by each iteration in the given order
+    Macro a;
+    Macro b;
+    boolean[] order;
+    int iterations;
+    boolean calibrate;
+    // Measure the heap retained by what the macro leaves on the stack, see FootprintProfiler
+    boolean footprint;
 
     @Setup(Level.Trial)
-    public void doTrialSetup(BenchmarkParams params) throws WarpScriptException, IOException {
-      // Set config if this is a fork
-      if (params.getForks() > 0) {
-        for (String jvmArg: params.getJvmArgs()) {
-          if (jvmArg.startsWith(JMH.JVM_ARG_PREFIX_WARPCONF)) {
-            String filename = jvmArg.substring(JMH.JVM_ARG_PREFIX_WARPCONF.length());
-            WarpConfig.setProperties(filename);
+    public void doTrialSetup(MBSharedState shared) throws WarpScriptException {
+      // Each thread has its own stack, only the variables defined by the shared pretrial macro are shared, not its registers.
+      stack = newStack(shared.storeClient, shared.directoryClient);
+      stack.getSymbolTable().putAll(shared.stack.getSymbolTable());
+
+      Map benchConf = shared.benchConf;
+      macro = (Macro) benchConf.getOrDefault(JMH.MACRO_KEY, new Macro());
+      writer = (Macro) benchConf.getOrDefault(JMH.WRITER_MACRO, new Macro());
+      reader = (Macro) benchConf.getOrDefault(JMH.READER_MACRO, new Macro());
+      preTrial = (Macro) benchConf.getOrDefault(JMH.PRETRIAL_MACRO, new Macro());
+      preIteration = (Macro) benchConf.getOrDefault(JMH.PREITERATION_MACRO, new Macro());
+      preInvocation = (Macro) benchConf.getOrDefault(JMH.PREINVOCATION_MACRO, new Macro());
+      postInvocation = (Macro) benchConf.getOrDefault(JMH.POSTINVOCATION_MACRO, new Macro());
+      postIteration = (Macro) benchConf.getOrDefault(JMH.POSTITERATION_MACRO, new Macro());
+      postTrial = (Macro) benchConf.getOrDefault(JMH.POSTTRIAL_MACRO, new Macro());
+      footprint = shared.footprint;
+
+      calibrate = shared.calibrate;
+      if (benchConf.containsKey(JMH.A_MACRO)) {
+        a = (Macro) benchConf.get(JMH.A_MACRO);
+        b = (Macro) benchConf.get(JMH.B_MACRO);
+      } else if (calibrate) {
+        // The overhead of the harness is measured in the same forks, by iterations dispatching as many statements
+        a = macro;
+        b = noop(macro);
+      }
+      if (null != a) {
+        order = shared.order;
+        iterations = 0;
+      }
+
+      // Only the benchmarked macros are profiled
+      if (shared.profile) {
+        macro = WarpScriptProfiler.profile(macro);
+        writer = WarpScriptProfiler.profile(writer);
+        reader = WarpScriptProfiler.profile(reader);
+        if (null != order) {
+          a = WarpScriptProfiler.profile(a);
+          if (!calibrate) {
+            b = WarpScriptProfiler.profile(b);
           }
         }
+      }
 
-        WarpScriptLib.registerExtensions();
+      trialSetup(benchConf);
+
+      fastExec(stack, preTrial);
+
+      // The macros defined by the pretrial macros are called through their variables
+      if (shared.profile) {
+        WarpScriptProfiler.profileVariables(stack);
       }
 
-      stack = new MemoryWarpScriptStack(AbstractWarp10Plugin.getExposedStoreClient(), AbstractWarp10Plugin.getExposedDirectoryClient(), WarpConfig.getProperties());
-      stack.maxLimits();
-      // Authenticate stack
-      stack.setAttribute(WarpScriptStack.ATTRIBUTE_TOKEN, "dummytoken");
+      generator = (Macro) benchConf.get(JMH.GENERATOR_MACRO);
 
-      // Check the JVM arguments for the macro snapshot file path. We don't use System properties because if there is no fork,
-      // they don't have the value.
-      for (String jvmArg: params.getJvmArgs()) {
-        if (jvmArg.startsWith(JMH.JVM_ARG_PREFIX_BENCHCONF)) {
-          String filename = jvmArg.substring(JMH.JVM_ARG_PREFIX_BENCHCONF.length());
-          List<String> lines = Files.readAllLines(Paths.get(filename), StandardCharsets.UTF_8);
-          String benchConfSnapshot = String.join(System.lineSeparator(), lines);
-
-          stack.exec(benchConfSnapshot);
-          Map benchConf = (Map) stack.pop();
-
-          macro = (Macro) benchConf.get(JMH.MACRO_KEY);
-          preTrial = (Macro) benchConf.getOrDefault(JMH.PRETRIAL_MACRO, new Macro());
-          preIteration = (Macro) benchConf.getOrDefault(JMH.PREITERATION_MACRO, new Macro());
-          preInvocation = (Macro) benchConf.getOrDefault(JMH.PREINVOCATION_MACRO, new Macro());
-          postInvocation = (Macro) benchConf.getOrDefault(JMH.POSTINVOCATION_MACRO, new Macro());
-          postIteration = (Macro) benchConf.getOrDefault(JMH.POSTITERATION_MACRO, new Macro());
-          postTrial = (Macro) benchConf.getOrDefault(JMH.POSTTRIAL_MACRO, new Macro());
-          break;
-        }
+      if (null != order && !calibrate) {
+        checkComparison();
       }
+    }
 
-      fastExec(stack, preTrial);
+    /**
+     * Fail the fork if A and B do not leave the same stack, in which case they cannot be compared.
+     */
+    private void checkComparison() throws WarpScriptException {
+      String stackA = snapshotInvocation(a);
+      String stackB = snapshotInvocation(b);
+      if (!stackA.equals(stackB)) {
+        throw new WarpScriptException("Macros " + JMH.A_MACRO + " and " + JMH.B_MACRO + " do not leave the same stack: " + stackA + " and " + stackB + ".");
+      }
+    }
+
+    private String snapshotInvocation(Macro invoked) throws WarpScriptException {
+      generate(stack, generator);
+      fastExec(stack, preInvocation);
+      fastExec(stack, invoked);
+
+      StringBuilder sb = new StringBuilder();
+      for (int i = stack.depth() - 1; i >= 0; i--) {
+        SNAPSHOT.addElement(sb, stack.get(i));
+      }
+
+      fastExec(stack, postInvocation);
+      stack.clear();
+      return sb.toString();
+    }
+
+    /**
+     * Called before the pretrial macro, for subclasses to read their own configuration.
+     */
+    protected void trialSetup(Map benchConf) throws WarpScriptException {
     }
 
     @Setup(Level.Iteration)
     public void doIterationSetup() throws WarpScriptException {
+      if (null != order) {
+        macro = order[iterations++] ? b : a;
+      }
       fastExec(stack, preIteration);
+      iterationSetup();
     }
 
+    /**
+     * Called after the preiteration macro, for subclasses to prepare the iteration.
+     */
+    protected void iterationSetup() throws WarpScriptException {
+    }
+
+    @TearDown(Level.Iteration)
+    public void doIterationTearDown() throws WarpScriptException {
+      iterationTearDown();
+      fastExec(stack, postIteration);
+    }
+
+    /**
+     * Called before the postiteration macro, for subclasses to complete the iteration. JMH does not order several
+     * teardown methods of the same level, hence this hook instead of their own.
+     */
+    protected void iterationTearDown() throws WarpScriptException {
+    }
+
+    @TearDown(Level.Trial)
+    public void doTrialTearDown() throws WarpScriptException {
+      fastExec(stack, postTrial);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class MBState extends AbstractMBState {
+
     @Setup(Level.Invocation)
     public void doInvocationSetup() throws WarpScriptException {
+      // Like a request, each call through the interpreter starts with no operation counted
+      stack.resetCounters();
+      generate(stack, generator);
       fastExec(stack, preInvocation);
     }
 
@@ -113,14 +335,150 @@ public class MacroBenchmark {
       fastExec(stack, postInvocation);
     }
 
-    @TearDown(Level.Iteration)
-    public void doIterationTearDown() throws WarpScriptException {
-      fastExec(stack, postIteration);
+    /**
+     * Run one more invocation and measure the heap retained by what the macro adds to the stack, one thread at a time
+     * so the garbage collections of a thread do not account for the objects of another one. The inputs pushed by the
+     * generator and preinvocation macros are kept referenced during both measures so they are not accounted for, even
+     * if the macro drops them.
+     */
+    @Override
+    protected void iterationTearDown() throws WarpScriptException {
+      if (!footprint) {
+        return;
+      }
+
+      synchronized (FootprintProfiler.class) {
+        stack.clear();
+        doInvocationSetup();
+
+        Map<Object, Boolean> inputs = new IdentityHashMap<Object, Boolean>();
+        for (int i = 0; i < stack.depth(); i++) {
+          inputs.put(stack.get(i), Boolean.TRUE);
+        }
+        long withInputs = FootprintProfiler.usedHeap();
+
+        fastExec(stack, macro);
+
+        // Inputs left on the stack, modified in place or not, are not counted
+        long[] counts = new long[2];
+        for (int i = 0; i < stack.depth(); i++) {
+          if (!inputs.containsKey(stack.get(i))) {
+            FootprintProfiler.count(stack.get(i), counts);
+          }
+        }
+        long withResults = FootprintProfiler.usedHeap();
+
+        doInvocationTearDown();
+        stack.clear();
+        inputs.clear();
+
+        FootprintProfiler.record(Math.max(0L, withResults - withInputs), counts[0], counts[1]);
+      }
     }
+  }
 
-    @TearDown(Level.Trial)
-    public void doTrialTearDown() throws WarpScriptException {
-      fastExec(stack, postTrial);
+  /**
+   * Per-thread state of batched benchmarks, see JMH.INPUT_MACRO. There are no invocation level fixtures: a ring of
+   * inputs is generated at the start of each iteration and each invocation runs the macro on every input. The inputs
+   * are not copied, the invocations of an iteration see the changes made in place by the previous ones.
+   */
+  @State(Scope.Thread)
+  public static class MBBatchState extends AbstractMBState {
+
+    Macro input;
+    Object[] inputs;
+
+    @Override
+    protected void trialSetup(Map benchConf) {
+      input = (Macro) benchConf.get(JMH.INPUT_MACRO);
+      inputs = new Object[((Long) benchConf.get(JMH.BATCH_KEY)).intValue()];
+    }
+
+    @Override
+    protected void iterationSetup() throws WarpScriptException {
+      for (int i = 0; i < inputs.length; i++) {
+        fastExec(stack, input);
+        inputs[i] = stack.pop();
+      }
+      stack.clear();
+    }
+  }
+
+  /**
+   * Per-thread state of the fixed rate load benchmark, see JMH.LOAD_KEY. Each thread calls the macro at its share of the
+   * rate, the threads being evenly shifted. The latencies are recorded per iteration then added to LoadProfiler.
+   */
+  @State(Scope.Thread)
+  public static class MBLoadState extends AbstractMBState {
+
+    // Time between two scheduled calls of this thread, and shift of its schedule, in ns
+    long interval;
+    long shift;
+    long duration;
+
+    Histogram latency;
+    Histogram service;
+    long calls;
+    long missed;
+    long elapsed;
+
+    @Setup(Level.Trial)
+    public void doLoadSetup(BenchmarkParams params, ThreadParams threadParams) {
+      double rate = 0.0D;
+      for (String jvmArg: params.getJvmArgs()) {
+        if (jvmArg.startsWith(JMH.JVM_ARG_PREFIX_LOAD_RATE)) {
+          rate = Double.parseDouble(jvmArg.substring(JMH.JVM_ARG_PREFIX_LOAD_RATE.length()));
+        } else if (jvmArg.startsWith(JMH.JVM_ARG_PREFIX_LOAD_DURATION)) {
+          duration = Long.parseLong(jvmArg.substring(JMH.JVM_ARG_PREFIX_LOAD_DURATION.length()));
+        }
+      }
+
+      double globalInterval = 1.0e9D / rate;
+      interval = Math.max(1L, (long) (globalInterval * threadParams.getThreadCount()));
+      shift = (long) (globalInterval * threadParams.getThreadIndex());
+
+      latency = LoadProfiler.newHistogram();
+      service = LoadProfiler.newHistogram();
+    }
+
+    @Override
+    protected void iterationSetup() {
+      latency.reset();
+      service.reset();
+      calls = 0L;
+      missed = 0L;
+      elapsed = 0L;
+    }
+
+    @Override
+    protected void iterationTearDown() {
+      LoadProfiler.record(latency, service, calls, missed, elapsed);
+    }
+  }
+
+  /**
+   * State of the cold start benchmark, see JMH.COLDSTART_KEY. Unlike MBSharedState, it neither loads the configuration
+   * nor registers the extensions, the benchmark does it in each fresh fork and times every phase.
+   */
+  @State(Scope.Benchmark)
+  public static class MBColdState {
+
+    // Index of the bench configuration and combination of parameters, see JMH.BenchRun
+    @Param({"0"})
+    public int combination;
+
+    BenchmarkParams params;
+    List<File> stopFiles;
+
+    @Setup(Level.Trial)
+    public void doTrialSetup(BenchmarkParams params) {
+      this.params = params;
+      stopFiles = stopFiles(params);
+    }
+
+    @Setup(Level.Iteration)
+    public void doIterationSetup() throws WarpScriptException {
+      checkStopped(stopFiles);
     }
   }
 
@@ -129,6 +487,300 @@ public class MacroBenchmark {
     fastExec(mbState.stack, mbState.macro);
   }
 
+  /**
+   * Run the macro through the interpreter, as a request would, see JMH.EXEC_KEY. Unlike fastExec, exec counts the
+   * operations, checks the limits and handles the recursion level.
+   */
+  @Benchmark
+  public void benchmarkInterpreted(MBState mbState) throws WarpScriptException {
+    mbState.stack.exec(mbState.macro);
+  }
+
+  /**
+   * Run the macro on each input of the ring, operationsPerInvocation being the size of the ring. The stack is cleared
+   * once per invocation, this cost is shared by all the inputs.
+   */
+  @Benchmark
+  public void benchmarkBatch(MBBatchState mbState) throws WarpScriptException {
+    runBatch(mbState, mbState.macro);
+  }
+
+  @Benchmark
+  public void benchmarkBatchInterpreted(MBBatchState mbState) throws WarpScriptException {
+    runBatchInterpreted(mbState, mbState.macro);
+  }
+
+  private static void runBatch(MBBatchState mbState, Macro macro) throws WarpScriptException {
+    MemoryWarpScriptStack stack = mbState.stack;
+    Object[] inputs = mbState.inputs;
+    for (int i = 0; i < inputs.length; i++) {
+      stack.push(inputs[i]);
+      fastExec(stack, macro);
+    }
+    stack.clear();
+  }
+
+  /**
+   * Same as runBatch through the interpreter. The counters of the stack are reset once per invocation, as there is no
+   * invocation level fixture, so their number of operations does not grow until the limit over the iteration.
+   */
+  private static void runBatchInterpreted(MBBatchState mbState, Macro macro) throws WarpScriptException {
+    MemoryWarpScriptStack stack = mbState.stack;
+    stack.resetCounters();
+    Object[] inputs = mbState.inputs;
+    for (int i = 0; i < inputs.length; i++) {
+      stack.push(inputs[i]);
+      stack.exec(macro);
+    }
+    stack.clear();
+  }
+
+  /**
+   * Open loop: call the macro at a fixed rate for the configured duration, whatever the time taken by the previous
+   * calls. A call whose scheduled time has passed when the previous one ends starts immediately and is counted as
+   * missed, its latency including the time it waited.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  public void load(MBLoadState mbState) throws WarpScriptException {
+    MemoryWarpScriptStack stack = mbState.stack;
+    long begin = System.nanoTime();
+    long start = begin + mbState.shift;
+    long end = begin + mbState.duration;
+
+    for (long call = 0; ; call++) {
+      long scheduled = start + call * mbState.interval;
+      if (scheduled >= end) {
+        break;
+      }
+
+      fastExec(stack, mbState.preInvocation);
+
+      long now = System.nanoTime();
+      if (now > scheduled) {
+        mbState.missed++;
+      } else {
+        while (now < scheduled) {
+          LockSupport.parkNanos(scheduled - now);
+          now = System.nanoTime();
+        }
+      }
+
+      fastExec(stack, mbState.macro);
+
+      long done = System.nanoTime();
+      mbState.latency.recordValue(done - scheduled);
+      mbState.service.recordValue(done - now);
+      mbState.calls++;
+
+      fastExec(stack, mbState.postInvocation);
+    }
+
+    mbState.elapsed = System.nanoTime() - begin;
+  }
+
+  /**
+   * Single invocation of a fresh fork: load the configuration, register the extensions, create a stack, read the bench
+   * configuration, run the setup macros then run the macro twice, each phase being reported by ColdStartProfiler.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  public void coldStart(MBColdState coldState) throws WarpScriptException, IOException {
+    runColdStart(coldState, false);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  public void coldStartInterpreted(MBColdState coldState) throws WarpScriptException, IOException {
+    runColdStart(coldState, true);
+  }
+
+  /**
+   * Go through the same trial, iteration and invocation setups and teardowns as the other benchmarks, with the states
+   * they use, between the marks of the phases.
+   */
+  private static void runColdStart(MBColdState coldState, boolean interpreted) throws WarpScriptException, IOException {
+    ColdStartProfiler.start();
+
+    loadConfiguration(coldState.params);
+    ColdStartProfiler.mark(ColdStartProfiler.PHASE_CONFIG);
+
+    WarpScriptLib.registerExtensions();
+    ColdStartProfiler.mark(ColdStartProfiler.PHASE_EXTENSIONS);
+
+    MemoryWarpScriptStack parser = newStack();
+    ColdStartProfiler.mark(ColdStartProfiler.PHASE_STACK);
+
+    MBSharedState shared = new MBSharedState();
+    shared.combination = coldState.combination;
+    shared.select(parser, coldState.params);
+    parser.clear();
+    ColdStartProfiler.mark(ColdStartProfiler.PHASE_PARSE);
+
+    shared.prepare();
+    MBState state = new MBState();
+    state.doTrialSetup(shared);
+    state.doIterationSetup();
+
+    // Only the calls of the macro are measured, not the invocation level macros around them
+    for (String phase: new String[] {ColdStartProfiler.PHASE_FIRST, ColdStartProfiler.PHASE_SECOND}) {
+      state.doInvocationSetup();
+      if (ColdStartProfiler.PHASE_FIRST.equals(phase)) {
+        ColdStartProfiler.mark(ColdStartProfiler.PHASE_SETUP);
+      } else {
+        ColdStartProfiler.skip();
+      }
+
+      if (interpreted) {
+        state.stack.exec(state.macro);
+      } else {
+        fastExec(state.stack, state.macro);
+      }
+      ColdStartProfiler.mark(phase);
+
+      state.doInvocationTearDown();
+    }
+
+    state.doIterationTearDown();
+    state.doTrialTearDown();
+    shared.doTrialTearDown();
+  }
+
+  @Benchmark
+  @Group(GROUP)
+  @GroupThreads(1)
+  public void writer(MBState mbState) throws WarpScriptException {
+    fastExec(mbState.stack, mbState.writer);
+  }
+
+  @Benchmark
+  @Group(GROUP)
+  @GroupThreads(1)
+  public void reader(MBState mbState) throws WarpScriptException {
+    fastExec(mbState.stack, mbState.reader);
+  }
+
+  /**
+   * Push a new input built by the generator macro from the size parameter, if any. The input is built again for each
+   * invocation as the macro may modify it in place, only its top is kept on the stack.
+   */
+  static void generate(MemoryWarpScriptStack stack, Macro generator) throws WarpScriptException {
+    if (null == generator) {
+      return;
+    }
+    int depth = stack.depth();
+    stack.push(stack.load(JMH.SIZE_PARAM));
+    fastExec(stack, generator);
+    Object input = stack.pop();
+    while (stack.depth() > depth) {
+      stack.pop();
+    }
+    stack.push(input);
+  }
+
+  /**
+   * Load the Warp 10 configuration given to the forks by JMH.
+   */
+  static void loadConfiguration(BenchmarkParams params) throws IOException {
+    for (String jvmArg: params.getJvmArgs()) {
+      if (jvmArg.startsWith(JMH.JVM_ARG_PREFIX_WARPCONF)) {
+        WarpConfig.setProperties(jvmArg.substring(JMH.JVM_ARG_PREFIX_WARPCONF.length()));
+      }
+    }
+  }
+
+  static MemoryWarpScriptStack newStack() {
+    return newStack(AbstractWarp10Plugin.getExposedStoreClient(), AbstractWarp10Plugin.getExposedDirectoryClient());
+  }
+
+  static MemoryWarpScriptStack newStack(StoreClient storeClient, DirectoryClient directoryClient) {
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(storeClient, directoryClient, WarpConfig.getProperties());
+    stack.maxLimits();
+    // Authenticate stack
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_TOKEN, "dummytoken");
+    return stack;
+  }
+
+  /**
+   * Create and initialize the store selected by the bench configuration, see BenchStore.
+   * @return The store, or null to use the store of the Warp 10 instance.
+   */
+  static BenchStore newBenchStore(Map benchConf) throws WarpScriptException {
+    Object name = benchConf.get(JMH.STORE_KEY);
+    if (null == name) {
+      return null;
+    }
+
+    BenchStore benchStore;
+    if (InMemoryBenchStore.NAME.equals(name)) {
+      benchStore = new InMemoryBenchStore();
+    } else {
+      try {
+        benchStore = (BenchStore) Class.forName(name.toString()).getDeclaredConstructor().newInstance();
+      } catch (ReflectiveOperationException | ClassCastException e) {
+        throw new WarpScriptException("Invalid bench store " + name + ".", e);
+      }
+    }
+
+    benchStore.init((Map<Object, Object>) benchConf.getOrDefault(JMH.DATASET_KEY, new HashMap<Object, Object>()));
+
+    return benchStore;
+  }
+
+  static List<Map<Object, Object>> readBenchConfigurations(WarpScriptStack stack, BenchmarkParams params) throws WarpScriptException, IOException {
+    // Check the JVM arguments for the macro snapshot file path. We don't use System properties because if there is no fork,
+    // they don't have the value.
+    for (String jvmArg: params.getJvmArgs()) {
+      if (jvmArg.startsWith(JMH.JVM_ARG_PREFIX_BENCHCONF)) {
+        String filename = jvmArg.substring(JMH.JVM_ARG_PREFIX_BENCHCONF.length());
+        List<String> lines = Files.readAllLines(Paths.get(filename), StandardCharsets.UTF_8);
+        String benchConfSnapshot = String.join(System.lineSeparator(), lines);
+
+        stack.exec(benchConfSnapshot);
+        return (List) stack.pop();
+      }
+    }
+
+    throw new WarpScriptException("Missing " + JMH.JVM_ARG_PREFIX_BENCHCONF + " JVM argument, benchmarks must be run by JMH.");
+  }
+
+  /**
+   * Files whose creation stops the run: the one of the stream of results, see StreamingOutputFormat, and the one of the
+   * cancellation of the job, see JMHJobScheduler.cancel.
+   */
+  static List<File> stopFiles(BenchmarkParams params) {
+    List<File> stopFiles = new ArrayList<File>();
+    for (String jvmArg: params.getJvmArgs()) {
+      if (jvmArg.startsWith(JMH.JVM_ARG_PREFIX_STOPFILE)) {
+        stopFiles.add(new File(jvmArg.substring(JMH.JVM_ARG_PREFIX_STOPFILE.length())));
+      }
+    }
+    return stopFiles;
+  }
+
+  /**
+   * Fail the fork, and so abort the run, when one of the stop files exists.
+   */
+  static void checkStopped(List<File> stopFiles) throws WarpScriptException {
+    for (File stopFile: stopFiles) {
+      if (stopFile.exists()) {
+        throw new WarpScriptException("Benchmark stopped by the stream of results or by the cancellation of its job.");
+      }
+    }
+  }
+
+  /**
+   * Build a macro of as many statements as the given one, each of them doing nothing, to measure the cost of the
+   * dispatch of the statements and of the harness, see JMH.CALIBRATE_KEY.
+   */
+  static Macro noop(Macro macro) {
+    Macro noop = new Macro();
+    for (int i = 0; i < macro.size(); i++) {
+      noop.add(NOOP);
+    }
+    return noop;
+  }
+
   public static void fastExec(WarpScriptStack stack, Macro macro) throws WarpScriptException {
     int n = macro.size();
     for (int i = 0; i < n; i++) {
@@ -0,0 +1,316 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import io.warp10.json.JsonUtils;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.results.BenchmarkResult;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.IterationType;
+import org.openjdk.jmh.runner.format.OutputFormat;
+import org.openjdk.jmh.runner.format.OutputFormatFactory;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMH output format sending an event to a Sink at the start and end of each benchmark and after each warmup and
+ * measurement iteration, as soon as the forks report them. Everything else is delegated to a silent output format.
+ * <p>
+ * When the sink asks to stop, the stop file is created. The forks check it before each iteration and fail, which aborts
+ * the run, the results of the iterations measured so far being available with partialResults.
+ */
+public class StreamingOutputFormat implements OutputFormat {
+
+  public static final String EVENT_START = "start";
+  public static final String EVENT_ITERATION = "iteration";
+  public static final String EVENT_END = "end";
+
+  /**
+   * Receiver of the events.
+   */
+  public interface Sink {
+    /**
+     * @param event Map describing the event.
+     * @return false to stop the run.
+     * @throws WarpScriptException if the event cannot be handled, which stops the run.
+     */
+    boolean emit(Map<Object, Object> event) throws WarpScriptException;
+  }
+
+  /**
+   * Sink calling a macro with the event on top of the stack. The run is stopped if the macro pushes false.
+   */
+  public static class MacroSink implements Sink {
+    private final WarpScriptStack stack;
+    private final WarpScriptStack.Macro macro;
+
+    public MacroSink(WarpScriptStack stack, WarpScriptStack.Macro macro) {
+      this.stack = stack;
+      this.macro = macro;
+    }
+
+    @Override
+    public synchronized boolean emit(Map<Object, Object> event) throws WarpScriptException {
+      int depth = stack.depth();
+      stack.push(event);
+      stack.exec(macro);
+      if (stack.depth() > depth && stack.peek() instanceof Boolean) {
+        return (Boolean) stack.pop();
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Sink appending each event as a line of JSON to a file.
+   */
+  public static class FileSink implements Sink {
+    private final File file;
+
+    public FileSink(File file) {
+      this.file = file;
+    }
+
+    @Override
+    public synchronized boolean emit(Map<Object, Object> event) throws WarpScriptException {
+      try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+        writer.write(JsonUtils.objectToJson(event, true));
+        writer.write("\n");
+      } catch (IOException ioe) {
+        throw new WarpScriptException("Could not write benchmark event to " + file + ".", ioe);
+      }
+      return true;
+    }
+  }
+
+  // Silent, on a stream which is never written to nor closed
+  private final OutputFormat delegate = OutputFormatFactory.createFormatInstance(new PrintStream(new OutputStream() {
+    @Override
+    public void write(int b) {
+    }
+  }), VerboseMode.SILENT);
+  private final Sink sink;
+  private final File stopFile;
+  private final List<Map<Object, Object>> tags;
+
+  private boolean stopped = false;
+  private WarpScriptException error = null;
+
+  // Measurement iterations of each fork of each benchmark, to build the partial results of a stopped run
+  private final Map<String, BenchmarkParams> benchmarks = new LinkedHashMap<String, BenchmarkParams>();
+  private final Map<String, List<List<IterationResult>>> forks = new LinkedHashMap<String, List<List<IterationResult>>>();
+  private IterationType lastType = null;
+
+  /**
+   * @param sink Receiver of the events.
+   * @param stopFile File to create to stop the forks.
+   * @param tags Entries added to the events of each benchmark, by index of bench configuration and combination of parameters.
+   */
+  public StreamingOutputFormat(Sink sink, File stopFile, List<Map<Object, Object>> tags) {
+    this.sink = sink;
+    this.stopFile = stopFile;
+    this.tags = tags;
+  }
+
+  public synchronized boolean isStopped() {
+    return stopped;
+  }
+
+  /**
+   * @return The error thrown by the sink, if any.
+   */
+  public synchronized WarpScriptException getError() {
+    return error;
+  }
+
+  /**
+   * Build the results of the measurement iterations received so far, warmup forks excluded.
+   */
+  public synchronized Collection<RunResult> partialResults() {
+    List<RunResult> results = new ArrayList<RunResult>();
+    for (Map.Entry<String, BenchmarkParams> benchmark: benchmarks.entrySet()) {
+      BenchmarkParams params = benchmark.getValue();
+      List<List<IterationResult>> benchmarkForks = forks.get(benchmark.getKey());
+      List<BenchmarkResult> benchmarkResults = new ArrayList<BenchmarkResult>();
+      for (int fork = params.getWarmupForks(); fork < benchmarkForks.size(); fork++) {
+        if (!benchmarkForks.get(fork).isEmpty()) {
+          benchmarkResults.add(new BenchmarkResult(params, benchmarkForks.get(fork)));
+        }
+      }
+      if (!benchmarkResults.isEmpty()) {
+        results.add(new RunResult(params, benchmarkResults));
+      }
+    }
+    return results;
+  }
+
+  private static String key(BenchmarkParams params) {
+    return params.getBenchmark() + ":" + params.getParam(JMH.COMBINATION_PARAM);
+  }
+
+  private Map<Object, Object> newEvent(String type, BenchmarkParams params) {
+    Map<Object, Object> event = new LinkedHashMap<Object, Object>();
+    event.put("event", type);
+    event.put("benchmark", params.getBenchmark());
+    event.put("mode", params.getMode().shortLabel());
+    event.putAll(tags.get(Integer.parseInt(params.getParam(JMH.COMBINATION_PARAM))));
+    return event;
+  }
+
+  private void emit(Map<Object, Object> event) {
+    if (stopped) {
+      return;
+    }
+    try {
+      if (!sink.emit(event)) {
+        stop();
+      }
+    } catch (WarpScriptException wse) {
+      error = wse;
+      stop();
+    }
+  }
+
+  private void stop() {
+    stopped = true;
+    try {
+      stopFile.createNewFile();
+    } catch (IOException ioe) {
+      error = new WarpScriptException("Could not stop the benchmark.", ioe);
+    }
+  }
+
+  @Override
+  public synchronized void startBenchmark(BenchmarkParams benchParams) {
+    delegate.startBenchmark(benchParams);
+    benchmarks.put(key(benchParams), benchParams);
+    forks.put(key(benchParams), new ArrayList<List<IterationResult>>());
+    lastType = null;
+    emit(newEvent(EVENT_START, benchParams));
+  }
+
+  @Override
+  public synchronized void iteration(BenchmarkParams benchParams, IterationParams params, int iteration) {
+    delegate.iteration(benchParams, params, iteration);
+  }
+
+  @Override
+  public synchronized void iterationResult(BenchmarkParams benchParams, IterationParams params, int iteration, IterationResult data) {
+    delegate.iterationResult(benchParams, params, iteration, data);
+
+    // Each fork runs its warmup iterations then its measurement iterations, both numbered from 1
+    List<List<IterationResult>> benchmarkForks = forks.get(key(benchParams));
+    if (1 == iteration && (IterationType.WARMUP == params.getType() || IterationType.WARMUP != lastType)) {
+      benchmarkForks.add(new ArrayList<IterationResult>());
+    }
+    lastType = params.getType();
+
+    if (IterationType.MEASUREMENT == params.getType()) {
+      benchmarkForks.get(benchmarkForks.size() - 1).add(data);
+    }
+
+    Map<Object, Object> event = newEvent(EVENT_ITERATION, benchParams);
+    event.put("fork", (long) benchmarkForks.size());
+    event.put("warmupFork", benchmarkForks.size() <= benchParams.getWarmupForks());
+    event.put("warmup", IterationType.WARMUP == params.getType());
+    event.put("iteration", (long) iteration);
+    event.put("score", data.getPrimaryResult().getScore());
+    event.put("scoreUnit", data.getPrimaryResult().getScoreUnit());
+    Map<Object, Object> secondaryMetrics = new LinkedHashMap<Object, Object>();
+    for (Map.Entry<String, Result> secondary: data.getSecondaryResults().entrySet()) {
+      secondaryMetrics.put(secondary.getKey(), secondary.getValue().getScore());
+    }
+    event.put("secondaryMetrics", secondaryMetrics);
+    emit(event);
+  }
+
+  @Override
+  public synchronized void endBenchmark(BenchmarkResult result) {
+    delegate.endBenchmark(result);
+    if (null == result) {
+      return;
+    }
+    Map<Object, Object> event = newEvent(EVENT_END, result.getParams());
+    event.put("score", result.getPrimaryResult().getScore());
+    event.put("scoreError", result.getPrimaryResult().getScoreError());
+    event.put("scoreUnit", result.getPrimaryResult().getScoreUnit());
+    emit(event);
+  }
+
+  @Override
+  public void startRun() {
+    delegate.startRun();
+  }
+
+  @Override
+  public void endRun(Collection<RunResult> result) {
+    delegate.endRun(result);
+  }
+
+  @Override
+  public void print(String s) {
+    delegate.print(s);
+  }
+
+  @Override
+  public void println(String s) {
+    delegate.println(s);
+  }
+
+  @Override
+  public void flush() {
+    delegate.flush();
+  }
+
+  @Override
+  public void close() {
+    delegate.close();
+  }
+
+  @Override
+  public void verbosePrintln(String s) {
+    delegate.verbosePrintln(s);
+  }
+
+  @Override
+  public void write(int b) {
+    delegate.write(b);
+  }
+
+  @Override
+  public void write(byte[] b) throws IOException {
+    delegate.write(b);
+  }
+}
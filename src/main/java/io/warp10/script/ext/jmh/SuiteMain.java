@@ -0,0 +1,75 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import io.warp10.WarpConfig;
+import io.warp10.json.JsonUtils;
+import io.warp10.script.WarpScriptLib;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Run the bundled suite outside of Warp 10, see JMHSUITE, and write its baseline as JSON. This is what the jmhSuite
+ * Gradle task runs.
+ * <p>
+ * Arguments are the path of the JSON file and optionally the path of a Warp 10 configuration, a minimal one being used
+ * otherwise.
+ */
+public class SuiteMain {
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: SuiteMain <baseline.json> [warp10.conf]");
+      System.exit(1);
+    }
+
+    File configuration;
+    if (args.length > 1) {
+      configuration = new File(args[1]);
+    } else {
+      configuration = File.createTempFile("warp10", ".conf");
+      configuration.deleteOnExit();
+      try (Writer writer = new OutputStreamWriter(new FileOutputStream(configuration), StandardCharsets.UTF_8)) {
+        writer.write("warp.timeunits = us\n");
+      }
+    }
+
+    WarpConfig.setProperties(configuration.getAbsolutePath());
+    WarpScriptLib.registerExtensions();
+    WarpScriptLib.register(new JMHWarpScriptExtension());
+
+    Map<Object, Object> baseline = new JMHSUITE("JMHSUITE").runSuite(new HashMap<Object, Object>(), null);
+
+    File output = new File(args[0]);
+    if (null != output.getAbsoluteFile().getParentFile()) {
+      output.getAbsoluteFile().getParentFile().mkdirs();
+    }
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8)) {
+      writer.write(JsonUtils.objectToJson(baseline, true));
+      writer.write("\n");
+    }
+
+    // JMH may leave non daemon threads behind
+    System.exit(0);
+  }
+}
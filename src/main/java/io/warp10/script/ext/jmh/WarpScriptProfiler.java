@@ -0,0 +1,218 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStack.Macro;
+import io.warp10.script.WarpScriptStackFunction;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+import org.openjdk.jmh.runner.IterationType;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * JMH profiler attributing time and allocated bytes to each WarpScript function of the benchmarked macro, including the
+ * functions of the macros it contains. When profiling, the functions of the macro are wrapped in ProfiledFunction, which
+ * only record anything during measurement iterations.
+ * <p>
+ * For each function, the profiler reports per benchmark operation the number of calls, the time and the allocated bytes,
+ * both including and excluding the nested function calls (self).
+ */
+public class WarpScriptProfiler implements InternalProfiler {
+
+  public static final String NAME = "warpscript";
+
+  // Prefix of the labels of the secondary results, followed by the metric and the function name
+  public static final String LABEL_PREFIX = "ws.";
+
+  public static final String METRIC_CALLS = "calls";
+  public static final String METRIC_TIME = "time";
+  public static final String METRIC_SELF_TIME = "selfTime";
+  public static final String METRIC_ALLOC = "alloc";
+  public static final String METRIC_SELF_ALLOC = "selfAlloc";
+
+  private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  private static volatile boolean active = false;
+
+  private static final Map<String, FunctionStats> stats = new ConcurrentHashMap<String, FunctionStats>();
+
+  private static class FunctionStats {
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder time = new LongAdder();
+    private final LongAdder selfTime = new LongAdder();
+    private final LongAdder alloc = new LongAdder();
+    private final LongAdder selfAlloc = new LongAdder();
+  }
+
+  /**
+   * Time and allocations of the nested calls of the functions being executed by a thread.
+   */
+  private static class Frames {
+    private long[] childTime = new long[16];
+    private long[] childAlloc = new long[16];
+    private int depth = 0;
+  }
+
+  private static final ThreadLocal<Frames> frames = new ThreadLocal<Frames>() {
+    @Override
+    protected Frames initialValue() {
+      return new Frames();
+    }
+  };
+
+  /**
+   * Wrapper of a function recording its calls when the profiler is active.
+   */
+  public static class ProfiledFunction extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+
+    private final WarpScriptStackFunction function;
+
+    public ProfiledFunction(WarpScriptStackFunction function) {
+      super(function instanceof NamedWarpScriptFunction ? ((NamedWarpScriptFunction) function).getName() : function.getClass().getSimpleName());
+      this.function = function;
+    }
+
+    @Override
+    public Object apply(WarpScriptStack stack) throws WarpScriptException {
+      if (!active) {
+        return function.apply(stack);
+      }
+
+      Frames f = frames.get();
+      if (f.depth == f.childTime.length) {
+        f.childTime = Arrays.copyOf(f.childTime, f.depth * 2);
+        f.childAlloc = Arrays.copyOf(f.childAlloc, f.depth * 2);
+      }
+      int depth = f.depth++;
+      f.childTime[depth] = 0L;
+      f.childAlloc[depth] = 0L;
+
+      long threadId = Thread.currentThread().getId();
+      long alloc = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId);
+      long start = System.nanoTime();
+
+      try {
+        return function.apply(stack);
+      } finally {
+        long elapsed = System.nanoTime() - start;
+        long allocated = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId) - alloc;
+
+        f.depth--;
+        if (depth > 0) {
+          f.childTime[depth - 1] += elapsed;
+          f.childAlloc[depth - 1] += allocated;
+        }
+
+        FunctionStats fs = stats.computeIfAbsent(getName(), k -> new FunctionStats());
+        fs.calls.increment();
+        fs.time.add(elapsed);
+        fs.selfTime.add(elapsed - f.childTime[depth]);
+        fs.alloc.add(allocated);
+        fs.selfAlloc.add(allocated - f.childAlloc[depth]);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return function.toString();
+    }
+  }
+
+  /**
+   * Copy a macro, wrapping its functions and those of the macros it contains in ProfiledFunction.
+   */
+  public static Macro profile(Macro macro) {
+    Macro profiled = new Macro();
+    int n = macro.size();
+    for (int i = 0; i < n; i++) {
+      Object stmt = macro.get(i);
+      if (stmt instanceof WarpScriptStackFunction) {
+        profiled.add(new ProfiledFunction((WarpScriptStackFunction) stmt));
+      } else if (stmt instanceof Macro) {
+        profiled.add(profile((Macro) stmt));
+      } else {
+        profiled.add(stmt);
+      }
+    }
+    return profiled;
+  }
+
+  /**
+   * Replace the macros stored in the variables of a stack by their profiled copies, so the macros defined by the pretrial
+   * macros are profiled when called through their variables. Macros of the repository cannot be replaced.
+   */
+  public static void profileVariables(WarpScriptStack stack) {
+    for (Map.Entry<String, Object> symbol: stack.getSymbolTable().entrySet()) {
+      if (symbol.getValue() instanceof Macro) {
+        symbol.setValue(profile((Macro) symbol.getValue()));
+      }
+    }
+  }
+
+  @Override
+  public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+    stats.clear();
+    active = IterationType.MEASUREMENT == iterationParams.getType();
+  }
+
+  @Override
+  public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams, IterationResult result) {
+    active = false;
+
+    List<Result> results = new ArrayList<Result>();
+
+    if (IterationType.MEASUREMENT != iterationParams.getType()) {
+      return results;
+    }
+
+    // Report per benchmark operation
+    double ops = Math.max(1L, result.getMetadata().getAllOps());
+
+    for (Map.Entry<String, FunctionStats> entry: stats.entrySet()) {
+      String function = entry.getKey();
+      FunctionStats fs = entry.getValue();
+      results.add(new ScalarResult(LABEL_PREFIX + METRIC_CALLS + "." + function, fs.calls.sum() / ops, "calls/op", AggregationPolicy.AVG));
+      results.add(new ScalarResult(LABEL_PREFIX + METRIC_TIME + "." + function, fs.time.sum() / ops, "ns/op", AggregationPolicy.AVG));
+      results.add(new ScalarResult(LABEL_PREFIX + METRIC_SELF_TIME + "." + function, fs.selfTime.sum() / ops, "ns/op", AggregationPolicy.AVG));
+      results.add(new ScalarResult(LABEL_PREFIX + METRIC_ALLOC + "." + function, fs.alloc.sum() / ops, "B/op", AggregationPolicy.AVG));
+      results.add(new ScalarResult(LABEL_PREFIX + METRIC_SELF_ALLOC + "." + function, fs.selfAlloc.sum() / ops, "B/op", AggregationPolicy.AVG));
+    }
+
+    return results;
+  }
+
+  @Override
+  public String getDescription() {
+    return "Time and allocated bytes per WarpScript function of the benchmarked macro.";
+  }
+}
@@ -0,0 +1,221 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.results.BenchmarkResult;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.util.Statistics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Convert JMH results to WarpScript structures, without going through JSON. The results have the same keys as the JMH
+ * JSON, without the histograms of the sample mode, plus:
+ * - scores: a GTS per fork of the scores of the measurement iterations, the tick being the iteration number,
+ * - samples: in sample mode, a GTS per fork and iteration of the distinct sampled times of the histogram of JMH, sorted,
+ *   the tick being the index of the bucket,
+ * - sampleCounts: in sample mode, a GTS per fork and iteration of the number of samples of each bucket, at the same
+ *   ticks as samples, so the size of the GTS does not grow with the number of samples,
+ * - percentiles: the percentiles of the primary metric.
+ */
+public class WarpScriptResults {
+
+  public static final String CLASS_SCORE = "jmh.score";
+  public static final String CLASS_SAMPLE = "jmh.sample";
+  public static final String CLASS_SAMPLE_COUNT = "jmh.sample.count";
+
+  public static final String KEY_SCORES = "scores";
+  public static final String KEY_SAMPLES = "samples";
+  public static final String KEY_SAMPLE_COUNTS = "sampleCounts";
+  public static final String KEY_PERCENTILES = "percentiles";
+
+  public static final String LABEL_BENCHMARK = "benchmark";
+  public static final String LABEL_NAME = "name";
+  public static final String LABEL_FORK = "fork";
+  public static final String LABEL_ITERATION = "iteration";
+
+  private static final double[] PERCENTILES = new double[] {0.0D, 50.0D, 90.0D, 95.0D, 99.0D, 99.9D, 99.99D, 99.999D, 99.9999D, 100.0D};
+
+  /**
+   * @param runResults Results of a JMH run.
+   * @param benchConfigurations Bench configurations of the run, to label the GTS.
+   * @param benchRuns Configurations and combinations of parameters of the run, to label the GTS.
+   * @return The list of results, one per benchmark.
+   */
+  public static List<Map<Object, Object>> convert(Collection<RunResult> runResults, List<Map<Object, Object>> benchConfigurations, List<JMH.BenchRun> benchRuns) {
+    List<Map<Object, Object>> results = new ArrayList<Map<Object, Object>>(runResults.size());
+
+    for (RunResult runResult: runResults) {
+      BenchmarkParams params = runResult.getParams();
+
+      Map<Object, Object> result = new LinkedHashMap<Object, Object>();
+      result.put("jmhVersion", params.getJmhVersion());
+      result.put("benchmark", params.getBenchmark());
+      result.put("mode", params.getMode().shortLabel());
+      result.put("threads", (long) params.getThreads());
+      result.put("forks", (long) params.getForks());
+      result.put("jvm", params.getJvm());
+      result.put("jvmArgs", new ArrayList<Object>(params.getJvmArgs()));
+      result.put("jdkVersion", params.getJdkVersion());
+      result.put("vmName", params.getVmName());
+      result.put("vmVersion", params.getVmVersion());
+      putIterationParams(result, "warmup", params.getWarmup());
+      putIterationParams(result, "measurement", params.getMeasurement());
+
+      Map<Object, Object> jmhParams = new LinkedHashMap<Object, Object>();
+      for (String key: params.getParamsKeys()) {
+        jmhParams.put(key, params.getParam(key));
+      }
+      result.put("params", jmhParams);
+
+      // Labels identifying the benchmark
+      Map<String, String> labels = new LinkedHashMap<String, String>();
+      labels.put(LABEL_BENCHMARK, params.getBenchmark().substring(params.getBenchmark().lastIndexOf('.') + 1));
+      JMH.BenchRun benchRun = benchRuns.get(Integer.parseInt(params.getParam(JMH.COMBINATION_PARAM)));
+      Object name = benchConfigurations.get(benchRun.configuration).get(JMH.NAME_KEY);
+      if (null != name) {
+        labels.put(LABEL_NAME, name.toString());
+      }
+      for (Map.Entry<String, Object> param: benchRun.params.entrySet()) {
+        labels.put(param.getKey(), String.valueOf(param.getValue()));
+      }
+
+      List<Object> rawData = new ArrayList<Object>();
+      List<Object> scores = new ArrayList<Object>();
+      List<Object> samples = new ArrayList<Object>();
+      List<Object> sampleCounts = new ArrayList<Object>();
+
+      int fork = 0;
+      for (BenchmarkResult benchmarkResult: runResult.getBenchmarkResults()) {
+        fork++;
+
+        List<Object> forkRawData = new ArrayList<Object>();
+        GeoTimeSerie score = new GeoTimeSerie(benchmarkResult.getIterationResults().size());
+        score.setName(CLASS_SCORE);
+        Map<String, String> scoreLabels = new LinkedHashMap<String, String>(labels);
+        scoreLabels.put(LABEL_FORK, Integer.toString(fork));
+        score.setLabels(scoreLabels);
+
+        int iteration = 0;
+        for (IterationResult iterationResult: benchmarkResult.getIterationResults()) {
+          iteration++;
+          forkRawData.add(iterationResult.getPrimaryResult().getScore());
+          GTSHelper.setValue(score, iteration, iterationResult.getPrimaryResult().getScore());
+
+          if (Mode.SampleTime == params.getMode()) {
+            Statistics statistics = iterationResult.getPrimaryResult().getStatistics();
+            Map<String, String> sampleLabels = new LinkedHashMap<String, String>(scoreLabels);
+            sampleLabels.put(LABEL_ITERATION, Integer.toString(iteration));
+            GeoTimeSerie sample = new GeoTimeSerie();
+            sample.setName(CLASS_SAMPLE);
+            sample.setLabels(sampleLabels);
+            GeoTimeSerie sampleCount = new GeoTimeSerie();
+            sampleCount.setName(CLASS_SAMPLE_COUNT);
+            sampleCount.setLabels(new LinkedHashMap<String, String>(sampleLabels));
+
+            // The raw data is a histogram of the sampled times, sorted by time
+            long tick = 0L;
+            Iterator<Map.Entry<Double, Long>> iter = statistics.getRawData();
+            while (iter.hasNext()) {
+              Map.Entry<Double, Long> bucket = iter.next();
+              GTSHelper.setValue(sample, tick, bucket.getKey());
+              GTSHelper.setValue(sampleCount, tick, bucket.getValue());
+              tick++;
+            }
+            samples.add(sample);
+            sampleCounts.add(sampleCount);
+          }
+        }
+
+        rawData.add(forkRawData);
+        scores.add(score);
+      }
+
+      result.put("primaryMetric", metric(runResult.getPrimaryResult(), rawData));
+
+      Map<Object, Object> secondaryMetrics = new LinkedHashMap<Object, Object>();
+      for (Map.Entry<String, Result> secondary: runResult.getSecondaryResults().entrySet()) {
+        // Like in the JMH JSON, iterations without this secondary result have a NaN score
+        List<Object> secondaryRawData = new ArrayList<Object>();
+        for (BenchmarkResult benchmarkResult: runResult.getBenchmarkResults()) {
+          List<Object> forkRawData = new ArrayList<Object>();
+          for (IterationResult iterationResult: benchmarkResult.getIterationResults()) {
+            Result iterationSecondary = iterationResult.getSecondaryResults().get(secondary.getKey());
+            forkRawData.add(null == iterationSecondary ? Double.NaN : iterationSecondary.getScore());
+          }
+          secondaryRawData.add(forkRawData);
+        }
+        secondaryMetrics.put(secondary.getKey(), metric(secondary.getValue(), secondaryRawData));
+      }
+      result.put("secondaryMetrics", secondaryMetrics);
+
+      result.put(KEY_SCORES, scores);
+      if (Mode.SampleTime == params.getMode()) {
+        result.put(KEY_SAMPLES, samples);
+        result.put(KEY_SAMPLE_COUNTS, sampleCounts);
+      }
+      result.put(KEY_PERCENTILES, ((Map) result.get("primaryMetric")).get("scorePercentiles"));
+
+      results.add(result);
+    }
+
+    return results;
+  }
+
+  private static void putIterationParams(Map<Object, Object> result, String prefix, IterationParams iterationParams) {
+    result.put(prefix + "Iterations", (long) iterationParams.getCount());
+    result.put(prefix + "Time", iterationParams.getTime().toString());
+    result.put(prefix + "BatchSize", (long) iterationParams.getBatchSize());
+  }
+
+  private static Map<Object, Object> metric(Result result, List<Object> rawData) {
+    Map<Object, Object> metric = new LinkedHashMap<Object, Object>();
+    metric.put("score", result.getScore());
+    metric.put("scoreError", result.getScoreError());
+
+    double[] confidence = result.getScoreConfidence();
+    List<Object> scoreConfidence = new ArrayList<Object>(2);
+    scoreConfidence.add(confidence[0]);
+    scoreConfidence.add(confidence[1]);
+    metric.put("scoreConfidence", scoreConfidence);
+
+    Map<Object, Object> percentiles = new LinkedHashMap<Object, Object>();
+    for (double percentile: PERCENTILES) {
+      percentiles.put(Double.toString(percentile), result.getStatistics().getPercentile(percentile));
+    }
+    metric.put("scorePercentiles", percentiles);
+    metric.put("scoreUnit", result.getScoreUnit());
+
+    if (null != rawData) {
+      metric.put("rawData", rawData);
+    }
+
+    return metric;
+  }
+}
@@ -0,0 +1,84 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+
+package io.warp10.script.ext.jmh;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class AdaptiveRunTest {
+
+  private static final double DELTA = 1e-9;
+
+  @Test
+  public void testRelativeError() {
+    // Mean 2, sample standard deviation sqrt(4/3), t(0.975, 3) = 3.182446305
+    double expected = 3.182446305284263D * Math.sqrt(4.0D / 3.0D) / Math.sqrt(4.0D) / 2.0D;
+    Assert.assertEquals(expected, AdaptiveRun.relativeError(Arrays.asList(1.0D, 1.0D, 3.0D, 3.0D), 0.95D), 1e-6);
+    Assert.assertEquals(0.0D, AdaptiveRun.relativeError(Arrays.asList(5.0D, 5.0D), 0.99D), DELTA);
+    Assert.assertTrue(Double.isNaN(AdaptiveRun.relativeError(Collections.singletonList(1.0D), 0.99D)));
+  }
+
+  @Test
+  public void testSteady() {
+    Map<Object, Object> adaptive = new LinkedHashMap<Object, Object>();
+    adaptive.put(JMH.ADAPTIVE_WINDOW, 3L);
+    adaptive.put(JMH.ADAPTIVE_STABILITY, 0.05D);
+    adaptive.put(JMH.ADAPTIVE_ERROR, 0.02D);
+    adaptive.put(JMH.ADAPTIVE_CONFIDENCE, 0.95D);
+    AdaptiveRun run = new AdaptiveRun(adaptive, TimeUnit.HOURS.toNanos(1L));
+
+    // Warming up, then steady around 10
+    Assert.assertTrue(run.emit(iteration(50.0D)));
+    Assert.assertTrue(run.emit(iteration(20.0D)));
+    Assert.assertTrue(run.emit(iteration(10.0D)));
+    Assert.assertTrue(run.emit(iteration(10.1D)));
+    Assert.assertTrue(run.emit(iteration(9.9D)));
+    // The last 3 scores are steady, and with one more their error is below 2%
+    Assert.assertFalse(run.emit(iteration(10.0D)));
+  }
+
+  @Test
+  public void testBudget() {
+    AdaptiveRun run = new AdaptiveRun(new LinkedHashMap<Object, Object>(), 0L);
+
+    // Never steady, stopped by its budget
+    Assert.assertFalse(run.emit(iteration(1.0D)));
+  }
+
+  @Test
+  public void testOtherEvents() {
+    AdaptiveRun run = new AdaptiveRun(new LinkedHashMap<Object, Object>(), 0L);
+
+    Map<Object, Object> event = new LinkedHashMap<Object, Object>();
+    event.put("event", "start");
+    Assert.assertTrue(run.emit(event));
+  }
+
+  private static Map<Object, Object> iteration(double score) {
+    Map<Object, Object> event = new LinkedHashMap<Object, Object>();
+    event.put("event", StreamingOutputFormat.EVENT_ITERATION);
+    event.put("score", score);
+    return event;
+  }
+}
@@ -0,0 +1,136 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+
+package io.warp10.script.ext.jmh;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ComparisonProfilerTest {
+
+  private static final double DELTA = 1e-9;
+
+  @Test
+  public void testNotComparison() {
+    Map<Object, Object> result = result("avgt", Arrays.asList(Arrays.asList(1.0D)), null);
+
+    Assert.assertNull(ComparisonProfiler.compare(result));
+  }
+
+  @Test
+  public void testAverageTime() {
+    // A takes 4 and B takes 2, B is twice as fast
+    Map<Object, Object> result = result("avgt",
+        Arrays.asList(Arrays.asList(4.0D, 2.0D, 2.0D, 4.0D), Arrays.asList(2.0D, 4.0D)),
+        Arrays.asList(Arrays.asList(0.0D, 1.0D, 1.0D, 0.0D), Arrays.asList(1.0D, 0.0D)));
+
+    Map<Object, Object> comparison = ComparisonProfiler.compare(result);
+
+    Assert.assertEquals(4.0D, ((Number) ((Map) comparison.get("A")).get("score")).doubleValue(), DELTA);
+    Assert.assertEquals(3L, ((Map) comparison.get("A")).get("iterations"));
+    Assert.assertEquals(2.0D, ((Number) ((Map) comparison.get("B")).get("score")).doubleValue(), DELTA);
+    Assert.assertEquals(2.0D, ((Number) comparison.get("speedup")).doubleValue(), DELTA);
+    Assert.assertEquals(Boolean.TRUE, comparison.get("significant"));
+  }
+
+  @Test
+  public void testThroughput() {
+    // Throughputs are higher when faster, B is half as fast
+    Map<Object, Object> result = result("thrpt",
+        Arrays.asList(Arrays.asList(4.0D, 2.0D)),
+        Arrays.asList(Arrays.asList(0.0D, 1.0D)));
+
+    Assert.assertEquals(0.5D, ((Number) ComparisonProfiler.compare(result).get("speedup")).doubleValue(), DELTA);
+  }
+
+  @Test
+  public void testOneSide() {
+    Map<Object, Object> result = result("avgt",
+        Arrays.asList(Arrays.asList(4.0D, 4.0D)),
+        Arrays.asList(Arrays.asList(0.0D, 0.0D)));
+
+    Map<Object, Object> comparison = ComparisonProfiler.compare(result);
+
+    Assert.assertEquals(0L, ((Map) comparison.get("B")).get("iterations"));
+    Assert.assertFalse(comparison.containsKey("speedup"));
+  }
+
+  @Test
+  public void testCalibration() {
+    // The iterations of the no-op macro are removed from the primary metric and give the overhead
+    Map<Object, Object> result = result("avgt",
+        Arrays.asList(Arrays.asList(5.0D, 1.0D, 7.0D, 1.0D)),
+        Arrays.asList(Arrays.asList(0.0D, 1.0D, 0.0D, 1.0D)));
+    Map secondaryMetrics = (Map) result.get("secondaryMetrics");
+    secondaryMetrics.put(CalibrationProfiler.LABEL_CALIBRATION_SIDE, secondaryMetrics.remove(ComparisonProfiler.LABEL_SIDE));
+
+    JMH.calibrate(Arrays.asList((Object) result));
+
+    Map primaryMetric = (Map) result.get("primaryMetric");
+    Map calibration = (Map) result.get(JMH.KEY_CALIBRATION);
+    Assert.assertEquals(6.0D, ((Number) primaryMetric.get("score")).doubleValue(), DELTA);
+    Assert.assertEquals(Arrays.asList(Arrays.asList(5.0D, 7.0D)), primaryMetric.get("rawData"));
+    Assert.assertEquals(1.0D, ((Number) calibration.get("overhead")).doubleValue(), DELTA);
+    Assert.assertEquals(5.0D, ((Number) calibration.get("corrected")).doubleValue(), DELTA);
+    Assert.assertNull(ComparisonProfiler.compare(result));
+  }
+
+  @Test
+  public void testMismatchedFork() {
+    // A fork without the side of each of its iterations is ignored
+    Map<Object, Object> result = result("avgt",
+        Arrays.asList(Arrays.asList(4.0D, 2.0D), Arrays.asList(8.0D, 8.0D, 8.0D)),
+        Arrays.asList(Arrays.asList(0.0D, 1.0D), Arrays.asList(0.0D)));
+
+    Map<Object, Object> comparison = ComparisonProfiler.compare(result);
+
+    Assert.assertEquals(1L, ((Map) comparison.get("A")).get("iterations"));
+    Assert.assertEquals(2.0D, ((Number) comparison.get("speedup")).doubleValue(), DELTA);
+  }
+
+  private static Map<Object, Object> result(String mode, List<List<Double>> scores, List<List<Double>> sides) {
+    Map<Object, Object> primaryMetric = new LinkedHashMap<Object, Object>();
+    primaryMetric.put("score", 0.0D);
+    primaryMetric.put("scoreUnit", "us/op");
+    primaryMetric.put("scorePercentiles", new LinkedHashMap<Object, Object>());
+    primaryMetric.put("rawData", new ArrayList<Object>(scores));
+
+    Map<Object, Object> result = new LinkedHashMap<Object, Object>();
+    result.put("mode", mode);
+    result.put("primaryMetric", primaryMetric);
+
+    if (null != sides) {
+      Map<Object, Object> side = new LinkedHashMap<Object, Object>();
+      side.put("score", 0.5D);
+      side.put("scoreUnit", "B");
+      side.put("scorePercentiles", new LinkedHashMap<Object, Object>());
+      side.put("rawData", new ArrayList<Object>(sides));
+
+      Map<Object, Object> secondaryMetrics = new LinkedHashMap<Object, Object>();
+      secondaryMetrics.put(ComparisonProfiler.LABEL_SIDE, side);
+      result.put("secondaryMetrics", secondaryMetrics);
+    }
+
+    return result;
+  }
+}
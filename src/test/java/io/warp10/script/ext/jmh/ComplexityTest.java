@@ -0,0 +1,134 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+
+package io.warp10.script.ext.jmh;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ComplexityTest {
+
+  private static final double DELTA = 1e-9;
+
+  private static final long[] SIZES = new long[] {10L, 100L, 1000L, 10000L};
+
+  @Test
+  public void testLinear() {
+    Map complexity = fit("avgt", 2.0D, Complexity.Model.LINEAR, null);
+
+    Assert.assertEquals("O(n)", complexity.get(Complexity.KEY_MODEL));
+    Assert.assertEquals(2.0D, ((Number) complexity.get(Complexity.KEY_COEFFICIENT)).doubleValue(), DELTA);
+    Assert.assertEquals(0.0D, ((Number) complexity.get(Complexity.KEY_RMS)).doubleValue(), DELTA);
+    Assert.assertEquals("us/op", complexity.get(Complexity.KEY_UNIT));
+  }
+
+  @Test
+  public void testQuadraticProjection() {
+    Map complexity = fit("avgt", 0.5D, Complexity.Model.QUADRATIC, 100000L);
+
+    Assert.assertEquals("O(n^2)", complexity.get(Complexity.KEY_MODEL));
+    Assert.assertEquals(100000L, complexity.get(Complexity.KEY_PROJECTION));
+    Assert.assertEquals(0.5D * 1e10, ((Number) complexity.get(Complexity.KEY_PROJECTED)).doubleValue(), 1e-3);
+  }
+
+  @Test
+  public void testThroughput() {
+    // Throughputs are fitted as times per operation
+    Map complexity = fit("thrpt", 3.0D, Complexity.Model.LINEARITHMIC, null);
+
+    Assert.assertEquals("O(n log n)", complexity.get(Complexity.KEY_MODEL));
+    Assert.assertEquals(3.0D, ((Number) complexity.get(Complexity.KEY_COEFFICIENT)).doubleValue(), DELTA);
+    Assert.assertEquals("s/op", complexity.get(Complexity.KEY_UNIT));
+  }
+
+  @Test
+  public void testNaN() {
+    List<Map<Object, Object>> benchConfigurations = new ArrayList<Map<Object, Object>>();
+    List<JMH.BenchRun> benchRuns = new ArrayList<JMH.BenchRun>();
+    List<Object> results = results("avgt", Double.NaN, Complexity.Model.CONSTANT, null, benchConfigurations, benchRuns);
+
+    Complexity.fit(results, benchConfigurations, benchRuns);
+
+    Map complexity = (Map) ((Map) results.get(0)).get(JMH.KEY_COMPLEXITY);
+    Assert.assertFalse(complexity.containsKey(Complexity.KEY_MODEL));
+    Assert.assertEquals(SIZES.length, ((List) complexity.get(Complexity.KEY_SIZES)).size());
+  }
+
+  @Test
+  public void testWithoutGenerator() {
+    List<Map<Object, Object>> benchConfigurations = new ArrayList<Map<Object, Object>>();
+    List<JMH.BenchRun> benchRuns = new ArrayList<JMH.BenchRun>();
+    List<Object> results = results("avgt", 1.0D, Complexity.Model.LINEAR, null, benchConfigurations, benchRuns);
+    benchConfigurations.get(0).remove(JMH.GENERATOR_MACRO);
+
+    Complexity.fit(results, benchConfigurations, benchRuns);
+
+    Assert.assertFalse(((Map) results.get(0)).containsKey(JMH.KEY_COMPLEXITY));
+  }
+
+  private static Map fit(String mode, double coefficient, Complexity.Model model, Long projection) {
+    List<Map<Object, Object>> benchConfigurations = new ArrayList<Map<Object, Object>>();
+    List<JMH.BenchRun> benchRuns = new ArrayList<JMH.BenchRun>();
+    List<Object> results = results(mode, coefficient, model, projection, benchConfigurations, benchRuns);
+
+    Complexity.fit(results, benchConfigurations, benchRuns);
+
+    // All the results of the group share the same complexity
+    Map complexity = (Map) ((Map) results.get(0)).get(JMH.KEY_COMPLEXITY);
+    for (Object result: results) {
+      Assert.assertSame(complexity, ((Map) result).get(JMH.KEY_COMPLEXITY));
+    }
+    return complexity;
+  }
+
+  private static List<Object> results(String mode, double coefficient, Complexity.Model model, Long projection, List<Map<Object, Object>> benchConfigurations, List<JMH.BenchRun> benchRuns) {
+    Map<Object, Object> benchConfiguration = new LinkedHashMap<Object, Object>();
+    benchConfiguration.put(JMH.GENERATOR_MACRO, null);
+    if (null != projection) {
+      benchConfiguration.put(JMH.PROJECTION_KEY, projection);
+    }
+    benchConfigurations.add(benchConfiguration);
+
+    List<Object> results = new ArrayList<Object>();
+    for (long size: SIZES) {
+      Map<String, Object> params = new LinkedHashMap<String, Object>();
+      params.put(JMH.SIZE_PARAM, size);
+      benchRuns.add(new JMH.BenchRun(0, params));
+
+      double time = coefficient * model.f(size);
+      Map<Object, Object> primaryMetric = new LinkedHashMap<Object, Object>();
+      primaryMetric.put("score", "thrpt".equals(mode) ? 1.0D / time : time);
+      primaryMetric.put("scoreUnit", "thrpt".equals(mode) ? "ops/s" : "us/op");
+
+      Map<Object, Object> resultParams = new LinkedHashMap<Object, Object>();
+      resultParams.put(JMH.COMBINATION_PARAM, Integer.toString(benchRuns.size() - 1));
+
+      Map<Object, Object> result = new LinkedHashMap<Object, Object>();
+      result.put("benchmark", "io.warp10.script.ext.jmh.MacroBenchmark.benchmark");
+      result.put("mode", mode);
+      result.put("params", resultParams);
+      result.put("primaryMetric", primaryMetric);
+      results.add(result);
+    }
+    return results;
+  }
+}
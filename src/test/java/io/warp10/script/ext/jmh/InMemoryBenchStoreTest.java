@@ -0,0 +1,128 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.thrift.data.DirectoryRequest;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.script.WarpScriptException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class InMemoryBenchStoreTest {
+
+  private static final long STEP = 10L;
+  private static final long END = 1000L;
+
+  private InMemoryBenchStore store;
+
+  @Before
+  public void setUp() throws WarpScriptException {
+    Map<Object, Object> dataset = new HashMap<Object, Object>();
+    dataset.put("classes", 2L);
+    dataset.put("series", 3L);
+    dataset.put("points", 5L);
+    dataset.put("step", STEP);
+    dataset.put("end", END);
+
+    store = new InMemoryBenchStore();
+    store.init(dataset);
+  }
+
+  @Test
+  public void testFind() throws Exception {
+    Assert.assertEquals(6, find("~jmh.*", new HashMap<String, String>()).size());
+    Assert.assertEquals(3, find("jmh.1", new HashMap<String, String>()).size());
+    Assert.assertEquals(1, find("=jmh.0", Collections.singletonMap("series", "=2")).size());
+    Assert.assertEquals(0, find("jmh.2", new HashMap<String, String>()).size());
+  }
+
+  @Test
+  public void testFetchRange() throws Exception {
+    List<Metadata> metadatas = find("jmh.0", Collections.singletonMap("series", "0"));
+
+    // Points at 960, 970, 980, 990 and 1000
+    Assert.assertEquals(5, count(store.fetch(metadatas, END, END - 4L * STEP, 0L)));
+    Assert.assertEquals(3, count(store.fetch(metadatas, END - STEP, END - 3L * STEP, 0L)));
+  }
+
+  @Test
+  public void testFetchCount() throws Exception {
+    List<Metadata> metadatas = find("jmh.0", new HashMap<String, String>());
+
+    Assert.assertEquals(3 * 2, count(store.fetch(metadatas, END, Long.MIN_VALUE, 2L)));
+  }
+
+  @Test
+  public void testStore() throws Exception {
+    Metadata metadata = new Metadata();
+    metadata.setName("written");
+    metadata.setLabels(new HashMap<String, String>());
+
+    GTSEncoder encoder = new GTSEncoder(0L);
+    encoder.setMetadata(metadata);
+    encoder.addValue(2L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 2.0D);
+    encoder.addValue(1L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 1.0D);
+    store.getStoreClient().store(encoder);
+
+    List<Metadata> metadatas = find("written", new HashMap<String, String>());
+    Assert.assertEquals(1, metadatas.size());
+
+    GTSDecoderIterator iter = store.fetch(metadatas, 10L, 0L, 0L);
+    GTSDecoder decoder = iter.next();
+    // Written out of order, fetched sorted
+    Assert.assertTrue(decoder.next());
+    Assert.assertEquals(1L, decoder.getTimestamp());
+    Assert.assertTrue(decoder.next());
+    Assert.assertEquals(2L, decoder.getTimestamp());
+    Assert.assertFalse(decoder.next());
+  }
+
+  private List<Metadata> find(String classSelector, Map<String, String> labelsSelectors) throws Exception {
+    List<String> classSelectors = new ArrayList<String>();
+    classSelectors.add(classSelector);
+    List<Map<String, String>> labelsSelectorsList = new ArrayList<Map<String, String>>();
+    labelsSelectorsList.add(labelsSelectors);
+
+    DirectoryRequest request = new DirectoryRequest();
+    request.setClassSelectors(classSelectors);
+    request.setLabelsSelectors(labelsSelectorsList);
+
+    return store.getDirectoryClient().find(request);
+  }
+
+  private static int count(GTSDecoderIterator iter) {
+    int count = 0;
+    while (iter.hasNext()) {
+      GTSDecoder decoder = iter.next();
+      while (decoder.next()) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,43 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+
+package io.warp10.script.ext.jmh;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class JMHRunnerTest {
+
+  @Test
+  public void testParseCpuList() {
+    Assert.assertEquals(Arrays.asList(0, 1, 2, 3), JMHRunner.parseCpuList("0-3"));
+    Assert.assertEquals(Arrays.asList(2, 3, 8, 10, 11), JMHRunner.parseCpuList("2-3,8,10-11"));
+    Assert.assertEquals(Arrays.asList(5), JMHRunner.parseCpuList("5"));
+  }
+
+  @Test
+  public void testCpuList() {
+    Assert.assertEquals("4,5,9", JMHRunner.cpuList(Arrays.asList(4, 5, 9)));
+  }
+
+  @Test
+  public void testAllowedCpus() {
+    Assert.assertFalse(JMHRunner.allowedCpus().isEmpty());
+  }
+}
@@ -0,0 +1,54 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+
+package io.warp10.script.ext.jmh;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+public class JMHWarp10PluginTest {
+
+  @Test
+  public void testChildConfiguration() {
+    Assert.assertTrue(JMHWarp10Plugin.isChildConfiguration("warp.timeunits"));
+    Assert.assertTrue(JMHWarp10Plugin.isChildConfiguration("warpscript.extension.jmh"));
+    Assert.assertTrue(JMHWarp10Plugin.isChildConfiguration(JMHFixtures.CONF_DIR));
+    Assert.assertTrue(JMHWarp10Plugin.isChildConfiguration(JMH.CONF_JVM_ALLOW));
+
+    Assert.assertFalse(JMHWarp10Plugin.isChildConfiguration(JMHWarp10Plugin.CONF_TOKEN));
+    Assert.assertFalse(JMHWarp10Plugin.isChildConfiguration("warp.aes.token"));
+    Assert.assertFalse(JMHWarp10Plugin.isChildConfiguration("warp.hash.class"));
+    Assert.assertFalse(JMHWarp10Plugin.isChildConfiguration("warp10.plugin.jmh"));
+  }
+
+  @Test
+  public void testPrivateFile() throws Exception {
+    File file = JMHWarp10Plugin.createPrivateFile("test", ".conf");
+    try {
+      Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(file.toPath());
+      Assert.assertEquals(PosixFilePermissions.fromString("rw-------"), permissions);
+    } finally {
+      file.delete();
+    }
+  }
+}
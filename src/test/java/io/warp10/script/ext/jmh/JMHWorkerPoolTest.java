@@ -0,0 +1,135 @@
+//
+//    Copyright 2020  SenX S.A.S.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+
+package io.warp10.script.ext.jmh;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.AverageTimeResult;
+import org.openjdk.jmh.results.BenchmarkResult;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.IterationResultMetaData;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ResultRole;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.ScalarResult;
+import org.openjdk.jmh.runner.IterationType;
+import org.openjdk.jmh.runner.WorkloadParams;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class JMHWorkerPoolTest {
+
+  private static final double DELTA = 1e-9;
+
+  @Test
+  public void testMergePrimaryMetric() {
+    List<List<RunResult>> forkResults = new ArrayList<List<RunResult>>();
+    forkResults.add(results(new double[] {1.0D, 3.0D}, null, null));
+    forkResults.add(results(new double[] {4.0D, 6.0D}, null, null));
+
+    RunResult merged = JMHWorkerPool.merge(forkResults).get(0);
+
+    Assert.assertEquals(2, merged.getParams().getForks());
+    Assert.assertEquals(3.5D, merged.getPrimaryResult().getScore(), DELTA);
+    Assert.assertEquals(4L, merged.getPrimaryResult().getStatistics().getN());
+    Assert.assertEquals(6.0D, merged.getPrimaryResult().getStatistics().getMax(), DELTA);
+  }
+
+  @Test
+  public void testMergeSecondaryMetrics() {
+    List<List<RunResult>> forkResults = new ArrayList<List<RunResult>>();
+    forkResults.add(results(new double[] {1.0D, 1.0D}, new double[] {1.0D, 1.0D}, new double[] {2.0D, 4.0D}));
+    forkResults.add(results(new double[] {1.0D, 1.0D}, new double[] {3.0D, 3.0D}, new double[] {1.0D, 3.0D}));
+
+    Map<String, Result> secondaryResults = JMHWorkerPool.merge(forkResults).get(0).getSecondaryResults();
+
+    // Each metric is aggregated with its own policy, whatever its label
+    Assert.assertEquals(2.0D, secondaryResults.get("avg").getScore(), DELTA);
+    Assert.assertEquals(4L, secondaryResults.get("avg").getStatistics().getN());
+    Assert.assertEquals(4.0D, secondaryResults.get("max").getScore(), DELTA);
+  }
+
+  @Test
+  public void testPoolSides() {
+    // Each worker of the pool runs one fork, the sides of all of them are kept by the merge
+    List<List<RunResult>> forkResults = new ArrayList<List<RunResult>>();
+    forkResults.add(results(new double[] {4.0D, 2.0D}, new double[] {0.0D, 1.0D}, null));
+    forkResults.add(results(new double[] {2.0D, 4.0D}, new double[] {1.0D, 0.0D}, null));
+
+    RunResult merged = JMHWorkerPool.merge(forkResults).get(0);
+
+    List<Double> sides = new ArrayList<Double>();
+    for (BenchmarkResult benchmarkResult: merged.getBenchmarkResults()) {
+      for (IterationResult iterationResult: benchmarkResult.getIterationResults()) {
+        sides.add(iterationResult.getSecondaryResults().get("avg").getScore());
+      }
+    }
+    Assert.assertEquals(Arrays.asList(0.0D, 1.0D, 1.0D, 0.0D), sides);
+  }
+
+  @Test
+  public void testSerialize() throws Exception {
+    List<RunResult> results = results(new double[] {1.0D, 3.0D}, new double[] {1.0D, 1.0D}, new double[] {2.0D, 4.0D});
+
+    List<RunResult> deserialized = JMHWorker.deserialize(JMHWorker.serialize(results));
+
+    Assert.assertEquals(1, deserialized.size());
+    Assert.assertEquals(2.0D, deserialized.get(0).getPrimaryResult().getScore(), DELTA);
+    Assert.assertEquals(4.0D, deserialized.get(0).getSecondaryResults().get("max").getScore(), DELTA);
+    Assert.assertEquals("0", deserialized.get(0).getParams().getParam(JMH.COMBINATION_PARAM));
+  }
+
+  /**
+   * Results of a worker, run with forks set to 0, with a single benchmark and an AVG and a MAX secondary metric.
+   */
+  private static List<RunResult> results(double[] scores, double[] avg, double[] max) {
+    WorkloadParams workloadParams = new WorkloadParams();
+    workloadParams.put(JMH.COMBINATION_PARAM, "0", 0);
+    IterationParams warmup = new IterationParams(IterationType.WARMUP, 0, TimeValue.seconds(1), 1);
+    IterationParams measurement = new IterationParams(IterationType.MEASUREMENT, scores.length, TimeValue.seconds(1), 1);
+    BenchmarkParams params = new BenchmarkParams("io.warp10.script.ext.jmh.MacroBenchmark.macro", "generated", false, 1,
+        new int[] {1}, Collections.<String>emptyList(), 0, 0, warmup, measurement, Mode.AverageTime, workloadParams,
+        TimeUnit.NANOSECONDS, 1, "java", Collections.<String>emptyList(), "11", "vm", "1", "1.23", TimeValue.minutes(10));
+
+    List<IterationResult> iterationResults = new ArrayList<IterationResult>();
+    for (int i = 0; i < scores.length; i++) {
+      IterationResult iterationResult = new IterationResult(params, measurement, new IterationResultMetaData(1L, 1L));
+      iterationResult.addResult(new AverageTimeResult(ResultRole.PRIMARY, "macro", 1.0D, (long) scores[i], TimeUnit.NANOSECONDS));
+      if (null != avg) {
+        iterationResult.addResult(new ScalarResult("avg", avg[i], "B", AggregationPolicy.AVG));
+      }
+      if (null != max) {
+        iterationResult.addResult(new ScalarResult("max", max[i], "B", AggregationPolicy.MAX));
+      }
+      iterationResults.add(iterationResult);
+    }
+
+    List<RunResult> results = new ArrayList<RunResult>();
+    results.add(new RunResult(params, Collections.singletonList(new BenchmarkResult(params, iterationResults))));
+    return results;
+  }
+}